@@ -23,15 +23,104 @@
 #include <android/log.h>
 #include <time.h>
 #include <errno.h>
+#include <pthread.h>
+#include <stdatomic.h>
+#include <sys/ioctl.h>
+#include <linux/sockios.h>
 #include "rfb/rfb.h"
+#include "fbdiff.h"
+#include "ingest.h"
+#include "inputqueue.h"
+#include "stats.h"
 
 #define TAG "droidvnc-ng (native)"
+#define FRAMEBUFFER_ALIGNMENT 64
+#define INPUT_QUEUE_CAPACITY 1024
+#define INPUT_BATCH_MAX 64
+
+/*
+ * Layout of one event in the array filled by vncWaitInputEvents(), mirrored in MainService.
+ */
+#define INPUT_EVENT_CLIENT 0
+#define INPUT_EVENT_TYPE 1
+#define INPUT_EVENT_BUTTONS 2
+#define INPUT_EVENT_X 3
+#define INPUT_EVENT_Y 4
+#define INPUT_EVENT_KEYSYM 5
+#define INPUT_EVENT_TIMESTAMP 6
+#define INPUT_EVENT_SIZE 7
+
+/*
+ * Framebuffer memory is owned by us: theScreen->frameBuffer always points to the front one of
+ * these, the back one can be written to directly by capture backends and then be published via
+ * vncSwapFramebuffer() without a full-frame copy.
+ */
+typedef struct {
+    char *data;
+    size_t size;        // allocated bytes, can be more than the current geometry needs
+    jobject byteBuffer; // global ref to a direct ByteBuffer wrapping data, created on demand
+} framebuffer;
 
 rfbScreenInfoPtr theScreen;
+framebuffer theFramebuffers[2];
+int theFrontFramebuffer;
+/*
+ * Gets frames into theScreen, living as long as it.
+ */
+static ingest theIngest;
+/*
+ * Pointer and key events on their way from LibVNCServer's client threads to MainService's input
+ * thread, which waits for them in vncWaitInputEvents(). The last batch handed out is kept there
+ * until the next call to tell when it was handled.
+ */
+static inputqueue theInputQueue;
+static inputqueue_event theInputBatch[INPUT_BATCH_MAX];
+static int theInputBatchCount;
+/*
+ * Every vncStartServer() starts a new generation. An input thread of an earlier one that was
+ * still busy handling its last batch gets -1 from vncWaitInputEvents() instead of competing with
+ * the current one, taking events out under theInputConsumerMutex makes sure of that. Taking out
+ * never blocks for long with the mutex held once the queue was closed for reopening.
+ */
+static pthread_mutex_t theInputConsumerMutex = PTHREAD_MUTEX_INITIALIZER;
+static int theInputGeneration;
 jclass theInputService;
 jclass theMainService;
 JavaVM *theVM;
 
+/*
+ * Resolved once in JNI_OnLoad() instead of on every event.
+ */
+static jmethodID theOnCutTextMethod;
+static jmethodID theOnClientConnectedMethod;
+static jmethodID theOnClientDisconnectedMethod;
+
+/*
+ * Holds the JNIEnv of LibVNCServer threads we attached to the VM. These stay attached for their
+ * whole lifetime and get detached by the key's destructor when they exit.
+ */
+static pthread_key_t theAttachedEnvKey;
+
+/*
+ * Input event dispatch latency, i.e. time per pointer/key event from entering the native callback
+ * until the input thread's handler returned, queueing included.
+ */
+static atomic_llong theInputDispatchCount;
+static atomic_llong theInputDispatchTotalNs;
+static atomic_llong theInputDispatchMaxNs;
+
+/*
+ * Guards the per-client stats_client in clientData against being freed while a snapshot is taken.
+ */
+static pthread_mutex_t theClientStatsMutex = PTHREAD_MUTEX_INITIALIZER;
+
+/*
+ * Held by the entry points capture threads feed frames through and by vncStopServer() while it
+ * frees what they use, so that a frame still on its way in when the server stops either finishes
+ * before or finds theScreen gone.
+ */
+static pthread_mutex_t theIngestMutex = PTHREAD_MUTEX_INITIALIZER;
+
 /*
  * Modeled after rfbDefaultLog:
  *  - with Android log functions
@@ -56,112 +145,357 @@ static void logcat_err(const char *format, ...)
 }
 
 
+static void recordInputDispatch(int64_t startNs, int64_t endNs)
+{
+    long long ns = endNs - startNs;
+    atomic_fetch_add_explicit(&theInputDispatchCount, 1, memory_order_relaxed);
+    atomic_fetch_add_explicit(&theInputDispatchTotalNs, ns, memory_order_relaxed);
+    long long max = atomic_load_explicit(&theInputDispatchMaxNs, memory_order_relaxed);
+    while (ns > max && !atomic_compare_exchange_weak_explicit(&theInputDispatchMaxNs, &max, ns, memory_order_relaxed, memory_order_relaxed));
+}
+
+static void detachThread(__unused void *env)
+{
+    (*theVM)->DetachCurrentThread(theVM);
+}
+
 /**
- * @return Current time in floating point seconds.
+ * Gets the JNIEnv for the calling thread. Threads not yet known to the VM are attached once and
+ * stay attached until they exit, so the per-event cost is a thread-local lookup.
+ * @return The JNIEnv or NULL if the thread could not be attached.
  */
-static double getTime()
+static JNIEnv *getEnv()
 {
-    struct timeval tv;
-    if (gettimeofday(&tv, NULL) < 0)
-        return 0.0;
-    else
-        return (double) tv.tv_sec + ((double) tv.tv_usec / 1000000.);
+    JNIEnv *env = pthread_getspecific(theAttachedEnvKey);
+    if (env)
+        return env;
+
+    // already attached by someone else, like Java threads doing reverse connections. not ours to detach.
+    if ((*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6) == JNI_OK)
+        return env;
+
+    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0)
+        return NULL;
+
+    pthread_setspecific(theAttachedEnvKey, env);
+    return env;
 }
 
+/**
+ * Allocates a pair of zeroed, aligned framebuffers of the given size.
+ * @return 1 on success, 0 on failure with nothing allocated.
+ */
+static int allocFramebuffers(framebuffer fbs[2], size_t size)
+{
+    for (int i = 0; i < 2; ++i) {
+        fbs[i].byteBuffer = NULL;
+        fbs[i].size = size;
+        if (posix_memalign((void **) &fbs[i].data, FRAMEBUFFER_ALIGNMENT, size) != 0) {
+            if (i == 1)
+                free(fbs[0].data);
+            fbs[0].data = fbs[1].data = NULL;
+            return 0;
+        }
+        memset(fbs[i].data, 0, size);
+    }
+    return 1;
+}
 
-static void onPointerEvent(int buttonMask,int x,int y,rfbClientPtr cl)
+static void freeFramebuffers(JNIEnv *env, framebuffer fbs[2])
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "onPointerEvent: could not attach thread, there will be no input");
+    for (int i = 0; i < 2; ++i) {
+        if (fbs[i].byteBuffer)
+            (*env)->DeleteGlobalRef(env, fbs[i].byteBuffer);
+        fbs[i].byteBuffer = NULL;
+        free(fbs[i].data);
+        fbs[i].data = NULL;
+        fbs[i].size = 0;
+    }
+}
+
+/*
+ * Called by LibVNCServer on the client's output thread right before sending a framebuffer update.
+ */
+static void onUpdateStart(rfbClientPtr cl)
+{
+    stats_client *stats = cl->clientData;
+    if (!stats)
         return;
+
+    stats->updateStartNs = stats_now();
+    stats->updateStartBytes = rfbStatGetSentBytes(cl);
+    stats->updateModifiedFrame = stats_latest_modified_frame();
+}
+
+/*
+ * Called by LibVNCServer on the client's output thread after sending a framebuffer update. The
+ * latency is taken from the arrival of the oldest frame whose changes were not yet sent, as
+ * LibVNCServer does not expose when the client's update request came in.
+ */
+static void onUpdateFinished(rfbClientPtr cl, __unused int result)
+{
+    stats_client *stats = cl->clientData;
+    if (!stats)
+        return;
+
+    int64_t bytes = rfbStatGetSentBytes(cl) - stats->updateStartBytes;
+    if (bytes <= 0) // nothing was sent
+        return;
+
+    stats_update update;
+    int64_t now = stats_now();
+    update.encodeNs = now - stats->updateStartNs;
+    update.bytes = bytes;
+    update.encoding = cl->preferredEncoding;
+    update.latencyNs = 0;
+    if (stats->updateModifiedFrame > stats->lastSentModifiedFrame) {
+        int64_t arrival = stats_modified_frame_arrival(stats->lastSentModifiedFrame + 1);
+        if (arrival > 0)
+            update.latencyNs = now - arrival;
+        stats->lastSentModifiedFrame = stats->updateModifiedFrame;
     }
+    stats_client_record_update(stats, &update);
+}
+
 
+/*
+ * Pointer and key events are only queued here, handling them is up to the input thread, so a
+ * client's read loop only waits for the Android framework if the queue is full of button or key
+ * changes. LibVNCServer reads each client on a thread of its own, so the last pointer event's
+ * client and buttons are kept per thread to tell droppable moves from button changes.
+ */
+static __thread rfbClientPtr theLastPointerClient;
+static __thread int theLastPointerButtons;
+
+static void onPointerEvent(int buttonMask,int x,int y,rfbClientPtr cl)
+{
     /* needed to allow multiple dragging actions at once */
     cl->screen->pointerClient = NULL;
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onPointerEvent", "(IIIJ)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, buttonMask, x, y, (jlong)cl);
+    int isMove = cl == theLastPointerClient && buttonMask == theLastPointerButtons;
+    theLastPointerClient = cl;
+    theLastPointerButtons = buttonMask;
+
+    inputqueue_event event = {
+            .client = (int64_t)(intptr_t)cl,
+            .timestampNs = stats_now(),
+            .type = INPUTQUEUE_POINTER,
+            .buttons = buttonMask,
+            .x = x,
+            .y = y,
+    };
+    inputqueue_push(&theInputQueue, &event, isMove);
+}
 
-    if ((*env)->ExceptionCheck(env))
-        (*env)->ExceptionDescribe(env);
+static void onKeyEvent(rfbBool down, rfbKeySym key, rfbClientPtr cl)
+{
+    inputqueue_event event = {
+            .client = (int64_t)(intptr_t)cl,
+            .timestampNs = stats_now(),
+            .type = INPUTQUEUE_KEY,
+            .buttons = down ? 1 : 0,
+            .keysym = key,
+    };
+    inputqueue_push(&theInputQueue, &event, 0);
+}
 
-    (*theVM)->DetachCurrentThread(theVM);
+/*
+ * Decoding of client cut text into UTF-16 is done into a per-thread buffer that is reused for
+ * subsequent cut texts, only buffers of exceptional size are given back right away.
+ */
+#define CUT_TEXT_BUFFER_KEEP_MAX (1024 * 1024)
+
+typedef struct {
+    jchar *data;
+    size_t capacity;
+} cutTextBuffer;
+
+static pthread_key_t theCutTextBufferKey;
+
+static void freeCutTextBuffer(void *buffer)
+{
+    free(((cutTextBuffer *) buffer)->data);
+    free(buffer);
 }
 
-static void onKeyEvent(rfbBool down, rfbKeySym key, rfbClientPtr cl)
+/**
+ * @return This thread's cut text buffer with room for at least the given number of jchars or NULL on allocation failure.
+ */
+static cutTextBuffer *getCutTextBuffer(size_t length)
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "onKeyEvent: could not attach thread, there will be no input");
-        return;
+    cutTextBuffer *buffer = pthread_getspecific(theCutTextBufferKey);
+    if (!buffer) {
+        buffer = calloc(1, sizeof(cutTextBuffer));
+        if (!buffer)
+            return NULL;
+        pthread_setspecific(theCutTextBufferKey, buffer);
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onKeyEvent", "(IJJ)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, down, (jlong)key, (jlong)cl);
+    if (buffer->capacity < length) {
+        jchar *data = realloc(buffer->data, length * sizeof(jchar));
+        if (!data)
+            return NULL;
+        buffer->data = data;
+        buffer->capacity = length;
+    }
 
-    if ((*env)->ExceptionCheck(env))
-        (*env)->ExceptionDescribe(env);
+    return buffer;
+}
 
-    (*theVM)->DetachCurrentThread(theVM);
+static void releaseCutTextBuffer(cutTextBuffer *buffer)
+{
+    if (buffer->capacity > CUT_TEXT_BUFFER_KEEP_MAX) {
+        free(buffer->data);
+        buffer->data = NULL;
+        buffer->capacity = 0;
+    }
 }
 
-static void onCutText(char *text, __unused int len, rfbClientPtr cl)
+/**
+ * Decodes len bytes of UTF-8 into UTF-16, replacing malformed sequences with U+FFFD.
+ * @param out Must have room for len jchars, which is the maximum UTF-16 length of len UTF-8 bytes.
+ * @return Number of jchars written.
+ */
+static size_t decodeUTF8(const unsigned char *in, size_t len, jchar *out)
 {
-    JNIEnv *env = NULL;
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    size_t o = 0;
+    for (size_t i = 0; i < len;) {
+        unsigned char c = in[i];
+        uint32_t cp;
+        size_t n;
+        if (c < 0x80) {
+            out[o++] = c;
+            ++i;
+            continue;
+        } else if ((c & 0xe0) == 0xc0) {
+            cp = c & 0x1f;
+            n = 1;
+        } else if ((c & 0xf0) == 0xe0) {
+            cp = c & 0x0f;
+            n = 2;
+        } else if ((c & 0xf8) == 0xf0) {
+            cp = c & 0x07;
+            n = 3;
+        } else {
+            out[o++] = 0xfffd;
+            ++i;
+            continue;
+        }
+
+        size_t k = 1;
+        while (k <= n && i + k < len && (in[i + k] & 0xc0) == 0x80) {
+            cp = (cp << 6) | (in[i + k] & 0x3f);
+            ++k;
+        }
+
+        // truncated, overlong, surrogate or out of range
+        if (k <= n
+            || (n == 1 && cp < 0x80)
+            || (n == 2 && (cp < 0x800 || (cp >= 0xd800 && cp <= 0xdfff)))
+            || (n == 3 && (cp < 0x10000 || cp > 0x10ffff))) {
+            out[o++] = 0xfffd;
+            i += k;
+            continue;
+        }
+
+        if (cp >= 0x10000) {
+            cp -= 0x10000;
+            out[o++] = (jchar) (0xd800 + (cp >> 10));
+            out[o++] = (jchar) (0xdc00 + (cp & 0x3ff));
+        } else {
+            out[o++] = (jchar) cp;
+        }
+        i += k;
+    }
+    return o;
+}
+
+/**
+ * Hands the client cut text over to InputService.onCutText() as a single String, decoding it
+ * natively according to the encoding it was sent in.
+ */
+static void dispatchCutText(const char *text, int len, int isUTF8, rfbClientPtr cl)
+{
+    JNIEnv *env = getEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onCutText: could not attach thread, there will be no input");
         return;
     }
 
-    //Charset charset = Charset.forName("ISO-8859-1")
-    jclass clsCharset =  (*env)->FindClass(env,"java/nio/charset/Charset");
-    jmethodID midCharsetForName = (*env)->GetStaticMethodID(env, clsCharset, "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;");
-    jobject charset = (*env)->CallStaticObjectMethod(env, clsCharset, midCharsetForName, (*env)->NewStringUTF(env, "ISO-8859-1"));
+    if (!text || len < 0)
+        return;
 
-    //CharBuffer charBuffer = charset.decode(byteBuffer)
-    jobject byteBuffer = (*env)->NewDirectByteBuffer(env, (jbyte *)text, strlen(text));
-    jmethodID midCharsetDecode = (*env)->GetMethodID(env, clsCharset, "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/CharBuffer;");
-    jobject charBuffer = (*env)->CallObjectMethod(env, charset, midCharsetDecode, byteBuffer);
-    (*env)->DeleteLocalRef(env, byteBuffer);
+    // both Latin-1 and UTF-8 decode to at most one jchar per byte
+    cutTextBuffer *buffer = getCutTextBuffer(len > 0 ? len : 1);
+    if (!buffer) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "onCutText: failed allocating buffer for %d bytes", len);
+        return;
+    }
+
+    size_t length;
+    if (isUTF8) {
+        length = decodeUTF8((const unsigned char *) text, len, buffer->data);
+    } else {
+        for (int i = 0; i < len; ++i)
+            buffer->data[i] = (unsigned char) text[i];
+        length = len;
+    }
 
-    //String jText = charBuffer.toString();
-    jclass clsCharBuffer = (*env)->FindClass(env, "java/nio/CharBuffer");
-    jmethodID midCharBufferToString = (*env)->GetMethodID(env, clsCharBuffer, "toString", "()Ljava/lang/String;");
-    jstring jText = (*env)->CallObjectMethod(env, charBuffer, midCharBufferToString);
-    (*env)->DeleteLocalRef(env, charBuffer);
+    jstring jText = (*env)->NewString(env, buffer->data, (jsize) length);
+    releaseCutTextBuffer(buffer);
+    if (!jText) {
+        // OutOfMemoryError pending
+        (*env)->ExceptionDescribe(env);
+        return;
+    }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theInputService, "onCutText", "(Ljava/lang/String;J)V");
-    (*env)->CallStaticVoidMethod(env, theInputService, mid, jText, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theInputService, theOnCutTextMethod, jText, (jlong)cl);
 
+    // as the thread stays attached, local refs would otherwise pile up
     (*env)->DeleteLocalRef(env, jText);
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
+}
 
-    (*theVM)->DetachCurrentThread(theVM);
+static void onCutText(char *text, int len, rfbClientPtr cl)
+{
+    dispatchCutText(text, len, 0, cl);
+}
+
+static void onCutTextUTF8(char *text, int len, rfbClientPtr cl)
+{
+    dispatchCutText(text, len, 1, cl);
 }
 
 void onClientDisconnected(rfbClientPtr cl)
 {
-    JNIEnv *env = NULL;
-    // check if already attached. happens on reverse connections
-    (*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6);
-    int wasAlreadyAttached = env != NULL;
-    // AttachCurrentThread() on an already attached thread is a no-op. https://developer.android.com/training/articles/perf-jni#threads
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    pthread_mutex_lock(&theClientStatsMutex);
+    stats_client_free(cl->clientData);
+    cl->clientData = NULL;
+    pthread_mutex_unlock(&theClientStatsMutex);
+
+    JNIEnv *env = getEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onClientDisconnected: could not attach thread, not calling MainService.onClientDisconnected()");
         return;
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theMainService, "onClientDisconnected", "(J)V");
-    (*env)->CallStaticVoidMethod(env, theMainService, mid, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theMainService, theOnClientDisconnectedMethod, (jlong)cl);
 
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
 
-    // only detach if not attached before
-    if (!wasAlreadyAttached)
-        (*theVM)->DetachCurrentThread(theVM);
+    long long count = atomic_load(&theInputDispatchCount);
+    if (count > 0)
+        __android_log_print(ANDROID_LOG_INFO, TAG, "onClientDisconnected: input dispatch latency over %lld events: avg %.3f ms, max %.3f ms",
+                            count,
+                            (double) atomic_load(&theInputDispatchTotalNs) / count / 1000000,
+                            (double) atomic_load(&theInputDispatchMaxNs) / 1000000);
+    long long dropped = atomic_load(&theInputQueue.dropped);
+    long long coalesced = atomic_load(&theInputQueue.coalesced);
+    if (dropped > 0 || coalesced > 0)
+        __android_log_print(ANDROID_LOG_INFO, TAG, "onClientDisconnected: input queue dropped %lld events, coalesced %lld pointer moves",
+                            dropped, coalesced);
 }
 
 #pragma clang diagnostic push
@@ -171,28 +505,28 @@ static enum rfbNewClientAction onClientConnected(rfbClientPtr cl)
     // connect clientGoneHook
     cl->clientGoneHook = onClientDisconnected;
 
+    // only changes sent from now on count
+    stats_client *stats = stats_client_new();
+    if (stats)
+        stats->lastSentModifiedFrame = stats_latest_modified_frame();
+    pthread_mutex_lock(&theClientStatsMutex);
+    cl->clientData = stats;
+    pthread_mutex_unlock(&theClientStatsMutex);
+
     /*
      * call the managed version of this function
      */
-    JNIEnv *env = NULL;
-    // check if already attached. happens on reverse connections
-    (*theVM)->GetEnv(theVM, (void **) &env, JNI_VERSION_1_6);
-    int wasAlreadyAttached = env != NULL;
-    // AttachCurrentThread() on an already attached thread is a no-op. https://developer.android.com/training/articles/perf-jni#threads
-    if ((*theVM)->AttachCurrentThread(theVM, &env, NULL) != 0) {
+    JNIEnv *env = getEnv();
+    if (!env) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "onClientConnected: could not attach thread, not calling MainService.onClientConnected()");
         return RFB_CLIENT_ACCEPT;
     }
 
-    jmethodID mid = (*env)->GetStaticMethodID(env, theMainService, "onClientConnected", "(J)V");
-    (*env)->CallStaticVoidMethod(env, theMainService, mid, (jlong)cl);
+    (*env)->CallStaticVoidMethod(env, theMainService, theOnClientConnectedMethod, (jlong)cl);
 
     if ((*env)->ExceptionCheck(env))
         (*env)->ExceptionDescribe(env);
 
-    // only detach if not attached before
-    if(!wasAlreadyAttached)
-        (*theVM)->DetachCurrentThread(theVM);
     return RFB_CLIENT_ACCEPT;
 }
 #pragma clang diagnostic pop
@@ -255,6 +589,19 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
     theInputService = (*env)->NewGlobalRef(env, (*env)->FindClass(env, "net/christianbeier/droidvnc_ng/InputService"));
     theMainService = (*env)->NewGlobalRef(env, (*env)->FindClass(env, "net/christianbeier/droidvnc_ng/MainService"));
 
+    theOnCutTextMethod = (*env)->GetStaticMethodID(env, theInputService, "onCutText", "(Ljava/lang/String;J)V");
+    theOnClientConnectedMethod = (*env)->GetStaticMethodID(env, theMainService, "onClientConnected", "(J)V");
+    theOnClientDisconnectedMethod = (*env)->GetStaticMethodID(env, theMainService, "onClientDisconnected", "(J)V");
+
+    pthread_key_create(&theAttachedEnvKey, detachThread);
+    pthread_key_create(&theCutTextBufferKey, freeCutTextBuffer);
+
+    if(!inputqueue_init(&theInputQueue, INPUT_QUEUE_CAPACITY))
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "failed allocating input queue, there will be no input");
+
+    fbdiff_init();
+    __android_log_print(ANDROID_LOG_INFO, TAG, "using %s framebuffer compare-and-copy kernel\n", fbdiff_kernel_name());
+
     rfbLog = logcat_info;
     rfbErr = logcat_err;
     rfbMaxClientWait = 5000;
@@ -263,14 +610,18 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(__unused JNIEnv *env, __unused jobject thiz) {
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(JNIEnv *env, __unused jobject thiz) {
 
     if(!theScreen)
         return JNI_FALSE;
 
+    // let the input thread finish, also gets client threads waiting for room in the queue going
+    inputqueue_close(&theInputQueue);
     rfbShutdownServer(theScreen, TRUE);
-    free(theScreen->frameBuffer);
+    pthread_mutex_lock(&theIngestMutex);
+    freeFramebuffers(env, theFramebuffers);
     theScreen->frameBuffer = NULL;
+    ingest_free(&theIngest);
     free((char*)theScreen->desktopName); // always malloc'ed by us
     free(theScreen->httpDir); // always malloc'ed by us
     theScreen->desktopName = NULL;
@@ -281,6 +632,7 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
     }
     rfbScreenCleanup(theScreen);
     theScreen = NULL;
+    pthread_mutex_unlock(&theIngestMutex);
 
     __android_log_print(ANDROID_LOG_INFO, TAG, "vncStopServer: successfully stopped");
 
@@ -288,32 +640,75 @@ JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncS
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStartServer(JNIEnv *env, jobject thiz, jint width, jint height, jint port, jstring desktopname, jstring password, jstring httpRootDir) {
+/*
+ * Makes a screen LibVNCServer just set up with 2 bytes per pixel advertise RGB565, which is what
+ * Android captures in. LibVNCServer itself can only set up formats with equal bits per channel.
+ * Returns whether the format was changed.
+ */
+static int setRgb565Format(rfbScreenInfoPtr screen)
+{
+    if(screen->bitsPerPixel != 16)
+        return 0;
+
+    rfbPixelFormat *format = &screen->serverFormat;
+    format->depth = 16;
+    format->redMax = 31;
+    format->greenMax = 63;
+    format->blueMax = 31;
+    format->redShift = 11;
+    format->greenShift = 5;
+    format->blueShift = 0;
+    return 1;
+}
+
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncStartServer(JNIEnv *env, jobject thiz, jint width, jint height, jint bytesPerPixel, jint port, jstring desktopname, jstring password, jstring httpRootDir) {
 
     int argc = 0;
 
     if(theScreen)
         return JNI_FALSE;
 
+    if(bytesPerPixel != 2 && bytesPerPixel != 4) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncStartServer: %d bytes per pixel not supported", bytesPerPixel);
+        return JNI_FALSE;
+    }
+
     rfbRegisterTightVNCFileTransferExtension();
 
-    theScreen=rfbGetScreen(&argc, NULL, width, height, 8, 3, 4);
+    atomic_store(&theInputDispatchCount, 0);
+    atomic_store(&theInputDispatchTotalNs, 0);
+    atomic_store(&theInputDispatchMaxNs, 0);
+    stats_reset();
+    pthread_mutex_lock(&theInputConsumerMutex);
+    if(theInputQueue.slots)
+        inputqueue_open(&theInputQueue);
+    theInputBatchCount = 0;
+    ++theInputGeneration;
+    pthread_mutex_unlock(&theInputConsumerMutex);
+
+    theScreen=rfbGetScreen(&argc, NULL, width, height, bytesPerPixel == 2 ? 5 : 8, 3, bytesPerPixel);
     if(!theScreen) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "vncStartServer: failed allocating rfb screen");
         return JNI_FALSE;
     }
+    setRgb565Format(theScreen);
 
-    theScreen->frameBuffer=(char*)calloc(width * height * 4, 1);
-    if(!theScreen->frameBuffer) {
+    if(!allocFramebuffers(theFramebuffers, (size_t)width * height * bytesPerPixel)) {
         __android_log_print(ANDROID_LOG_ERROR, TAG, "vncStartServer: failed allocating framebuffer");
         Java_net_christianbeier_droidvnc_1ng_MainService_vncStopServer(env, thiz);
         return JNI_FALSE;
     }
+    theFrontFramebuffer = 0;
+    theScreen->frameBuffer = theFramebuffers[theFrontFramebuffer].data;
+    if(!ingest_init(&theIngest, theScreen))
+        __android_log_print(ANDROID_LOG_WARN, TAG, "vncStartServer: failed allocating scroll detection, disabled");
     theScreen->ptrAddEvent = onPointerEvent;
     theScreen->kbdAddEvent = onKeyEvent;
     theScreen->setXCutText = onCutText;
-    theScreen->setXCutTextUTF8 = onCutText;
+    theScreen->setXCutTextUTF8 = onCutTextUTF8;
     theScreen->newClientHook = onClientConnected;
+    theScreen->displayHook = onUpdateStart;
+    theScreen->displayFinishedHook = onUpdateFinished;
 
     theScreen->port = port;
     theScreen->ipv6port = port;
@@ -429,64 +824,404 @@ JNIEXPORT jlong JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncConn
 }
 
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncNewFramebuffer(__unused JNIEnv *env, __unused jobject thiz, jint width, jint height)
+/*
+ * Switches to a framebuffer of the given geometry, initially holding the given frame or black if
+ * that is NULL, so that clients get the new content right with the DesktopSize update. Reuses
+ * the framebuffer memory if it is large enough, as it is on rotation.
+ */
+static jboolean newFramebuffer(JNIEnv *env, const char *caller, int width, int height, const char *frame, int frameStride)
 {
-    rfbClientIteratorPtr iterator;
-    rfbClientPtr cl;
-
-    char *oldfb, *newfb;
+    const int bytesPerPixel = theScreen->bitsPerPixel / 8;
+    const size_t size = (size_t)width * height * bytesPerPixel;
+    framebuffer oldFramebuffers[2];
+    int reused = theFramebuffers[0].size >= size && theFramebuffers[1].size >= size;
+
+    if(reused) {
+        /*
+         * Nobody reads from the back buffer, so it becomes the new front one. Like after a swap,
+         * client threads might still be sending from the old front one, which stays allocated.
+         */
+        for (int i = 0; i < 2; ++i) {
+            // wrapping the old geometry
+            if(theFramebuffers[i].byteBuffer)
+                (*env)->DeleteGlobalRef(env, theFramebuffers[i].byteBuffer);
+            theFramebuffers[i].byteBuffer = NULL;
+        }
+        theFrontFramebuffer = !theFrontFramebuffer;
+    } else {
+        framebuffer newFramebuffers[2];
+        if(!allocFramebuffers(newFramebuffers, size)) {
+            __android_log_print(ANDROID_LOG_ERROR, TAG, "%s: failed allocating new framebuffer", caller);
+            return JNI_FALSE;
+        }
+        memcpy(oldFramebuffers, theFramebuffers, sizeof(theFramebuffers));
+        memcpy(theFramebuffers, newFramebuffers, sizeof(theFramebuffers));
+        theFrontFramebuffer = 0;
+    }
 
-    if(!theScreen || !theScreen->frameBuffer)
-        return JNI_FALSE;
+    char *front = theFramebuffers[theFrontFramebuffer].data;
+    if(frame) {
+        for (int y = 0; y < height; ++y)
+            memcpy(front + (size_t)y * width * bytesPerPixel, frame + (size_t)y * frameStride, (size_t)width * bytesPerPixel);
+    } else if(reused) {
+        memset(front, 0, size);
+    }
 
-    oldfb = theScreen->frameBuffer;
-    newfb = calloc(width * height * 4, 1);
-    if(!newfb) {
-        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncNewFramebuffer: failed allocating new framebuffer");
-        return JNI_FALSE;
+    rfbNewFramebuffer(theScreen, front, width, height, bytesPerPixel == 2 ? 5 : 8, 3, bytesPerPixel);
+    if(setRgb565Format(theScreen)) {
+        // rfbNewFramebuffer() set up clients' translation for the format it would have used
+        rfbClientIteratorPtr it = rfbGetClientIterator(theScreen);
+        rfbClientPtr cl;
+        while((cl = rfbClientIteratorNext(it)))
+            theScreen->setTranslateFunction(cl);
+        rfbReleaseClientIterator(it);
     }
 
-    rfbNewFramebuffer(theScreen, (char*)newfb, width, height, 8, 3, 4);
+    if(!ingest_framebuffer_changed(&theIngest))
+        __android_log_print(ANDROID_LOG_WARN, TAG, "%s: failed allocating scroll detection, disabled", caller);
 
-    free(oldfb);
-    __android_log_print(ANDROID_LOG_INFO, TAG, "vncNewFramebuffer: allocated new framebuffer, %dx%d", width, height);
+    if(!reused)
+        freeFramebuffers(env, oldFramebuffers);
+    __android_log_print(ANDROID_LOG_INFO, TAG, "%s: %s framebuffer, %dx%d", caller, reused ? "reused" : "allocated new", width, height);
 
     return JNI_TRUE;
 }
 
-JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebuffer(JNIEnv *env, jobject  __unused thiz, jobject buf)
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncNewFramebuffer(JNIEnv *env, __unused jobject thiz, jint width, jint height)
 {
-    void *cBuf = (*env)->GetDirectBufferAddress(env, buf);
+    pthread_mutex_lock(&theIngestMutex);
+    jboolean result = theScreen && theScreen->frameBuffer
+                      && newFramebuffer(env, "vncNewFramebuffer", width, height, NULL, 0);
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+/*
+ * Ingests the width x height region at x, y of a frame whose rows are rowStride bytes apart into
+ * the tightly packed framebuffer, reading it straight from the given direct buffer. Row padding
+ * as added by ImageReader and anything outside the region never ends up in the framebuffer.
+ * A region of another size than the framebuffer's switches to a new framebuffer showing it.
+ * To be called with theIngestMutex held.
+ */
+static jboolean updateFramebuffer(JNIEnv *env, const char *caller, jobject buf, jint x, jint y, jint width, jint height, jint rowStride, jint pixelStride)
+{
+    int64_t arrivalNs = stats_now();
+    char *cBuf = (*env)->GetDirectBufferAddress(env, buf);
     jlong bufSize = (*env)->GetDirectBufferCapacity(env, buf);
 
     if(!theScreen || !theScreen->frameBuffer || !cBuf || bufSize < 0)
         return JNI_FALSE;
 
-    double t0 = getTime();
-    memcpy(theScreen->frameBuffer, cBuf, bufSize);
+    if(width <= 0 || height <= 0 || pixelStride != theScreen->bitsPerPixel / 8) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "%s: buffer geometry %dx%d, %d bytes per pixel not supported",
+                            caller, width, height, pixelStride);
+        return JNI_FALSE;
+    }
 
-    // only comment in when needed
-    //__android_log_print(ANDROID_LOG_DEBUG, TAG, "vncUpdateFramebuffer: copy took %.3f ms", (getTime()-t0)*1000);
+    // the last row does not need to be padded
+    if(x < 0 || y < 0
+       || rowStride < (x + width) * pixelStride
+       || bufSize < (jlong)rowStride * (y + height - 1) + (jlong)(x + width) * pixelStride) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "%s: buffer too small for framebuffer", caller);
+        return JNI_FALSE;
+    }
+
+    const char *src = cBuf + (long)y * rowStride + (long)x * pixelStride;
+
+    if((width != theScreen->width || height != theScreen->height)
+       && !newFramebuffer(env, caller, width, height, src, rowStride))
+        return JNI_FALSE;
 
-    rfbMarkRectAsModified(theScreen, 0, 0, theScreen->width, theScreen->height);
+    ingest_frame(&theIngest, src, rowStride, arrivalNs);
 
     return JNI_TRUE;
 }
 
-JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFramebufferWidth(__unused JNIEnv *env, jobject __unused thiz)
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebufferStrided(JNIEnv *env, jobject  __unused thiz, jobject buf, jint width, jint height, jint rowStride, jint pixelStride)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    jboolean result = updateFramebuffer(env, "vncUpdateFramebufferStrided", buf, 0, 0, width, height, rowStride, pixelStride);
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+/*
+ * Like vncUpdateFramebufferStrided(), but for a frame that is larger than the framebuffer, of
+ * which only the region at x, y is ingested. Crops without any intermediate copy.
+ */
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebufferCropped(JNIEnv *env, jobject  __unused thiz, jobject buf, jint x, jint y, jint width, jint height, jint rowStride, jint pixelStride)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    jboolean result = updateFramebuffer(env, "vncUpdateFramebufferCropped", buf, x, y, width, height, rowStride, pixelStride);
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+/*
+ * Returns a direct ByteBuffer wrapping the current back buffer. Capture backends that produce a
+ * whole frame anyway can write it into this and publish it with vncSwapFramebuffer(), saving the
+ * copy vncUpdateFramebufferStrided() does. The ByteBuffer is cached, so callers must reset its position.
+ * To be called with theIngestMutex held.
+ */
+static jobject getBackBuffer(JNIEnv *env)
 {
     if(!theScreen || !theScreen->frameBuffer)
+        return NULL;
+
+    framebuffer *back = &theFramebuffers[!theFrontFramebuffer];
+    if(!back->byteBuffer) {
+        jobject byteBuffer = (*env)->NewDirectByteBuffer(env, back->data, (jlong)theScreen->paddedWidthInBytes * theScreen->height);
+        if(!byteBuffer) {
+            __android_log_print(ANDROID_LOG_ERROR, TAG, "vncGetBackBuffer: failed creating direct ByteBuffer");
+            return NULL;
+        }
+        back->byteBuffer = (*env)->NewGlobalRef(env, byteBuffer);
+        (*env)->DeleteLocalRef(env, byteBuffer);
+    }
+
+    return (*env)->NewLocalRef(env, back->byteBuffer);
+}
+
+JNIEXPORT jobject JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetBackBuffer(JNIEnv *env, jobject __unused thiz)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    jobject result = getBackBuffer(env);
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+/*
+ * Keeps track of which of the two framebuffers ingestion made the front one.
+ */
+static void updateFrontFramebuffer()
+{
+    theFrontFramebuffer = theScreen->frameBuffer == theFramebuffers[1].data;
+}
+
+/*
+ * Publishes the back buffer as the new front buffer by pointer exchange and marks what changed
+ * compared to the previous front buffer, which in turn becomes the back buffer. The back buffer
+ * thus always holds an outdated frame and must be completely rewritten before the next swap.
+ */
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncSwapFramebuffer(__unused JNIEnv *env, jobject __unused thiz)
+{
+    int64_t arrivalNs = stats_now();
+
+    pthread_mutex_lock(&theIngestMutex);
+    if(!theScreen || !theScreen->frameBuffer) {
+        pthread_mutex_unlock(&theIngestMutex);
+        return JNI_FALSE;
+    }
+
+    ingest_publish(&theIngest, theFramebuffers[!theFrontFramebuffer].data, arrivalNs);
+    updateFrontFramebuffer();
+    pthread_mutex_unlock(&theIngestMutex);
+
+    return JNI_TRUE;
+}
+
+/*
+ * Scales a tightly packed 32-bit frame of the given size straight into the back buffer, then
+ * publishes that like vncSwapFramebuffer(). For capture backends that can't deliver frames in the
+ * framebuffer's size or format. The scaler is only set up again when the geometry changes.
+ * Returns 1 if the frame differs from the previous one, 0 if it is identical and -1 on error.
+ * To be called with theIngestMutex held.
+ */
+static jint updateFramebufferScaled(JNIEnv *env, jobject buf, jint srcWidth, jint srcHeight, jint rowStride)
+{
+    int64_t arrivalNs = stats_now();
+    char *cBuf = (*env)->GetDirectBufferAddress(env, buf);
+    jlong bufSize = (*env)->GetDirectBufferCapacity(env, buf);
+
+    if(!theScreen || !theScreen->frameBuffer || !cBuf || bufSize < 0)
         return -1;
 
-    return theScreen->width;
+    if(srcWidth <= 0 || srcHeight <= 0
+       || rowStride < srcWidth * 4
+       || bufSize < (jlong)rowStride * (srcHeight - 1) + (jlong)srcWidth * 4) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebufferScaled: buffer geometry %dx%d, row stride %d does not fit",
+                            srcWidth, srcHeight, rowStride);
+        return -1;
+    }
+
+    int result = ingest_scaled(&theIngest, cBuf, srcWidth, srcHeight, rowStride, theFramebuffers[!theFrontFramebuffer].data, arrivalNs);
+    if(result < 0)
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "vncUpdateFramebufferScaled: failed setting up scaler");
+    updateFrontFramebuffer();
+
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncUpdateFramebufferScaled(JNIEnv *env, jobject __unused thiz, jobject buf, jint srcWidth, jint srcHeight, jint rowStride)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    jint result = updateFramebufferScaled(env, buf, srcWidth, srcHeight, rowStride);
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFramebufferWidth(__unused JNIEnv *env, jobject __unused thiz)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    jint result = theScreen && theScreen->frameBuffer ? theScreen->width : -1;
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
 }
 
 JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetFramebufferHeight(__unused JNIEnv *env, jobject __unused thiz)
 {
-    if(!theScreen || !theScreen->frameBuffer)
+    pthread_mutex_lock(&theIngestMutex);
+    jint result = theScreen && theScreen->frameBuffer ? theScreen->height : -1;
+    pthread_mutex_unlock(&theIngestMutex);
+    return result;
+}
+
+/*
+ * Tells whether any client has an outstanding FramebufferUpdateRequest, i.e. whether ingesting a
+ * frame now would lead to something being sent. If captured is true, the call also counts a frame
+ * delivered by the capture backend for the statistics.
+ */
+JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncIsFrameWanted(__unused JNIEnv *env, jobject __unused thiz, jboolean captured)
+{
+    pthread_mutex_lock(&theIngestMutex);
+    if(!theScreen || !theScreen->frameBuffer) {
+        pthread_mutex_unlock(&theIngestMutex);
+        return JNI_FALSE;
+    }
+
+    if(captured)
+        stats_count_captured_frame();
+
+    jboolean wanted = JNI_FALSE;
+    rfbClientIteratorPtr it = rfbGetClientIterator(theScreen);
+    rfbClientPtr cl;
+    while(!wanted && (cl = rfbClientIteratorNext(it))) {
+        pthread_mutex_lock(&cl->updateMutex);
+        wanted = !sraRgnEmpty(cl->requestedRegion);
+        pthread_mutex_unlock(&cl->updateMutex);
+    }
+    rfbReleaseClientIterator(it);
+    pthread_mutex_unlock(&theIngestMutex);
+
+    return wanted;
+}
+
+/*
+ * Returns a snapshot of the pipeline statistics as a flat array: the frame block of
+ * STATS_FRAME_BLOCK_SIZE values, the number of clients, then one block of STATS_CLIENT_BLOCK_SIZE
+ * values per client. See stats.h for the block layouts.
+ */
+JNIEXPORT jlongArray JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetStats(JNIEnv *env, jobject __unused thiz)
+{
+    if(!theScreen)
+        return NULL;
+
+    pthread_mutex_lock(&theClientStatsMutex);
+
+    int clientCount = 0;
+    rfbClientIteratorPtr it = rfbGetClientIterator(theScreen);
+    while(rfbClientIteratorNext(it))
+        ++clientCount;
+    rfbReleaseClientIterator(it);
+
+    jsize size = STATS_FRAME_BLOCK_SIZE + 1 + clientCount * STATS_CLIENT_BLOCK_SIZE;
+    int64_t *values = calloc(size, sizeof(int64_t));
+    if(!values) {
+        pthread_mutex_unlock(&theClientStatsMutex);
+        return NULL;
+    }
+
+    stats_frames_snapshot(values);
+
+    // clients that connected since counting are left out, ones leaving block in onClientDisconnected()
+    int i = 0;
+    it = rfbGetClientIterator(theScreen);
+    rfbClientPtr cl;
+    while((cl = rfbClientIteratorNext(it)) && i < clientCount) {
+        if(!cl->clientData)
+            continue;
+        int64_t *block = values + STATS_FRAME_BLOCK_SIZE + 1 + i * STATS_CLIENT_BLOCK_SIZE;
+        block[STATS_CLIENT_ID] = (jlong)cl;
+        stats_client_snapshot(cl->clientData, block);
+        int unsent;
+        if(ioctl(cl->sock, SIOCOUTQ, &unsent) == 0)
+            block[STATS_CLIENT_SEND_BACKLOG] = unsent;
+        ++i;
+    }
+    rfbReleaseClientIterator(it);
+
+    pthread_mutex_unlock(&theClientStatsMutex);
+
+    values[STATS_FRAME_BLOCK_SIZE] = i;
+    size = STATS_FRAME_BLOCK_SIZE + 1 + i * STATS_CLIENT_BLOCK_SIZE;
+
+    jlongArray result = (*env)->NewLongArray(env, size);
+    if(result)
+        (*env)->SetLongArrayRegion(env, result, 0, size, (const jlong *)values);
+    free(values);
+    return result;
+}
+
+/*
+ * Returns the input generation of the running server to pass to vncWaitInputEvents().
+ */
+JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncGetInputGeneration(JNIEnv __unused *env, jobject __unused thiz)
+{
+    pthread_mutex_lock(&theInputConsumerMutex);
+    int generation = theInputGeneration;
+    pthread_mutex_unlock(&theInputConsumerMutex);
+    return generation;
+}
+
+/*
+ * Waits for pointer and key events and fills them into the given array, INPUT_EVENT_SIZE values
+ * each. Only to be called from one thread per generation, which is also expected to have handled
+ * the events of the previous call when calling again. Returns the number of events or -1 once the
+ * server stopped or the given generation is over.
+ */
+JNIEXPORT jint JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncWaitInputEvents(JNIEnv *env, jobject __unused thiz, jlongArray events, jint generation)
+{
+    int max = (*env)->GetArrayLength(env, events) / INPUT_EVENT_SIZE;
+    if(max > INPUT_BATCH_MAX)
+        max = INPUT_BATCH_MAX;
+
+    pthread_mutex_lock(&theInputConsumerMutex);
+    if(generation != theInputGeneration) {
+        pthread_mutex_unlock(&theInputConsumerMutex);
         return -1;
+    }
 
-    return theScreen->height;
+    int64_t handledNs = stats_now();
+    for(int i = 0; i < theInputBatchCount; ++i)
+        recordInputDispatch(theInputBatch[i].timestampNs, handledNs);
+    theInputBatchCount = 0;
+
+    if(max < 1) {
+        pthread_mutex_unlock(&theInputConsumerMutex);
+        return 0;
+    }
+
+    int count = inputqueue_take(&theInputQueue, theInputBatch, max);
+    if(count < 0) {
+        pthread_mutex_unlock(&theInputConsumerMutex);
+        return -1;
+    }
+
+    jlong values[INPUT_BATCH_MAX * INPUT_EVENT_SIZE];
+    for(int i = 0; i < count; ++i) {
+        jlong *value = values + i * INPUT_EVENT_SIZE;
+        value[INPUT_EVENT_CLIENT] = theInputBatch[i].client;
+        value[INPUT_EVENT_TYPE] = theInputBatch[i].type;
+        value[INPUT_EVENT_BUTTONS] = theInputBatch[i].buttons;
+        value[INPUT_EVENT_X] = theInputBatch[i].x;
+        value[INPUT_EVENT_Y] = theInputBatch[i].y;
+        value[INPUT_EVENT_KEYSYM] = theInputBatch[i].keysym;
+        value[INPUT_EVENT_TIMESTAMP] = theInputBatch[i].timestampNs;
+    }
+    theInputBatchCount = count;
+    pthread_mutex_unlock(&theInputConsumerMutex);
+    (*env)->SetLongArrayRegion(env, events, 0, count * INPUT_EVENT_SIZE, values);
+    return count;
 }
 
 JNIEXPORT jboolean JNICALL Java_net_christianbeier_droidvnc_1ng_MainService_vncIsActive(JNIEnv *env, jobject thiz) {
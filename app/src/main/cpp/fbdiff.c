@@ -0,0 +1,140 @@
+/*
+ * DroidVNC-NG framebuffer change detection.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <string.h>
+#include "fbdiff.h"
+#include "fbdiff_simd.h"
+
+#if defined(FBDIFF_ENABLE_NEON) && defined(__arm__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+
+static int (*cmpcpyRow)(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy) = fbdiff_cmpcpy_row_scalar;
+static const char *cmpcpyName = "scalar";
+
+void fbdiff_init(void)
+{
+    /*
+     * Which kernels are compiled in is decided per ABI in CMakeLists.txt, which one is used is
+     * decided here at runtime.
+     */
+#if defined(FBDIFF_ENABLE_NEON)
+#if defined(__arm__)
+    // NEON is optional on armeabi-v7a
+    if (getauxval(AT_HWCAP) & HWCAP_NEON) {
+        cmpcpyRow = fbdiff_cmpcpy_row_neon;
+        cmpcpyName = "neon";
+    }
+#else
+    // and mandatory on arm64-v8a
+    cmpcpyRow = fbdiff_cmpcpy_row_neon;
+    cmpcpyName = "neon";
+#endif
+#endif
+
+#if defined(FBDIFF_ENABLE_SSE2)
+    // SSE2 is part of the x86 and x86_64 ABI baseline
+    cmpcpyRow = fbdiff_cmpcpy_row_sse2;
+    cmpcpyName = "sse2";
+#endif
+
+#if defined(FBDIFF_ENABLE_AVX2)
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2")) {
+        cmpcpyRow = fbdiff_cmpcpy_row_avx2;
+        cmpcpyName = "avx2";
+    }
+#endif
+}
+
+const char *fbdiff_kernel_name(void)
+{
+    return cmpcpyName;
+}
+
+/*
+ * Common implementation of fbdiff_update() and fbdiff_compare(), dst is only written to if copy is set.
+ */
+static int diff(char *dst, int dstStride,
+                const char *src, int srcStride,
+                int width, int height, int bytesPerPixel,
+                fbdiff_rect_cb cb, void *userdata,
+                int copy)
+{
+    if (!dst || !src || width <= 0 || height <= 0)
+        return 0;
+
+    const int tilesX = (width + FBDIFF_TILE_SIZE - 1) / FBDIFF_TILE_SIZE;
+    const int rowBytes = width * bytesPerPixel;
+    unsigned char dirty[tilesX];
+    int changedTiles = 0;
+
+    for (int ty = 0; ty < height; ty += FBDIFF_TILE_SIZE) {
+        const int tileHeight = ty + FBDIFF_TILE_SIZE <= height ? FBDIFF_TILE_SIZE : height - ty;
+        memset(dirty, 0, sizeof(dirty));
+
+        /*
+         * Walk the band of tiles row by row instead of tile by tile, this keeps memory access linear.
+         * Once a tile is known to be dirty, the rest of its rows are copied without comparing.
+         */
+        for (int y = ty; y < ty + tileHeight; ++y)
+            cmpcpyRow(dst + (long) y * dstStride,
+                      src + (long) y * srcStride,
+                      rowBytes,
+                      FBDIFF_TILE_SIZE * bytesPerPixel,
+                      dirty,
+                      copy);
+
+        // report horizontal runs of changed tiles in this band
+        for (int tx = 0; tx < tilesX; ++tx) {
+            if (!dirty[tx])
+                continue;
+            int runStart = tx;
+            while (tx + 1 < tilesX && dirty[tx + 1])
+                ++tx;
+            changedTiles += tx - runStart + 1;
+            if (cb) {
+                int x2 = (tx + 1) * FBDIFF_TILE_SIZE;
+                cb(runStart * FBDIFF_TILE_SIZE, ty, x2 < width ? x2 : width, ty + tileHeight, userdata);
+            }
+        }
+    }
+
+    return changedTiles;
+}
+
+int fbdiff_update(char *dst, int dstStride,
+                  const char *src, int srcStride,
+                  int width, int height, int bytesPerPixel,
+                  fbdiff_rect_cb cb, void *userdata)
+{
+    return diff(dst, dstStride, src, srcStride, width, height, bytesPerPixel, cb, userdata, 1);
+}
+
+int fbdiff_compare(const char *a, int aStride,
+                   const char *b, int bStride,
+                   int width, int height, int bytesPerPixel,
+                   fbdiff_rect_cb cb, void *userdata)
+{
+    // casting away const is fine here, nothing is written when not copying
+    return diff((char *) a, aStride, b, bStride, width, height, bytesPerPixel, cb, userdata, 0);
+}
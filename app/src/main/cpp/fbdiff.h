@@ -0,0 +1,83 @@
+/*
+ * DroidVNC-NG framebuffer change detection.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_FBDIFF_H
+#define DROIDVNC_NG_FBDIFF_H
+
+/*
+ * This is deliberately free of JNI and LibVNCServer dependencies so that it can be built and
+ * tested on the host with synthetic frames, see app/src/test/cpp.
+ */
+
+/**
+ * Edge length in pixels of the square tiles the framebuffer is compared in.
+ */
+#define FBDIFF_TILE_SIZE 32
+
+/**
+ * Called for each rectangle of changed pixels. x2 and y2 are exclusive, like with rfbMarkRectAsModified().
+ */
+typedef void (*fbdiff_rect_cb)(int x1, int y1, int x2, int y2, void *userdata);
+
+/**
+ * Selects the fastest compare-and-copy kernel available on this CPU. Must be called once before
+ * fbdiff_update(), which otherwise uses the scalar fallback.
+ */
+void fbdiff_init(void);
+
+/**
+ * @return Name of the selected compare-and-copy kernel.
+ */
+const char *fbdiff_kernel_name(void);
+
+/**
+ * Compares the new frame in src with the current contents of dst in tiles of FBDIFF_TILE_SIZE
+ * and copies over only the rows of tiles that differ, comparing and copying in one pass.
+ * Horizontally adjacent changed tiles are reported as one rectangle via the given callback.
+ *
+ * @param dst Destination framebuffer, holding the previous frame.
+ * @param dstStride Length of one dst row in bytes.
+ * @param src Source buffer, holding the new frame.
+ * @param srcStride Length of one src row in bytes.
+ * @param width Width of the area to compare in pixels.
+ * @param height Height of the area to compare in pixels.
+ * @param bytesPerPixel Bytes per pixel of both buffers.
+ * @param cb Callback for changed rectangles, can be NULL.
+ * @param userdata Passed on to the callback.
+ * @return The number of changed tiles.
+ */
+int fbdiff_update(char *dst, int dstStride,
+                  const char *src, int srcStride,
+                  int width, int height, int bytesPerPixel,
+                  fbdiff_rect_cb cb, void *userdata);
+
+/**
+ * Like fbdiff_update(), but only compares a and b without copying anything. Used when a new
+ * frame was written to a separate buffer that is swapped in instead of copied.
+ *
+ * @return The number of changed tiles.
+ */
+int fbdiff_compare(const char *a, int aStride,
+                   const char *b, int bStride,
+                   int width, int height, int bytesPerPixel,
+                   fbdiff_rect_cb cb, void *userdata);
+
+#endif //DROIDVNC_NG_FBDIFF_H
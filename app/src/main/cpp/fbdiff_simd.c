@@ -0,0 +1,163 @@
+/*
+ * DroidVNC-NG framebuffer compare-and-copy kernels.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdint.h>
+#include <string.h>
+#include "fbdiff_simd.h"
+
+#if defined(FBDIFF_ENABLE_NEON)
+#include <arm_neon.h>
+#endif
+
+#if defined(FBDIFF_ENABLE_SSE2) || defined(FBDIFF_ENABLE_AVX2)
+#include <immintrin.h>
+#endif
+
+/*
+ * Common tail of all segment compares: compare remaining bytes starting at i, copy from first difference on if asked to.
+ */
+static inline int cmpcpy_tail(char *dst, const char *src, int i, int len, int copy)
+{
+    for (; i < len; ++i) {
+        if (dst[i] != src[i]) {
+            if (copy)
+                memcpy(dst + i, src + i, len - i);
+            return 1;
+        }
+    }
+    return 0;
+}
+
+/*
+ * The row loop shared by all kernels, instantiated per kernel so that the segment compare gets
+ * inlined and, for AVX2, compiled with the right target. Runs of segments that are already known
+ * to be dirty are copied with one memcpy() or skipped when only comparing.
+ */
+#define FBDIFF_ROW_KERNEL(NAME, ATTR, SEGMENT_CMPCPY)                                   \
+ATTR int NAME(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy) \
+{                                                                                       \
+    int changed = 0;                                                                    \
+    for (int seg = 0, off = 0; off < len; ++seg, off += segmentLen) {                   \
+        if (dirty[seg]) {                                                               \
+            int runEnd = seg;                                                           \
+            while ((runEnd + 1) * segmentLen < len && dirty[runEnd + 1])                \
+                ++runEnd;                                                               \
+            int end = (runEnd + 1) * segmentLen < len ? (runEnd + 1) * segmentLen : len;\
+            if (copy)                                                                   \
+                memcpy(dst + off, src + off, end - off);                                \
+            changed = 1;                                                                \
+            off = runEnd * segmentLen;                                                  \
+            seg = runEnd;                                                               \
+        } else {                                                                        \
+            int n = off + segmentLen <= len ? segmentLen : len - off;                   \
+            if (SEGMENT_CMPCPY(dst + off, src + off, n, copy)) {                        \
+                dirty[seg] = 1;                                                         \
+                changed = 1;                                                            \
+            }                                                                           \
+        }                                                                               \
+    }                                                                                   \
+    return changed;                                                                     \
+}
+
+static inline int cmpcpy_scalar(char *dst, const char *src, int len, int copy)
+{
+    int i = 0;
+    // word-wise while possible, unaligned access is fine on all ABIs we build for
+    for (; i + (int)sizeof(uint64_t) <= len; i += sizeof(uint64_t)) {
+        uint64_t a, b;
+        memcpy(&a, dst + i, sizeof(a));
+        memcpy(&b, src + i, sizeof(b));
+        if (a != b) {
+            if (copy)
+                memcpy(dst + i, src + i, len - i);
+            return 1;
+        }
+    }
+    return cmpcpy_tail(dst, src, i, len, copy);
+}
+
+FBDIFF_ROW_KERNEL(fbdiff_cmpcpy_row_scalar, , cmpcpy_scalar)
+
+#if defined(FBDIFF_ENABLE_NEON)
+static inline int cmpcpy_neon(char *dst, const char *src, int len, int copy)
+{
+    int i = 0;
+    for (; i + 32 <= len; i += 32) {
+        uint8x16_t eq0 = vceqq_u8(vld1q_u8((const uint8_t *) dst + i), vld1q_u8((const uint8_t *) src + i));
+        uint8x16_t eq1 = vceqq_u8(vld1q_u8((const uint8_t *) dst + i + 16), vld1q_u8((const uint8_t *) src + i + 16));
+        uint8x16_t eq = vandq_u8(eq0, eq1);
+#if defined(__aarch64__)
+        int differs = vminvq_u8(eq) != 0xff;
+#else
+        uint32x2_t eq32 = vreinterpret_u32_u8(vand_u8(vget_low_u8(eq), vget_high_u8(eq)));
+        int differs = (vget_lane_u32(eq32, 0) & vget_lane_u32(eq32, 1)) != 0xffffffff;
+#endif
+        if (differs) {
+            if (copy)
+                memcpy(dst + i, src + i, len - i);
+            return 1;
+        }
+    }
+    return cmpcpy_tail(dst, src, i, len, copy);
+}
+
+FBDIFF_ROW_KERNEL(fbdiff_cmpcpy_row_neon, , cmpcpy_neon)
+#endif
+
+#if defined(FBDIFF_ENABLE_SSE2)
+static inline int cmpcpy_sse2(char *dst, const char *src, int len, int copy)
+{
+    int i = 0;
+    for (; i + 32 <= len; i += 32) {
+        __m128i eq0 = _mm_cmpeq_epi8(_mm_loadu_si128((const __m128i *) (dst + i)), _mm_loadu_si128((const __m128i *) (src + i)));
+        __m128i eq1 = _mm_cmpeq_epi8(_mm_loadu_si128((const __m128i *) (dst + i + 16)), _mm_loadu_si128((const __m128i *) (src + i + 16)));
+        if (_mm_movemask_epi8(_mm_and_si128(eq0, eq1)) != 0xffff) {
+            if (copy)
+                memcpy(dst + i, src + i, len - i);
+            return 1;
+        }
+    }
+    return cmpcpy_tail(dst, src, i, len, copy);
+}
+
+FBDIFF_ROW_KERNEL(fbdiff_cmpcpy_row_sse2, , cmpcpy_sse2)
+#endif
+
+#if defined(FBDIFF_ENABLE_AVX2)
+// compiled for AVX2 regardless of the ABI baseline, only ever called after runtime detection
+__attribute__((target("avx2")))
+static inline int cmpcpy_avx2(char *dst, const char *src, int len, int copy)
+{
+    int i = 0;
+    for (; i + 64 <= len; i += 64) {
+        __m256i eq0 = _mm256_cmpeq_epi8(_mm256_loadu_si256((const __m256i *) (dst + i)), _mm256_loadu_si256((const __m256i *) (src + i)));
+        __m256i eq1 = _mm256_cmpeq_epi8(_mm256_loadu_si256((const __m256i *) (dst + i + 32)), _mm256_loadu_si256((const __m256i *) (src + i + 32)));
+        if ((unsigned int) _mm256_movemask_epi8(_mm256_and_si256(eq0, eq1)) != 0xffffffffu) {
+            if (copy)
+                memcpy(dst + i, src + i, len - i);
+            return 1;
+        }
+    }
+    return cmpcpy_tail(dst, src, i, len, copy);
+}
+
+FBDIFF_ROW_KERNEL(fbdiff_cmpcpy_row_avx2, __attribute__((target("avx2"))), cmpcpy_avx2)
+#endif
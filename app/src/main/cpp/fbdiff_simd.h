@@ -0,0 +1,48 @@
+/*
+ * DroidVNC-NG framebuffer compare-and-copy kernels.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_FBDIFF_SIMD_H
+#define DROIDVNC_NG_FBDIFF_SIMD_H
+
+/*
+ * Internal to fbdiff.c. All kernels share the same contract: process one row of len bytes that is
+ * divided into segments of segmentLen bytes, one per tile. For each segment not yet flagged in
+ * dirty, compare dst and src and, starting at the first difference, copy the rest of the segment
+ * from src to dst, all in one pass, then flag the segment. Segments already flagged are copied
+ * without comparing. If copy is zero, only compare and flag, leaving dst untouched. Return non-zero
+ * if anything in the row changed.
+ */
+
+int fbdiff_cmpcpy_row_scalar(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy);
+
+#if defined(FBDIFF_ENABLE_NEON)
+int fbdiff_cmpcpy_row_neon(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy);
+#endif
+
+#if defined(FBDIFF_ENABLE_SSE2)
+int fbdiff_cmpcpy_row_sse2(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy);
+#endif
+
+#if defined(FBDIFF_ENABLE_AVX2)
+int fbdiff_cmpcpy_row_avx2(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy);
+#endif
+
+#endif //DROIDVNC_NG_FBDIFF_SIMD_H
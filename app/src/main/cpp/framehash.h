@@ -0,0 +1,94 @@
+/*
+ * DroidVNC-NG frame hashing.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_FRAMEHASH_H
+#define DROIDVNC_NG_FRAMEHASH_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+/*
+ * Hashes frames row by row and remembers the previous frame's hashes, so that a frame identical
+ * to the previous one can be rejected before anything is copied or compared, and otherwise only
+ * the stripes of rows that changed need to be looked at. The row hashes are the ones scroll
+ * detection works on, so it can reuse them instead of reading the frame once more.
+ *
+ * The hash is a 64-bit multiply-xor one in four independent lanes, running at about memory speed
+ * on all ABIs without needing CPU-specific instructions.
+ *
+ * Like fbdiff, this is free of JNI and LibVNCServer dependencies, see app/src/test/cpp.
+ */
+
+typedef struct {
+    int width;
+    int height;
+    int bytesPerPixel;
+    int stripeRows;
+    int stripes;
+    int valid;              // whether prevHashes describes the previous frame
+    uint64_t *prevHashes;   // per row
+    uint64_t *hashes;       // per row, of the frame passed to the last framehash_update()
+    unsigned char *changed; // per stripe, result of the last framehash_update()
+} framehash;
+
+/**
+ * Hashes a block of memory, used for rows.
+ */
+uint64_t framehash_bytes(const void *data, size_t len);
+
+/**
+ * Sets up hashing of frames of the given geometry, reporting changes in stripes of the given
+ * number of rows, the last stripe possibly being shorter.
+ * @return 1 on success, 0 on invalid geometry or allocation failure with nothing allocated.
+ */
+int framehash_init(framehash *fh, int width, int height, int bytesPerPixel, int stripeRows);
+
+void framehash_free(framehash *fh);
+
+/**
+ * @return Whether the hasher was set up for exactly this geometry.
+ */
+int framehash_matches(const framehash *fh, int width, int height, int bytesPerPixel);
+
+/**
+ * Forgets the previous frame, e.g. when the destination of the frames was changed by other means.
+ */
+void framehash_invalidate(framehash *fh);
+
+/**
+ * Hashes the new frame's rows into hashes, compares them to the ones of the frame passed in the
+ * previous call and remembers them for the next call. Bytes beyond width in each row are ignored.
+ *
+ * @param frame The new frame.
+ * @param stride Length of one frame row in bytes.
+ * @return Number of stripes that changed, all of them if there is no previous frame.
+ */
+int framehash_update(framehash *fh, const char *frame, int stride);
+
+/**
+ * @return Whether the given stripe changed in the last framehash_update().
+ */
+static inline int framehash_stripe_changed(const framehash *fh, int stripe)
+{
+    return fh->changed[stripe];
+}
+
+#endif //DROIDVNC_NG_FRAMEHASH_H
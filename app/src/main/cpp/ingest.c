@@ -0,0 +1,267 @@
+/*
+ * DroidVNC-NG frame ingestion.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "fbdiff.h"
+#include "stats.h"
+#include "ingest.h"
+
+/*
+ * State of marking one frame's changes as modified, passed to the fbdiff_rect_cb.
+ */
+typedef struct {
+    rfbScreenInfoPtr screen;
+    int yOffset;    // added to reported rectangles, for diffing parts of a frame
+    int64_t markNs;
+} markContext;
+
+/**
+ * fbdiff_rect_cb that marks the changed rectangle as modified in the given markContext's screen,
+ * accounting the time spent doing so.
+ */
+static void markRectAsModified(int x1, int y1, int x2, int y2, void *userdata)
+{
+    markContext *ctx = userdata;
+    int64_t t0 = stats_now();
+    rfbMarkRectAsModified(ctx->screen, x1, y1 + ctx->yOffset, x2, y2 + ctx->yOffset);
+    ctx->markNs += stats_now() - t0;
+}
+
+/**
+ * Moves the shifted band within the framebuffer like rfbDoCopyRect() and schedules the CopyRect
+ * for clients, so that a following diff only finds the newly exposed rows changed.
+ */
+static void applyShift(rfbScreenInfoPtr screen, const scrolldetect_shift *shift)
+{
+    const int stride = screen->paddedWidthInBytes;
+    memmove(screen->frameBuffer + (long) shift->y1 * stride,
+            screen->frameBuffer + (long) (shift->y1 - shift->dy) * stride,
+            (size_t) (shift->y2 - shift->y1) * stride);
+    rfbScheduleCopyRect(screen, 0, shift->y1, screen->width, shift->y2, 0, shift->dy);
+}
+
+/**
+ * Hashes a frame about to be ingested and compares it to the previous one.
+ * @return The number of changed stripes, so 0 for a duplicate, or -1 if hashing is unavailable.
+ */
+static int hashFrame(ingest *in, const char *frame, int stride, int width, int height, int bytesPerPixel)
+{
+    if(!framehash_matches(&in->frameHash, width, height, bytesPerPixel)) {
+        framehash_free(&in->frameHash);
+        if(!framehash_init(&in->frameHash, width, height, bytesPerPixel, FBDIFF_TILE_SIZE))
+            return -1;
+    }
+    return framehash_update(&in->frameHash, frame, stride);
+}
+
+/**
+ * Records timings of a frame that arrived at arrivalNs and was diffed, with marking included, until now.
+ */
+static void recordFrame(int64_t arrivalNs, int64_t diffStartNs, const markContext *ctx, int changedTiles)
+{
+    stats_frame frame;
+    frame.arrivalNs = arrivalNs;
+    frame.doneNs = stats_now();
+    frame.markNs = ctx->markNs;
+    frame.diffNs = frame.doneNs - diffStartNs - ctx->markNs;
+    frame.changedTiles = changedTiles;
+    stats_record_frame(&frame);
+}
+
+int ingest_init(ingest *in, rfbScreenInfoPtr screen)
+{
+    memset(in, 0, sizeof(*in));
+    in->screen = screen;
+    return scrolldetect_init(&in->scrollDetect, screen->height);
+}
+
+void ingest_free(ingest *in)
+{
+    scrolldetect_free(&in->scrollDetect);
+    framehash_free(&in->frameHash);
+    scaler_free(&in->scaler);
+    free(in->scaled);
+    in->scaled = NULL;
+    in->scaledSize = 0;
+    in->screen = NULL;
+}
+
+int ingest_framebuffer_changed(ingest *in)
+{
+    framehash_invalidate(&in->frameHash);
+    scrolldetect_free(&in->scrollDetect);
+    return scrolldetect_init(&in->scrollDetect, in->screen->height);
+}
+
+int ingest_frame(ingest *in, const char *frame, int stride, int64_t arrivalNs)
+{
+    rfbScreenInfoPtr screen = in->screen;
+    const int width = screen->width;
+    const int height = screen->height;
+    const int bytesPerPixel = screen->bitsPerPixel / 8;
+
+    int changedStripes = hashFrame(in, frame, stride, width, height, bytesPerPixel);
+    if(changedStripes == 0) {
+        stats_count_deduplicated_frame();
+        return 0;
+    }
+
+    int64_t t0 = stats_now();
+    markContext ctx = { screen, 0, 0 };
+    const int fbStride = screen->paddedWidthInBytes;
+    int changedTiles = 0;
+
+    // reuse the row hashes if there are any
+    scrolldetect_shift shift;
+    int scrolled = changedStripes > 0
+                   ? scrolldetect_detect_hashes(&in->scrollDetect, in->frameHash.hashes, height, &shift)
+                   : scrolldetect_detect(&in->scrollDetect, frame, stride, width, height, bytesPerPixel, &shift);
+    if(scrolled)
+        applyShift(screen, &shift);
+
+    if(scrolled || changedStripes < 0) {
+        // copies only the changed tiles and marks them as modified
+        changedTiles = fbdiff_update(screen->frameBuffer, fbStride,
+                                     frame, stride,
+                                     width, height, bytesPerPixel,
+                                     markRectAsModified, &ctx);
+    } else {
+        // the framebuffer holds the previous frame, so only the changed stripes can differ from it
+        const int stripeRows = in->frameHash.stripeRows;
+        int stripe = 0;
+        while(stripe < in->frameHash.stripes) {
+            if(!framehash_stripe_changed(&in->frameHash, stripe)) {
+                ++stripe;
+                continue;
+            }
+            int y1 = stripe * stripeRows;
+            while(stripe < in->frameHash.stripes && framehash_stripe_changed(&in->frameHash, stripe))
+                ++stripe;
+            int y2 = stripe * stripeRows < height ? stripe * stripeRows : height;
+            ctx.yOffset = y1;
+            changedTiles += fbdiff_update(screen->frameBuffer + (long) y1 * fbStride, fbStride,
+                                          frame + (long) y1 * stride, stride,
+                                          width, y2 - y1, bytesPerPixel,
+                                          markRectAsModified, &ctx);
+        }
+    }
+    recordFrame(arrivalNs, t0, &ctx, changedTiles);
+
+    return scrolled || changedTiles > 0;
+}
+
+/*
+ * Publishes a frame without touching the frame hash.
+ */
+static int publish(ingest *in, char *frame, int64_t arrivalNs)
+{
+    rfbScreenInfoPtr screen = in->screen;
+    const char *previous = screen->frameBuffer;
+
+    /*
+     * Publish first, then mark: client threads keep working with whatever buffer they currently
+     * read from, which stays allocated, and marking must already see the new frame as it might
+     * read from it when server-side scaling is used by a client.
+     */
+    screen->frameBuffer = frame;
+
+    int64_t t0 = stats_now();
+    markContext ctx = { screen, 0, 0 };
+    const int stride = screen->paddedWidthInBytes;
+    const int bytesPerPixel = screen->bitsPerPixel / 8;
+    int changedTiles;
+
+    scrolldetect_shift shift;
+    int scrolled = scrolldetect_detect(&in->scrollDetect, frame, stride, screen->width, screen->height, bytesPerPixel, &shift);
+    if(scrolled) {
+        /*
+         * The old frame can't be shifted in place as it is what the new one gets compared to:
+         * compare the band against its origin instead, i.e. what clients have after the CopyRect.
+         */
+        rfbScheduleCopyRect(screen, 0, shift.y1, screen->width, shift.y2, 0, shift.dy);
+        changedTiles = fbdiff_compare(frame, stride, previous, stride,
+                                      screen->width, shift.y1, bytesPerPixel,
+                                      markRectAsModified, &ctx);
+        ctx.yOffset = shift.y1;
+        changedTiles += fbdiff_compare(frame + (long) shift.y1 * stride, stride,
+                                       previous + (long) (shift.y1 - shift.dy) * stride, stride,
+                                       screen->width, shift.y2 - shift.y1, bytesPerPixel,
+                                       markRectAsModified, &ctx);
+        ctx.yOffset = shift.y2;
+        changedTiles += fbdiff_compare(frame + (long) shift.y2 * stride, stride,
+                                       previous + (long) shift.y2 * stride, stride,
+                                       screen->width, screen->height - shift.y2, bytesPerPixel,
+                                       markRectAsModified, &ctx);
+    } else {
+        changedTiles = fbdiff_compare(frame, stride, previous, stride,
+                                      screen->width, screen->height, bytesPerPixel,
+                                      markRectAsModified, &ctx);
+    }
+    recordFrame(arrivalNs, t0, &ctx, changedTiles);
+
+    return scrolled || changedTiles > 0;
+}
+
+int ingest_publish(ingest *in, char *frame, int64_t arrivalNs)
+{
+    // the frame was written by other means
+    framehash_invalidate(&in->frameHash);
+    return publish(in, frame, arrivalNs);
+}
+
+int ingest_scaled(ingest *in, const char *frame, int width, int height, int stride, char *dst, int64_t arrivalNs)
+{
+    rfbScreenInfoPtr screen = in->screen;
+
+    if(hashFrame(in, frame, stride, width, height, 4) == 0) {
+        stats_count_deduplicated_frame();
+        return 0;
+    }
+
+    if(!scaler_matches(&in->scaler, width, height, screen->width, screen->height)) {
+        scaler_free(&in->scaler);
+        if(!scaler_init(&in->scaler, width, height, screen->width, screen->height)) {
+            framehash_invalidate(&in->frameHash);
+            return -1;
+        }
+    }
+
+    if(screen->bitsPerPixel == 16) {
+        // the scaler works on 32-bit pixels only, so go via an intermediate frame
+        const int scaledStride = screen->width * 4;
+        const size_t scaledSize = (size_t) scaledStride * screen->height;
+        if(in->scaledSize < scaledSize) {
+            free(in->scaled);
+            in->scaledSize = 0;
+            if(!(in->scaled = malloc(scaledSize))) {
+                framehash_invalidate(&in->frameHash);
+                return -1;
+            }
+            in->scaledSize = scaledSize;
+        }
+        scaler_scale(&in->scaler, frame, stride, in->scaled, scaledStride);
+        scale_pack_rgb565(in->scaled, scaledStride, dst, screen->paddedWidthInBytes, screen->width, screen->height);
+    } else {
+        scaler_scale(&in->scaler, frame, stride, dst, screen->paddedWidthInBytes);
+    }
+    return publish(in, dst, arrivalNs);
+}
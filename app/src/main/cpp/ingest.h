@@ -0,0 +1,94 @@
+/*
+ * DroidVNC-NG frame ingestion.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_INGEST_H
+#define DROIDVNC_NG_INGEST_H
+
+#include <stdint.h>
+#include "rfb/rfb.h"
+#include "framehash.h"
+#include "scale.h"
+#include "scrolldetect.h"
+
+/*
+ * Gets captured frames into a LibVNCServer screen: rejects duplicates, sends scrolling as
+ * CopyRect, copies and marks only what changed and records the timings in stats. This is the
+ * capture-agnostic core of libdroidvnc-ng, free of JNI so that it can be driven by a synthetic
+ * capture source on the host, see app/src/test/cpp. Not thread-safe, frames are meant to be
+ * ingested from one thread at a time.
+ *
+ * The screen's framebuffer memory is owned by the caller, see ingest_publish().
+ */
+
+typedef struct {
+    rfbScreenInfoPtr screen;
+    scrolldetect scrollDetect;  // detection is simply off if this failed to allocate
+    framehash frameHash;        // of the last frame passed in, set up on demand for its geometry
+    scaler scaler;              // set up by ingest_scaled() for the last geometry it was called with
+    char *scaled;               // 32-bit intermediate of ingest_scaled() for 16-bit screens
+    size_t scaledSize;
+} ingest;
+
+/**
+ * Sets up ingestion into the given screen.
+ * @return 1 on success, 0 if scroll detection could not be allocated, which leaves it disabled.
+ */
+int ingest_init(ingest *in, rfbScreenInfoPtr screen);
+
+void ingest_free(ingest *in);
+
+/**
+ * To be called after the screen's framebuffer was replaced, e.g. with rfbNewFramebuffer().
+ * @return 1 on success, 0 if scroll detection could not be allocated, which leaves it disabled.
+ */
+int ingest_framebuffer_changed(ingest *in);
+
+/**
+ * Ingests a frame of the screen's geometry into its framebuffer.
+ *
+ * @param frame The new frame.
+ * @param stride Length of one frame row in bytes, may include padding.
+ * @param arrivalNs When the frame arrived, as per stats_now().
+ * @return 1 if the frame differs from the previous one, 0 if it does not.
+ */
+int ingest_frame(ingest *in, const char *frame, int stride, int64_t arrivalNs);
+
+/**
+ * Makes a complete frame laid out like the screen's framebuffer the new framebuffer and marks what
+ * changed compared to the previous one. The previous framebuffer memory must stay allocated, as
+ * client threads might still read from it.
+ *
+ * @return 1 if the frame differs from the previous one, 0 if it does not.
+ */
+int ingest_publish(ingest *in, char *frame, int64_t arrivalNs);
+
+/**
+ * Scales a 32-bit frame of any size into dst, laid out like the screen's framebuffer, and
+ * publishes that like ingest_publish(), unless the frame is a duplicate of the previous one.
+ * For a 16-bit screen, the scaled frame is converted to RGB565.
+ *
+ * @return 1 if the frame differs from the previous one, 0 if it does not, -1 if the scaler or
+ *         the intermediate frame could not be set up. Whether dst was published can be told by
+ *         the screen's frameBuffer.
+ */
+int ingest_scaled(ingest *in, const char *frame, int width, int height, int stride, char *dst, int64_t arrivalNs);
+
+#endif //DROIDVNC_NG_INGEST_H
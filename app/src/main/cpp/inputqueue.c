@@ -0,0 +1,198 @@
+/*
+ * DroidVNC-NG input event queue.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include "inputqueue.h"
+
+/*
+ * How long an event that must not be dropped sleeps between checking for room in a full queue.
+ */
+#define FULL_RETRY_US 500
+
+int inputqueue_init(inputqueue *q, int capacity)
+{
+    memset(q, 0, sizeof(*q));
+    // pushing into a queue that failed setting up just drops
+    atomic_store(&q->isClosed, 1);
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+        return 0;
+
+    q->slots = calloc((size_t) capacity, sizeof(inputqueue_slot));
+    if (!q->slots)
+        return 0;
+    if (sem_init(&q->wakeup, 0, 0) != 0) {
+        free(q->slots);
+        q->slots = NULL;
+        return 0;
+    }
+    q->mask = (size_t) capacity - 1;
+    q->reserved = (size_t) capacity / 4;
+    return 1;
+}
+
+void inputqueue_free(inputqueue *q)
+{
+    if (!q->slots)
+        return;
+    sem_destroy(&q->wakeup);
+    free(q->slots);
+    q->slots = NULL;
+}
+
+void inputqueue_open(inputqueue *q)
+{
+    // a slot is free for the writer at position pos if its sequence number is pos
+    for (size_t i = 0; i <= q->mask; ++i)
+        atomic_store_explicit(&q->slots[i].seq, i, memory_order_relaxed);
+    atomic_store(&q->writePos, 0);
+    q->readPos = 0;
+    q->lastPointerClient = 0;
+    q->lastPointerButtons = -1;
+    atomic_store(&q->isConsumerWaiting, 0);
+    while (sem_trywait(&q->wakeup) == 0);
+    atomic_store(&q->dropped, 0);
+    atomic_store(&q->coalesced, 0);
+    atomic_store(&q->isClosed, 0);
+}
+
+void inputqueue_close(inputqueue *q)
+{
+    atomic_store(&q->isClosed, 1);
+    if (q->slots)
+        sem_post(&q->wakeup);
+}
+
+/**
+ * @return Whether the slot for position pos was taken out by the consumer since the last round.
+ */
+static int isFree(inputqueue *q, size_t pos)
+{
+    size_t seq = atomic_load_explicit(&q->slots[pos & q->mask].seq, memory_order_acquire);
+    return (intptr_t) seq - (intptr_t) pos >= 0;
+}
+
+int inputqueue_push(inputqueue *q, const inputqueue_event *event, int isMove)
+{
+    inputqueue_slot *slot;
+    size_t pos = atomic_load_explicit(&q->writePos, memory_order_relaxed);
+    for (;;) {
+        if (atomic_load_explicit(&q->isClosed, memory_order_relaxed)) {
+            atomic_fetch_add_explicit(&q->dropped, 1, memory_order_relaxed);
+            return 0;
+        }
+
+        slot = &q->slots[pos & q->mask];
+        size_t seq = atomic_load_explicit(&slot->seq, memory_order_acquire);
+        intptr_t diff = (intptr_t) seq - (intptr_t) pos;
+        if (diff == 0) {
+            if (isMove && !isFree(q, pos + q->reserved)) {
+                // the rest is for events that must not get lost
+                atomic_fetch_add_explicit(&q->dropped, 1, memory_order_relaxed);
+                return 0;
+            }
+            // free, try to claim it
+            if (atomic_compare_exchange_weak_explicit(&q->writePos, &pos, pos + 1, memory_order_relaxed, memory_order_relaxed))
+                break;
+        } else if (diff < 0) {
+            // not yet taken out by the consumer since the last round, so full
+            if (isMove) {
+                atomic_fetch_add_explicit(&q->dropped, 1, memory_order_relaxed);
+                return 0;
+            }
+            usleep(FULL_RETRY_US);
+            pos = atomic_load_explicit(&q->writePos, memory_order_relaxed);
+        } else {
+            // claimed by another producer meanwhile
+            pos = atomic_load_explicit(&q->writePos, memory_order_relaxed);
+        }
+    }
+
+    slot->event = *event;
+    atomic_store_explicit(&slot->seq, pos + 1, memory_order_release);
+
+    // pairs with the fence in inputqueue_take(): either the consumer sees the event or we see it waiting
+    atomic_thread_fence(memory_order_seq_cst);
+    if (atomic_load_explicit(&q->isConsumerWaiting, memory_order_relaxed)
+        && atomic_exchange_explicit(&q->isConsumerWaiting, 0, memory_order_relaxed))
+        sem_post(&q->wakeup);
+    return 1;
+}
+
+/**
+ * @return Whether the next event is published.
+ */
+static int isReadable(inputqueue *q)
+{
+    return atomic_load_explicit(&q->slots[q->readPos & q->mask].seq, memory_order_acquire) == q->readPos + 1;
+}
+
+int inputqueue_take(inputqueue *q, inputqueue_event *out, int max)
+{
+    while (!isReadable(q)) {
+        if (atomic_load(&q->isClosed))
+            return -1;
+
+        atomic_store_explicit(&q->isConsumerWaiting, 1, memory_order_relaxed);
+        atomic_thread_fence(memory_order_seq_cst);
+        if (isReadable(q) || atomic_load(&q->isClosed)) {
+            // a producer might have posted anyway, that only makes for a spurious wakeup later
+            atomic_store_explicit(&q->isConsumerWaiting, 0, memory_order_relaxed);
+            continue;
+        }
+        while (sem_wait(&q->wakeup) != 0 && errno == EINTR);
+    }
+
+    int count = 0;
+    int lastIsMove = 0;
+    while (isReadable(q)) {
+        inputqueue_slot *slot = &q->slots[q->readPos & q->mask];
+        const inputqueue_event *event = &slot->event;
+
+        // no button changes compared to the last pointer event taken out
+        int isMove = event->type == INPUTQUEUE_POINTER
+                     && event->client == q->lastPointerClient
+                     && event->buttons == q->lastPointerButtons;
+        if (lastIsMove && isMove) {
+            // out[count - 1] is a move of the same client with the same buttons
+            int64_t timestampNs = out[count - 1].timestampNs;
+            out[count - 1] = *event;
+            out[count - 1].timestampNs = timestampNs;
+            atomic_fetch_add_explicit(&q->coalesced, 1, memory_order_relaxed);
+        } else if (count < max) {
+            out[count++] = *event;
+        } else {
+            break;
+        }
+        if (event->type == INPUTQUEUE_POINTER) {
+            q->lastPointerClient = event->client;
+            q->lastPointerButtons = event->buttons;
+        }
+        lastIsMove = isMove;
+
+        // free for the writer one round later
+        atomic_store_explicit(&slot->seq, q->readPos + q->mask + 1, memory_order_release);
+        ++q->readPos;
+    }
+    return count;
+}
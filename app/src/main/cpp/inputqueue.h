@@ -0,0 +1,118 @@
+/*
+ * DroidVNC-NG input event queue.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_INPUTQUEUE_H
+#define DROIDVNC_NG_INPUTQUEUE_H
+
+#include <stdint.h>
+#include <stdatomic.h>
+#include <semaphore.h>
+
+/*
+ * Bounded queue handing pointer and key events from LibVNCServer's client threads to the one
+ * thread that dispatches them to Android. Pushing takes no lock, so a client's network read loop
+ * does not wait on the framework: slots are claimed with a compare-and-swap on the write position
+ * and published via a per-slot sequence number. Pointer moves only get three quarters of the
+ * slots and are dropped and counted beyond that. Button changes and keys get the rest as well and
+ * wait for room if even that is used up, as losing one would leave a button or key stuck down.
+ * When taking events out, back-to-back pointer moves of the same client are coalesced into the
+ * latest one, which only happens if the consumer fell behind. Button changes are never coalesced,
+ * so presses and releases keep their position.
+ *
+ * Free of JNI and LibVNCServer dependencies, see app/src/test/cpp.
+ */
+
+#define INPUTQUEUE_POINTER 0
+#define INPUTQUEUE_KEY 1
+
+typedef struct {
+    int64_t client;
+    int64_t timestampNs;
+    int32_t type;       // INPUTQUEUE_POINTER or INPUTQUEUE_KEY
+    int32_t buttons;    // pointer: button mask, key: whether it is down
+    int32_t x;
+    int32_t y;
+    uint32_t keysym;
+} inputqueue_event;
+
+typedef struct {
+    inputqueue_event event;
+    atomic_size_t seq;
+} inputqueue_slot;
+
+typedef struct {
+    inputqueue_slot *slots;
+    size_t mask;
+    size_t reserved;    // slots pointer moves leave free
+    atomic_size_t writePos;
+    // consumer only
+    size_t readPos;
+    int64_t lastPointerClient;  // of the last pointer event taken out, to tell moves from button changes
+    int32_t lastPointerButtons;
+    atomic_int isConsumerWaiting;
+    atomic_int isClosed;
+    sem_t wakeup;
+    atomic_llong dropped;
+    atomic_llong coalesced;
+} inputqueue;
+
+/**
+ * Sets up a closed queue.
+ * @param capacity Number of events the queue can hold, a power of two.
+ * @return 1 on success, 0 on invalid capacity or allocation failure with nothing allocated.
+ */
+int inputqueue_init(inputqueue *q, int capacity);
+
+void inputqueue_free(inputqueue *q);
+
+/**
+ * Empties the queue and starts accepting events. Only to be called without producers or consumer around.
+ */
+void inputqueue_open(inputqueue *q);
+
+/**
+ * Stops accepting events and wakes up the consumer, which then gets -1 from inputqueue_take()
+ * after the remaining events.
+ */
+void inputqueue_close(inputqueue *q);
+
+/**
+ * Appends an event. Can be called from any number of threads.
+ * @param isMove Whether the event is a pointer event with the same buttons as the one the client
+ *               sent before, which is dropped if the queue is getting full. Other events wait for
+ *               room if the queue is full.
+ * @return 1 on success, 0 if the event was dropped, which also happens if the queue is closed.
+ */
+int inputqueue_push(inputqueue *q, const inputqueue_event *event, int isMove);
+
+/**
+ * Takes queued events out, waiting for at least one if there are none. Only to be called from one
+ * thread at a time.
+ *
+ * @param out Receives the events in order, pointer moves coalesced. A coalesced move keeps the
+ *            timestamp of the oldest move it stands for.
+ * @param max Room in out, at least 1.
+ * @return Number of events written to out, -1 once the queue is closed and all events queued
+ *         before were taken out.
+ */
+int inputqueue_take(inputqueue *q, inputqueue_event *out, int max);
+
+#endif //DROIDVNC_NG_INPUTQUEUE_H
@@ -0,0 +1,201 @@
+/*
+ * DroidVNC-NG frame downscaling.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "scale.h"
+
+/*
+ * Maps destination pixel i to the source in 1/256 pixel units, pixel centres aligned.
+ */
+static void bilinearPosition(int i, int srcSize, int dstSize, int *index, int *weight)
+{
+    long pos = ((2L * i + 1) * srcSize * 128) / dstSize - 128;
+    if (pos < 0)
+        pos = 0;
+    *index = (int) (pos >> 8);
+    *weight = (int) (pos & 255);
+    if (*index >= srcSize - 1) {
+        *index = srcSize - 1;
+        *weight = 0;
+    }
+}
+
+/*
+ * Interpolates all four channels of two pixels at once, two per 32-bit lane pair.
+ */
+static inline uint32_t lerp(uint32_t a, uint32_t b, uint32_t w)
+{
+    uint32_t rb = ((((a & 0x00ff00ff) * (256 - w)) + ((b & 0x00ff00ff) * w)) >> 8) & 0x00ff00ff;
+    uint32_t ag = ((((a >> 8) & 0x00ff00ff) * (256 - w)) + (((b >> 8) & 0x00ff00ff) * w)) & 0xff00ff00;
+    return rb | ag;
+}
+
+int scaler_init(scaler *s, int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+{
+    memset(s, 0, sizeof(*s));
+    if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0)
+        return 0;
+
+    s->srcWidth = srcWidth;
+    s->srcHeight = srcHeight;
+    s->dstWidth = dstWidth;
+    s->dstHeight = dstHeight;
+
+    if (srcWidth == dstWidth && srcHeight == dstHeight) {
+        s->mode = SCALE_COPY;
+    } else if (srcWidth >= 2 * dstWidth && srcHeight >= 2 * dstHeight) {
+        s->mode = SCALE_BOX;
+        s->xStart = malloc((dstWidth + 1) * sizeof(int32_t));
+        s->columnSums = malloc((size_t) srcWidth * 4 * sizeof(uint32_t));
+        if (!s->xStart || !s->columnSums) {
+            scaler_free(s);
+            return 0;
+        }
+        for (int x = 0; x <= dstWidth; ++x)
+            s->xStart[x] = (int32_t) ((long) x * srcWidth / dstWidth);
+    } else {
+        s->mode = SCALE_BILINEAR;
+        s->xIndex = malloc(dstWidth * sizeof(int32_t));
+        s->xWeight = malloc(dstWidth * sizeof(uint16_t));
+        if (!s->xIndex || !s->xWeight) {
+            scaler_free(s);
+            return 0;
+        }
+        for (int x = 0; x < dstWidth; ++x) {
+            int index, weight;
+            bilinearPosition(x, srcWidth, dstWidth, &index, &weight);
+            s->xIndex[x] = index;
+            s->xWeight[x] = (uint16_t) weight;
+        }
+    }
+    return 1;
+}
+
+void scaler_free(scaler *s)
+{
+    free(s->xStart);
+    free(s->xIndex);
+    free(s->xWeight);
+    free(s->columnSums);
+    memset(s, 0, sizeof(*s));
+}
+
+int scaler_matches(const scaler *s, int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+{
+    return s->srcWidth > 0
+           && s->srcWidth == srcWidth && s->srcHeight == srcHeight
+           && s->dstWidth == dstWidth && s->dstHeight == dstHeight;
+}
+
+static void scaleBox(const scaler *s, const char *src, int srcStride, char *dst, int dstStride)
+{
+    const int rowChannels = s->srcWidth * 4;
+    uint32_t *sums = s->columnSums;
+
+    for (int y = 0; y < s->dstHeight; ++y) {
+        const int sy0 = (int) ((long) y * s->srcHeight / s->dstHeight);
+        const int sy1 = (int) ((long) (y + 1) * s->srcHeight / s->dstHeight);
+
+        // vertical pass: sum up the source rows of this destination row per column and channel
+        memset(sums, 0, rowChannels * sizeof(uint32_t));
+        for (int sy = sy0; sy < sy1; ++sy) {
+            const unsigned char *row = (const unsigned char *) src + (long) sy * srcStride;
+            for (int i = 0; i < rowChannels; ++i)
+                sums[i] += row[i];
+        }
+
+        // horizontal pass: average the column sums of each destination pixel
+        unsigned char *out = (unsigned char *) dst + (long) y * dstStride;
+        for (int x = 0; x < s->dstWidth; ++x) {
+            const int sx0 = s->xStart[x];
+            const int sx1 = s->xStart[x + 1];
+            uint32_t c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            for (int sx = sx0; sx < sx1; ++sx) {
+                c0 += sums[sx * 4];
+                c1 += sums[sx * 4 + 1];
+                c2 += sums[sx * 4 + 2];
+                c3 += sums[sx * 4 + 3];
+            }
+            // multiply by the rounded reciprocal instead of dividing each channel
+            const uint32_t count = (uint32_t) ((sy1 - sy0) * (sx1 - sx0));
+            const uint32_t recip = (65536 + count / 2) / count;
+            out[x * 4] = (unsigned char) ((c0 * recip + 32768) >> 16);
+            out[x * 4 + 1] = (unsigned char) ((c1 * recip + 32768) >> 16);
+            out[x * 4 + 2] = (unsigned char) ((c2 * recip + 32768) >> 16);
+            out[x * 4 + 3] = (unsigned char) ((c3 * recip + 32768) >> 16);
+        }
+    }
+}
+
+static void scaleBilinear(const scaler *s, const char *src, int srcStride, char *dst, int dstStride)
+{
+    for (int y = 0; y < s->dstHeight; ++y) {
+        int sy, wy;
+        bilinearPosition(y, s->srcHeight, s->dstHeight, &sy, &wy);
+        const uint32_t *top = (const uint32_t *) (src + (long) sy * srcStride);
+        const uint32_t *bottom = wy ? (const uint32_t *) (src + (long) (sy + 1) * srcStride) : top;
+        uint32_t *out = (uint32_t *) (dst + (long) y * dstStride);
+
+        for (int x = 0; x < s->dstWidth; ++x) {
+            const int sx = s->xIndex[x];
+            const uint32_t wx = s->xWeight[x];
+            // the right neighbour is only read with a non-zero weight, so never past the row
+            const int sxRight = wx ? sx + 1 : sx;
+            out[x] = lerp(lerp(top[sx], top[sxRight], wx),
+                          lerp(bottom[sx], bottom[sxRight], wx),
+                          (uint32_t) wy);
+        }
+    }
+}
+
+void scaler_scale(const scaler *s,
+                  const char *src, int srcStride,
+                  char *dst, int dstStride)
+{
+    switch (s->mode) {
+        case SCALE_COPY:
+            for (int y = 0; y < s->dstHeight; ++y)
+                memcpy(dst + (long) y * dstStride, src + (long) y * srcStride, (size_t) s->dstWidth * 4);
+            break;
+        case SCALE_BOX:
+            scaleBox(s, src, srcStride, dst, dstStride);
+            break;
+        case SCALE_BILINEAR:
+            scaleBilinear(s, src, srcStride, dst, dstStride);
+            break;
+    }
+}
+
+void scale_pack_rgb565(const char *src, int srcStride,
+                       char *dst, int dstStride,
+                       int width, int height)
+{
+    for (int y = 0; y < height; ++y) {
+        const uint32_t *in = (const uint32_t *) (src + (long) y * srcStride);
+        uint16_t *out = (uint16_t *) (dst + (long) y * dstStride);
+        for (int x = 0; x < width; ++x) {
+            // RGBA in memory order, i.e. red in the lowest byte on little endian
+            const uint32_t p = in[x];
+            out[x] = (uint16_t) (((p & 0xf8) << 8) | ((p >> 5) & 0x07e0) | ((p >> 19) & 0x1f));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * DroidVNC-NG frame downscaling.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_SCALE_H
+#define DROIDVNC_NG_SCALE_H
+
+#include <stdint.h>
+
+/*
+ * Scales 32-bit frames for capture backends that can't deliver them in the framebuffer's size.
+ * Factors of two and more use a box filter averaging all source pixels that fall into a
+ * destination pixel, which keeps text readable, smaller ones are bilinear and the same size is
+ * a plain copy. Everything depending on the geometry is set up once, scaling itself does not
+ * allocate.
+ *
+ * Like fbdiff, this is free of JNI and LibVNCServer dependencies, see app/src/test/cpp.
+ */
+
+typedef enum {
+    SCALE_COPY,
+    SCALE_BILINEAR,
+    SCALE_BOX
+} scale_mode;
+
+typedef struct {
+    int srcWidth;
+    int srcHeight;
+    int dstWidth;
+    int dstHeight;
+    scale_mode mode;
+    int32_t *xStart;        // box: first source column per destination column, plus the end
+    int32_t *xIndex;        // bilinear: left source column per destination column
+    uint16_t *xWeight;      // bilinear: weight of the right source column, 0..255
+    uint32_t *columnSums;   // box: per-channel sums of one destination row's source rows
+} scaler;
+
+/**
+ * Sets up scaling between the given geometries.
+ * @return 1 on success, 0 on invalid geometry or allocation failure with nothing allocated.
+ */
+int scaler_init(scaler *s, int srcWidth, int srcHeight, int dstWidth, int dstHeight);
+
+void scaler_free(scaler *s);
+
+/**
+ * @return Whether the scaler was set up for exactly these geometries.
+ */
+int scaler_matches(const scaler *s, int srcWidth, int srcHeight, int dstWidth, int dstHeight);
+
+/**
+ * Scales a 32-bit frame.
+ *
+ * @param src Source frame of the size given to scaler_init().
+ * @param srcStride Length of one source row in bytes.
+ * @param dst Destination frame of the size given to scaler_init().
+ * @param dstStride Length of one destination row in bytes.
+ */
+void scaler_scale(const scaler *s,
+                  const char *src, int srcStride,
+                  char *dst, int dstStride);
+
+/**
+ * Converts a 32-bit RGBA frame to RGB565 as used by 16-bit framebuffers, truncating each channel.
+ *
+ * @param srcStride Length of one source row in bytes.
+ * @param dstStride Length of one destination row in bytes.
+ */
+void scale_pack_rgb565(const char *src, int srcStride,
+                       char *dst, int dstStride,
+                       int width, int height);
+
+#endif //DROIDVNC_NG_SCALE_H
@@ -0,0 +1,212 @@
+/*
+ * DroidVNC-NG scroll detection.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "framehash.h"
+#include "scrolldetect.h"
+
+// minimum number of changed rows agreeing on an offset for it to be considered
+#define MIN_VOTES 8
+
+#define TABLE_EMPTY (-1)
+// set on table entries whose hash occurs in more than one row, these can't vote
+#define TABLE_AMBIGUOUS 0x40000000
+
+int scrolldetect_init(scrolldetect *sd, int height)
+{
+    memset(sd, 0, sizeof(*sd));
+    if (height <= 0)
+        return 0;
+
+    int tableSize = 1;
+    while (tableSize < 2 * height)
+        tableSize <<= 1;
+
+    sd->height = height;
+    sd->tableMask = tableSize - 1;
+    sd->prevHashes = malloc(height * sizeof(uint64_t));
+    sd->hashes = malloc(height * sizeof(uint64_t));
+    sd->table = malloc(tableSize * sizeof(int32_t));
+    sd->votes = malloc(2 * height * sizeof(int32_t));
+    if (!sd->prevHashes || !sd->hashes || !sd->table || !sd->votes) {
+        scrolldetect_free(sd);
+        return 0;
+    }
+    return 1;
+}
+
+void scrolldetect_free(scrolldetect *sd)
+{
+    free(sd->prevHashes);
+    free(sd->hashes);
+    free(sd->table);
+    free(sd->votes);
+    memset(sd, 0, sizeof(*sd));
+}
+
+void scrolldetect_invalidate(scrolldetect *sd)
+{
+    sd->valid = 0;
+}
+
+static void buildTable(scrolldetect *sd)
+{
+    memset(sd->table, 0xff, (sd->tableMask + 1) * sizeof(int32_t)); // all TABLE_EMPTY
+    for (int y = 0; y < sd->height; ++y) {
+        uint64_t h = sd->prevHashes[y];
+        int slot = (int) (h & sd->tableMask);
+        for (;;) {
+            int32_t entry = sd->table[slot];
+            if (entry == TABLE_EMPTY) {
+                sd->table[slot] = y;
+                break;
+            }
+            if (sd->prevHashes[entry & ~TABLE_AMBIGUOUS] == h) {
+                sd->table[slot] = entry | TABLE_AMBIGUOUS;
+                break;
+            }
+            slot = (slot + 1) & sd->tableMask;
+        }
+    }
+}
+
+/**
+ * @return Row of the previous frame with the given hash, -1 if there is none or more than one.
+ */
+static int lookup(const scrolldetect *sd, uint64_t h)
+{
+    int slot = (int) (h & sd->tableMask);
+    for (;;) {
+        int32_t entry = sd->table[slot];
+        if (entry == TABLE_EMPTY)
+            return -1;
+        if (sd->prevHashes[entry & ~TABLE_AMBIGUOUS] == h)
+            return entry & TABLE_AMBIGUOUS ? -1 : entry;
+        slot = (slot + 1) & sd->tableMask;
+    }
+}
+
+static int findShift(scrolldetect *sd, scrolldetect_shift *shift)
+{
+    const int height = sd->height;
+    const uint64_t *prev = sd->prevHashes;
+    const uint64_t *cur = sd->hashes;
+
+    int changedRows = 0;
+    for (int y = 0; y < height; ++y)
+        changedRows += cur[y] != prev[y];
+    if (changedRows < SCROLLDETECT_MIN_BAND_ROWS)
+        return 0;
+
+    buildTable(sd);
+
+    // each changed row with a unique match in the previous frame votes for its offset
+    memset(sd->votes, 0, 2 * height * sizeof(int32_t));
+    for (int y = 0; y < height; ++y) {
+        if (cur[y] == prev[y])
+            continue;
+        int prevY = lookup(sd, cur[y]);
+        if (prevY >= 0)
+            sd->votes[y - prevY + height]++;
+    }
+
+    int dy = 0, bestVotes = 0;
+    for (int i = 0; i < 2 * height; ++i) {
+        if (i != height && sd->votes[i] > bestVotes) {
+            bestVotes = sd->votes[i];
+            dy = i - height;
+        }
+    }
+    if (bestVotes < MIN_VOTES)
+        return 0;
+
+    // longest run of rows matching at that offset, rows that are ambiguous or unchanged included
+    const int yStart = dy > 0 ? dy : 0;
+    const int yEnd = dy < 0 ? height + dy : height;
+    int bestY1 = 0, bestY2 = 0, bestChanged = 0;
+    for (int y = yStart; y < yEnd; ++y) {
+        if (cur[y] != prev[y - dy])
+            continue;
+        int y1 = y, changed = 0;
+        while (y < yEnd && cur[y] == prev[y - dy]) {
+            changed += cur[y] != prev[y];
+            ++y;
+        }
+        if (y - y1 > bestY2 - bestY1) {
+            bestY1 = y1;
+            bestY2 = y;
+            bestChanged = changed;
+        }
+    }
+
+    // a band that would have been unchanged anyway is not worth a CopyRect
+    if (bestY2 - bestY1 < SCROLLDETECT_MIN_BAND_ROWS || bestChanged < MIN_VOTES)
+        return 0;
+
+    shift->y1 = bestY1;
+    shift->y2 = bestY2;
+    shift->dy = dy;
+    return 1;
+}
+
+/*
+ * Looks for the shift with the new hashes in place, then makes them the previous ones.
+ */
+static int detect(scrolldetect *sd, scrolldetect_shift *shift)
+{
+    int found = sd->valid && findShift(sd, shift);
+
+    // the new frame is the previous one next time
+    uint64_t *tmp = sd->prevHashes;
+    sd->prevHashes = sd->hashes;
+    sd->hashes = tmp;
+    sd->valid = 1;
+
+    return found;
+}
+
+int scrolldetect_detect(scrolldetect *sd,
+                        const char *frame, int stride,
+                        int width, int height, int bytesPerPixel,
+                        scrolldetect_shift *shift)
+{
+    if (!sd->hashes || !frame || height != sd->height || width <= 0)
+        return 0;
+
+    const int rowBytes = width * bytesPerPixel;
+    for (int y = 0; y < height; ++y)
+        sd->hashes[y] = framehash_bytes(frame + (long) y * stride, rowBytes);
+
+    return detect(sd, shift);
+}
+
+int scrolldetect_detect_hashes(scrolldetect *sd,
+                               const uint64_t *rowHashes, int height,
+                               scrolldetect_shift *shift)
+{
+    if (!sd->hashes || !rowHashes || height != sd->height)
+        return 0;
+
+    memcpy(sd->hashes, rowHashes, height * sizeof(uint64_t));
+
+    return detect(sd, shift);
+}
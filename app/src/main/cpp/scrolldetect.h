@@ -0,0 +1,104 @@
+/*
+ * DroidVNC-NG scroll detection.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_SCROLLDETECT_H
+#define DROIDVNC_NG_SCROLLDETECT_H
+
+#include <stdint.h>
+
+/*
+ * Detects a band of full-width rows that moved vertically between two consecutive frames, as
+ * happens when scrolling lists or web pages, so that it can be sent as CopyRect instead of being
+ * re-encoded. Works on per-row hashes: the hashes of the previous frame are kept, new rows that
+ * changed vote for the offset at which their hash was found in the previous frame, and the winner
+ * is extended to the longest run of matching rows.
+ *
+ * A false detection costs bandwidth, never correctness, as long as the caller diffs the new frame
+ * against the shifted previous one afterwards.
+ *
+ * Like fbdiff, this is free of JNI and LibVNCServer dependencies, see app/src/test/cpp.
+ */
+
+/**
+ * Minimum number of rows a band must span to be reported.
+ */
+#define SCROLLDETECT_MIN_BAND_ROWS 32
+
+typedef struct {
+    int height;
+    int valid;              // whether prevHashes describes the previous frame
+    uint64_t *prevHashes;
+    uint64_t *hashes;
+    int32_t *table;         // previous frame's row hash -> row, open addressing
+    int tableMask;
+    int32_t *votes;         // per offset, indexed by dy + height
+} scrolldetect;
+
+/**
+ * A band of rows [y1, y2) in the new frame that equals rows [y1 - dy, y2 - dy) of the previous one.
+ */
+typedef struct {
+    int y1;
+    int y2;
+    int dy;
+} scrolldetect_shift;
+
+/**
+ * Sets up detection for frames of the given height.
+ * @return 1 on success, 0 on allocation failure with nothing allocated.
+ */
+int scrolldetect_init(scrolldetect *sd, int height);
+
+void scrolldetect_free(scrolldetect *sd);
+
+/**
+ * Forgets the previous frame, e.g. when the framebuffer was changed by other means.
+ */
+void scrolldetect_invalidate(scrolldetect *sd);
+
+/**
+ * Looks for a vertically moved band in the new frame compared to the one passed in the previous
+ * call, then remembers the new frame for the next call.
+ *
+ * @param frame The new frame.
+ * @param stride Length of one frame row in bytes.
+ * @param width Width of the frame in pixels.
+ * @param height Height of the frame in pixels, must match the one given to scrolldetect_init().
+ * @param bytesPerPixel Bytes per pixel of the frame.
+ * @param shift Receives the moved band if one was found.
+ * @return 1 if a band was found, 0 otherwise.
+ */
+int scrolldetect_detect(scrolldetect *sd,
+                        const char *frame, int stride,
+                        int width, int height, int bytesPerPixel,
+                        scrolldetect_shift *shift);
+
+/**
+ * Like scrolldetect_detect(), but for a frame whose rows were already hashed with framehash_bytes(),
+ * e.g. by framehash_update().
+ *
+ * @param rowHashes One hash per row of the new frame.
+ */
+int scrolldetect_detect_hashes(scrolldetect *sd,
+                               const uint64_t *rowHashes, int height,
+                               scrolldetect_shift *shift);
+
+#endif //DROIDVNC_NG_SCROLLDETECT_H
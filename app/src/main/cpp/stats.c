@@ -0,0 +1,216 @@
+/*
+ * DroidVNC-NG native pipeline instrumentation.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "stats.h"
+
+#define MODIFIED_FRAME_RING_SIZE 64
+
+typedef struct {
+    stats_frame frame;
+    atomic_ullong seq;
+} stats_frame_slot;
+
+static stats_frame_slot theFrames[STATS_FRAME_RING_SIZE];
+static atomic_ullong theFramesWritten;
+static atomic_ullong theFramesCaptured;
+static atomic_ullong theFramesDeduplicated;
+static atomic_ullong theUpdatesSent;
+
+static atomic_llong theModifiedFrameArrivals[MODIFIED_FRAME_RING_SIZE];
+static atomic_ullong theModifiedFramesWritten;
+
+/*
+ * Seqlock-style slot access: a slot's seq is 0 while being written and the 1-based index of the
+ * record it holds otherwise. A reader only accepts a copy if seq was the expected value before
+ * and after copying.
+ */
+#define SLOT_WRITE(slot, index, field, value)                                   \
+    do {                                                                        \
+        atomic_store_explicit(&(slot)->seq, 0, memory_order_relaxed);           \
+        atomic_thread_fence(memory_order_release);                              \
+        (slot)->field = *(value);                                               \
+        atomic_store_explicit(&(slot)->seq, (index) + 1, memory_order_release); \
+    } while (0)
+
+#define SLOT_READ(slot, index, field, out, ok)                                  \
+    do {                                                                        \
+        unsigned long long seqBefore = atomic_load_explicit(&(slot)->seq, memory_order_acquire); \
+        *(out) = (slot)->field;                                                 \
+        atomic_thread_fence(memory_order_acquire);                              \
+        unsigned long long seqAfter = atomic_load_explicit(&(slot)->seq, memory_order_relaxed); \
+        (ok) = seqBefore == (index) + 1 && seqAfter == seqBefore;               \
+    } while (0)
+
+static int compareInt64(const void *a, const void *b)
+{
+    int64_t x = *(const int64_t *) a;
+    int64_t y = *(const int64_t *) b;
+    return x < y ? -1 : x > y;
+}
+
+void stats_percentiles(int64_t *values, int count, int64_t out[3])
+{
+    if (count <= 0) {
+        out[0] = out[1] = out[2] = 0;
+        return;
+    }
+    qsort(values, count, sizeof(int64_t), compareInt64);
+    // nearest-rank
+    out[0] = values[(count * 50 + 99) / 100 - 1];
+    out[1] = values[(count * 95 + 99) / 100 - 1];
+    out[2] = values[(count * 99 + 99) / 100 - 1];
+}
+
+int64_t stats_now(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+void stats_reset(void)
+{
+    for (int i = 0; i < STATS_FRAME_RING_SIZE; ++i)
+        atomic_store(&theFrames[i].seq, 0);
+    atomic_store(&theFramesWritten, 0);
+    atomic_store(&theFramesCaptured, 0);
+    atomic_store(&theFramesDeduplicated, 0);
+    atomic_store(&theUpdatesSent, 0);
+    atomic_store(&theModifiedFramesWritten, 0);
+}
+
+void stats_count_captured_frame(void)
+{
+    atomic_fetch_add_explicit(&theFramesCaptured, 1, memory_order_relaxed);
+}
+
+void stats_count_deduplicated_frame(void)
+{
+    atomic_fetch_add_explicit(&theFramesDeduplicated, 1, memory_order_relaxed);
+}
+
+void stats_record_frame(const stats_frame *frame)
+{
+    unsigned long long index = atomic_load_explicit(&theFramesWritten, memory_order_relaxed);
+    SLOT_WRITE(&theFrames[index % STATS_FRAME_RING_SIZE], index, frame, frame);
+    atomic_store_explicit(&theFramesWritten, index + 1, memory_order_release);
+
+    if (frame->changedTiles > 0) {
+        unsigned long long modified = atomic_load_explicit(&theModifiedFramesWritten, memory_order_relaxed);
+        atomic_store_explicit(&theModifiedFrameArrivals[modified % MODIFIED_FRAME_RING_SIZE], frame->arrivalNs, memory_order_relaxed);
+        atomic_store_explicit(&theModifiedFramesWritten, modified + 1, memory_order_release);
+    }
+}
+
+uint64_t stats_latest_modified_frame(void)
+{
+    return atomic_load_explicit(&theModifiedFramesWritten, memory_order_acquire);
+}
+
+int64_t stats_modified_frame_arrival(uint64_t modifiedFrame)
+{
+    uint64_t written = atomic_load_explicit(&theModifiedFramesWritten, memory_order_acquire);
+    if (modifiedFrame == 0 || modifiedFrame > written)
+        return 0;
+    // keep a safety margin to the slot being written next
+    uint64_t oldest = written > MODIFIED_FRAME_RING_SIZE - 1 ? written - (MODIFIED_FRAME_RING_SIZE - 1) + 1 : 1;
+    if (modifiedFrame < oldest)
+        modifiedFrame = oldest;
+    return atomic_load_explicit(&theModifiedFrameArrivals[(modifiedFrame - 1) % MODIFIED_FRAME_RING_SIZE], memory_order_relaxed);
+}
+
+void stats_frames_snapshot(int64_t *out)
+{
+    int64_t ingest[STATS_FRAME_RING_SIZE], diff[STATS_FRAME_RING_SIZE], mark[STATS_FRAME_RING_SIZE], tiles[STATS_FRAME_RING_SIZE];
+    int count = 0;
+
+    unsigned long long written = atomic_load_explicit(&theFramesWritten, memory_order_acquire);
+    unsigned long long first = written > STATS_FRAME_RING_SIZE ? written - STATS_FRAME_RING_SIZE : 0;
+    for (unsigned long long index = first; index < written; ++index) {
+        stats_frame frame;
+        int ok;
+        SLOT_READ(&theFrames[index % STATS_FRAME_RING_SIZE], index, frame, &frame, ok);
+        if (!ok)
+            continue;
+        ingest[count] = frame.doneNs - frame.arrivalNs;
+        diff[count] = frame.diffNs;
+        mark[count] = frame.markNs;
+        tiles[count] = frame.changedTiles;
+        ++count;
+    }
+
+    out[STATS_FRAMES_TOTAL] = (int64_t) written;
+    out[STATS_FRAMES_CAPTURED] = (int64_t) atomic_load_explicit(&theFramesCaptured, memory_order_relaxed);
+    out[STATS_FRAMES_SENT] = (int64_t) atomic_load_explicit(&theUpdatesSent, memory_order_relaxed);
+    out[STATS_FRAMES_DEDUPLICATED] = (int64_t) atomic_load_explicit(&theFramesDeduplicated, memory_order_relaxed);
+    stats_percentiles(ingest, count, &out[STATS_FRAME_INGEST]);
+    stats_percentiles(diff, count, &out[STATS_FRAME_DIFF]);
+    stats_percentiles(mark, count, &out[STATS_FRAME_MARK]);
+    stats_percentiles(tiles, count, &out[STATS_FRAME_CHANGED_TILES]);
+}
+
+stats_client *stats_client_new(void)
+{
+    return calloc(1, sizeof(stats_client));
+}
+
+void stats_client_free(stats_client *client)
+{
+    free(client);
+}
+
+void stats_client_record_update(stats_client *client, const stats_update *update)
+{
+    unsigned long long index = atomic_load_explicit(&client->written, memory_order_relaxed);
+    SLOT_WRITE(&client->ring[index % STATS_UPDATE_RING_SIZE], index, update, update);
+    atomic_store_explicit(&client->written, index + 1, memory_order_release);
+    atomic_store_explicit(&client->lastEncoding, update->encoding, memory_order_relaxed);
+    atomic_fetch_add_explicit(&theUpdatesSent, 1, memory_order_relaxed);
+}
+
+void stats_client_snapshot(stats_client *client, int64_t *out)
+{
+    int64_t encode[STATS_UPDATE_RING_SIZE], bytes[STATS_UPDATE_RING_SIZE], latency[STATS_UPDATE_RING_SIZE];
+    int count = 0;
+
+    unsigned long long written = atomic_load_explicit(&client->written, memory_order_acquire);
+    unsigned long long first = written > STATS_UPDATE_RING_SIZE ? written - STATS_UPDATE_RING_SIZE : 0;
+    for (unsigned long long index = first; index < written; ++index) {
+        stats_update update;
+        int ok;
+        SLOT_READ(&client->ring[index % STATS_UPDATE_RING_SIZE], index, update, &update, ok);
+        if (!ok)
+            continue;
+        encode[count] = update.encodeNs;
+        bytes[count] = update.bytes;
+        latency[count] = update.latencyNs;
+        ++count;
+    }
+
+    out[STATS_CLIENT_ENCODING] = atomic_load_explicit(&client->lastEncoding, memory_order_relaxed);
+    out[STATS_CLIENT_UPDATES] = (int64_t) written;
+    stats_percentiles(encode, count, &out[STATS_CLIENT_ENCODE]);
+    stats_percentiles(bytes, count, &out[STATS_CLIENT_BYTES]);
+    stats_percentiles(latency, count, &out[STATS_CLIENT_LATENCY]);
+}
@@ -0,0 +1,156 @@
+/*
+ * DroidVNC-NG native pipeline instrumentation.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+#ifndef DROIDVNC_NG_STATS_H
+#define DROIDVNC_NG_STATS_H
+
+#include <stdint.h>
+#include <stdatomic.h>
+
+/*
+ * Lock-free ring buffers of the most recent per-frame and per-client-update timings, aggregated
+ * into percentiles on snapshot. Each ring has exactly one writer: frames are recorded by the
+ * ingesting thread, client updates by the respective client's output thread. Readers detect
+ * slots overwritten while reading via a per-slot sequence number and skip them.
+ *
+ * Free of JNI and LibVNCServer dependencies, see droidvnc-ng.c for the glue.
+ */
+
+#define STATS_FRAME_RING_SIZE 256
+#define STATS_UPDATE_RING_SIZE 128
+
+/*
+ * Layout of the frame block of a snapshot, mirrored in MainService.
+ * All durations in nanoseconds, each percentile triple is p50, p95, p99.
+ */
+#define STATS_FRAMES_TOTAL 0            // frames ingested since server start
+#define STATS_FRAME_INGEST 1            // arrival until marked, 3 values
+#define STATS_FRAME_DIFF 4              // fused copy and dirty detection, 3 values
+#define STATS_FRAME_MARK 7              // marking changed regions modified, 3 values
+#define STATS_FRAME_CHANGED_TILES 10    // 3 values
+#define STATS_FRAMES_CAPTURED 13        // frames delivered by the capture backend, ingested or not
+#define STATS_FRAMES_SENT 14            // framebuffer updates sent, summed over all clients
+#define STATS_FRAMES_DEDUPLICATED 15    // frames rejected as identical to the previous one before ingestion
+#define STATS_FRAME_BLOCK_SIZE 16
+
+/*
+ * Layout of a client block of a snapshot, mirrored in MainService.
+ */
+#define STATS_CLIENT_ID 0
+#define STATS_CLIENT_ENCODING 1         // encoding of the last update
+#define STATS_CLIENT_UPDATES 2          // updates sent since connect
+#define STATS_CLIENT_ENCODE 3           // encoding and sending of one update, 3 values
+#define STATS_CLIENT_BYTES 6            // bytes written per update, 3 values
+#define STATS_CLIENT_LATENCY 9          // oldest unsent frame's arrival until update sent, 3 values
+#define STATS_CLIENT_SEND_BACKLOG 12    // bytes written but not yet sent by the network stack, current value
+#define STATS_CLIENT_BLOCK_SIZE 13
+
+typedef struct {
+    int64_t arrivalNs;
+    int64_t diffNs;
+    int64_t markNs;
+    int64_t doneNs;
+    int32_t changedTiles;
+} stats_frame;
+
+typedef struct {
+    int64_t encodeNs;
+    int64_t latencyNs;
+    int64_t bytes;
+    int32_t encoding;
+} stats_update;
+
+typedef struct {
+    stats_update update;
+    atomic_ullong seq;
+} stats_update_slot;
+
+typedef struct {
+    stats_update_slot ring[STATS_UPDATE_RING_SIZE];
+    atomic_ullong written;
+    atomic_int lastEncoding;
+    // bookkeeping of the writer thread between begin and end of an update
+    int64_t updateStartNs;
+    int64_t updateStartBytes;
+    uint64_t updateModifiedFrame;
+    uint64_t lastSentModifiedFrame;
+} stats_client;
+
+/**
+ * @return Current monotonic time in nanoseconds, the clock all timings are taken with.
+ */
+int64_t stats_now(void);
+
+/**
+ * Resets all frame statistics, to be called on server start.
+ */
+void stats_reset(void);
+
+/**
+ * Counts a frame delivered by the capture backend, regardless of whether it gets ingested.
+ */
+void stats_count_captured_frame(void);
+
+/**
+ * Counts a frame that was not ingested because it was identical to the previous one.
+ */
+void stats_count_deduplicated_frame(void);
+
+/**
+ * Records an ingested frame. Frames with changed tiles become pending for the client latency measurement.
+ */
+void stats_record_frame(const stats_frame *frame);
+
+/**
+ * @return Sequence number of the latest frame that changed something, 0 if none yet.
+ */
+uint64_t stats_latest_modified_frame(void);
+
+/**
+ * @return Arrival time of the given modified frame, or of the oldest one still remembered if it is
+ * already gone from the ring, 0 if there is none.
+ */
+int64_t stats_modified_frame_arrival(uint64_t modifiedFrame);
+
+stats_client *stats_client_new(void);
+void stats_client_free(stats_client *client);
+void stats_client_record_update(stats_client *client, const stats_update *update);
+
+/**
+ * Writes the frame block of a snapshot.
+ * @param out Must have room for STATS_FRAME_BLOCK_SIZE values.
+ */
+void stats_frames_snapshot(int64_t *out);
+
+/**
+ * Writes a client block of a snapshot, except for STATS_CLIENT_ID and STATS_CLIENT_SEND_BACKLOG,
+ * which are up to the caller.
+ * @param out Must have room for STATS_CLIENT_BLOCK_SIZE values.
+ */
+void stats_client_snapshot(stats_client *client, int64_t *out);
+
+/**
+ * Computes p50, p95 and p99 of the given values, sorting them in place.
+ * All three are 0 if there are no values.
+ */
+void stats_percentiles(int64_t *values, int count, int64_t out[3]);
+
+#endif //DROIDVNC_NG_STATS_H
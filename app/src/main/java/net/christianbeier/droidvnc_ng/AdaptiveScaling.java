@@ -0,0 +1,109 @@
+/*
+ * DroidVNC-NG adaptive resolution scaling.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+/**
+ * Decides how far to scale the captured resolution down below the configured scaling, so that a
+ * saturated link to a client gets smaller updates instead of lagging behind.
+ * <p>
+ * Fed with periodic samples of the worst connected client's link, it steps down one level once
+ * the link was saturated for a few samples in a row and back up only after it was good for
+ * considerably longer. After each step, samples are ignored for a while, as the full update that
+ * the resolution change causes says nothing about the link. A link is saturated if the network
+ * stack holds back a lot of written data or updates lag far behind the frames they show, and good
+ * if both are low. Samples without new updates only tell about the backlog.
+ * <p>
+ * Not thread-safe, meant to be used from one thread.
+ */
+final class AdaptiveScaling {
+
+    // factors applied on top of the configured scaling, one per level
+    static final float[] FACTORS = {1.0f, 0.75f, 0.5f, 0.35f};
+    static final long SATURATED_BACKLOG_BYTES = 256 * 1024;
+    static final long GOOD_BACKLOG_BYTES = 16 * 1024;
+    static final long SATURATED_LATENCY_NS = 500000000L;
+    static final long GOOD_LATENCY_NS = 150000000L;
+    static final int STEP_DOWN_AFTER_SAMPLES = 2;
+    static final int STEP_UP_AFTER_SAMPLES = 10;
+    static final int SETTLE_SAMPLES = 3;
+
+    private int mLevel;
+    private int mSaturatedSamples;
+    private int mGoodSamples;
+    private int mSettleSamples;
+
+    /**
+     * Goes back to full resolution, e.g. when no client is connected.
+     * @return Whether the factor changed.
+     */
+    boolean reset() {
+        boolean changed = mLevel != 0;
+        mLevel = 0;
+        mSaturatedSamples = 0;
+        mGoodSamples = 0;
+        mSettleSamples = 0;
+        return changed;
+    }
+
+    /**
+     * Feeds one sample of the worst client's link.
+     * @param updated Whether updates were sent since the previous sample.
+     * @param latencyNs Update latency, from the oldest frame it shows until it was sent.
+     * @param backlogBytes Bytes written but not yet sent.
+     * @return Whether the factor changed.
+     */
+    boolean onSample(boolean updated, long latencyNs, long backlogBytes) {
+        if (mSettleSamples > 0) {
+            --mSettleSamples;
+            return false;
+        }
+
+        boolean saturated = backlogBytes >= SATURATED_BACKLOG_BYTES
+                || (updated && latencyNs >= SATURATED_LATENCY_NS);
+        boolean good = updated && backlogBytes <= GOOD_BACKLOG_BYTES && latencyNs <= GOOD_LATENCY_NS;
+
+        mSaturatedSamples = saturated ? mSaturatedSamples + 1 : 0;
+        mGoodSamples = good ? mGoodSamples + 1 : 0;
+
+        if (mSaturatedSamples >= STEP_DOWN_AFTER_SAMPLES && mLevel < FACTORS.length - 1)
+            return step(mLevel + 1);
+        if (mGoodSamples >= STEP_UP_AFTER_SAMPLES && mLevel > 0)
+            return step(mLevel - 1);
+        return false;
+    }
+
+    /**
+     * @return The factor to apply on top of the configured scaling.
+     */
+    float getFactor() {
+        return FACTORS[mLevel];
+    }
+
+    private boolean step(int level) {
+        mLevel = level;
+        mSaturatedSamples = 0;
+        mGoodSamples = 0;
+        mSettleSamples = SETTLE_SAMPLES;
+        return true;
+    }
+}
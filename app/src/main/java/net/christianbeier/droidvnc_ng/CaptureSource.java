@@ -0,0 +1,111 @@
+/*
+ * DroidVNC-NG capture source.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A screen capture backend as driven by MainService: started once the server is up, idled while
+ * no client is connected and stopped with the server.
+ * <p>
+ * Sources that deliver frames as they are hand them to a {@link FrameCallback}, usually
+ * {@link #INGEST}. MediaProjection and accessibility screenshots feed the native side via its
+ * cropping and scaling entry points instead, as their frames need that done on the way in.
+ */
+interface CaptureSource {
+
+    /*
+        Layout of the array returned by getStats(), 0 where a source has no such value.
+     */
+    int STATS_QUEUE_DEPTH = 0;
+    int STATS_QUEUE_DEPTH_MAX = 1;
+    // superseded in the queue before being ingested
+    int STATS_FRAMES_DROPPED = 2;
+    // delivered frames per 1000 seconds, recent average
+    int STATS_FRAME_RATE_MILLIHZ = 3;
+    // from a configuration change like rotation until the first frame after it was ingested, in nanoseconds
+    int STATS_RECONFIGURE_LATENCY = 4;
+    // rendered by the platform
+    int STATS_FRAMES_PRODUCED = 5;
+    // taken from the platform into the queue
+    int STATS_FRAMES_ACQUIRED = 6;
+    // times all of the platform's buffers were waiting for the capture thread, which stalls rendering
+    int STATS_READER_STALLS = 7;
+    int STATS_QUEUE_CAPACITY = 8;
+    int STATS_SIZE = 9;
+
+    interface FrameCallback {
+        /**
+         * Called with each captured frame, on the source's capture thread.
+         * @param buffer Direct buffer holding the frame in the server's pixel format, only valid
+         *               during the call: 16-bit RGB565 if started with MainService.EXTRA_RGB565,
+         *               32-bit RGBA otherwise, synthetic frames always being the latter.
+         * @param rowStride Distance between rows in bytes, may include padding.
+         * @param pixelStride Distance between pixels in bytes, 2 for RGB565 and 4 for RGBA. Frames
+         *                    whose pixelStride does not match the server's are not taken.
+         * @return Whether the frame was taken.
+         */
+        boolean onFrame(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride);
+    }
+
+    /**
+     * Ingests frames into the native framebuffer, which switches to the frames' geometry when it changes.
+     */
+    FrameCallback INGEST = MainService::vncUpdateFramebufferStrided;
+
+    void start();
+
+    /**
+     * Stops capturing. The source can not be started again.
+     */
+    void stop();
+
+    /**
+     * Pauses or resumes capturing without stopping, see MediaProjectionService.setIdle().
+     * Can be called from any thread.
+     */
+    void setIdle(boolean idle);
+
+    /**
+     * Switches to capturing at the given fraction of the display size, like started with
+     * MainService.EXTRA_SCALING. Sources that honour it set InputService.scaling once the first
+     * frame at the new size was ingested, so pointer events keep matching the framebuffer.
+     * Can be called from any thread.
+     */
+    void setScaling(float scaling);
+
+    /**
+     * @return Width of the frames delivered, 0 if not known yet.
+     */
+    int getWidth();
+
+    /**
+     * @return Height of the frames delivered, 0 if not known yet.
+     */
+    int getHeight();
+
+    /**
+     * @return Values as per the STATS_* indices, null if not capturing. Can be called from any thread.
+     */
+    long[] getStats();
+}
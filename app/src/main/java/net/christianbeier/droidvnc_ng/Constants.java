@@ -39,5 +39,6 @@ public class Constants {
         persisted runtime values shared between components
      */
     public static final String PREFS_KEY_SERVER_LAST_SCALING = "server_last_scaling" ;
+    public static final String PREFS_KEY_SERVER_LAST_RGB565 = "server_last_rgb565" ;
     public static final String PREFS_KEY_INPUT_LAST_ENABLED = "input_last_enabled" ;
 }
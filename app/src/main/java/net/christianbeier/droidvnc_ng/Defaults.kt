@@ -84,6 +84,22 @@ class Defaults {
     var startOnBootDelay = 0
         private set
 
+    @EncodeDefault
+    var captureQueueSize = 1
+        private set
+
+    @EncodeDefault
+    var captureDropPolicy = MediaProjectionService.DROP_POLICY_LATEST
+        private set
+
+    @EncodeDefault
+    var rgb565 = false
+        private set
+
+    @EncodeDefault
+    var adaptiveScaling = false
+        private set
+
     /*
        NB if adding fields here, don't forget to add their copying in the constructor as well!
      */
@@ -132,6 +148,11 @@ class Defaults {
                 this.accessKey = readDefault.accessKey
             this.startOnBoot = readDefault.startOnBoot
             this.startOnBootDelay = readDefault.startOnBootDelay
+            this.captureQueueSize = readDefault.captureQueueSize.coerceIn(0, FrameQueueSizer.MAX_CAPACITY)
+            if (readDefault.captureDropPolicy == MediaProjectionService.DROP_POLICY_OLDEST)
+                this.captureDropPolicy = readDefault.captureDropPolicy
+            this.rgb565 = readDefault.rgb565
+            this.adaptiveScaling = readDefault.adaptiveScaling
             // add here!
         } catch (e: Exception) {
             Log.w(TAG, "${e.message}")
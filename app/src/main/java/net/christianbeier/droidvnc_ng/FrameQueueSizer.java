@@ -0,0 +1,111 @@
+/*
+ * DroidVNC-NG capture frame queue sizing.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+/**
+ * Sizes the MediaProjection capture frame queue from measured consumer latency.
+ * <p>
+ * While a frame waits to be ingested, which includes waiting for a client to request an update,
+ * more frames keep arriving. To not drop them, the queue needs room for as many frames as arrive
+ * during the consumer latency, so its capacity follows the ratio of the average latency to the
+ * average frame interval. It grows as soon as that ratio does, but only shrinks after it stayed
+ * below the capacity for a while, as a too small queue drops frames while a too large one costs
+ * a bit of memory only.
+ * <p>
+ * Not thread-safe, meant to be used on the capture thread. Times are in nanoseconds of any monotonic clock.
+ */
+final class FrameQueueSizer {
+
+    static final int MIN_CAPACITY = 1;
+    static final int MAX_CAPACITY = 4;
+    // frames in a row that must have fit into a smaller queue before it shrinks
+    static final int SHRINK_AFTER_FRAMES = 120;
+    // longer gaps between frames are the screen being static or capture being idle, not a frame rate
+    static final long MAX_FRAME_INTERVAL_NS = 1000000000L;
+
+    // weight of the newest sample in the moving averages
+    private static final float SMOOTHING = 0.1f;
+
+    private int mCapacity;
+    private long mLastAcquiredNs = -1;
+    private float mAverageIntervalNs;
+    private float mAverageLatencyNs;
+    private int mShrinkableFrames;
+
+    FrameQueueSizer(int initialCapacity) {
+        mCapacity = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, initialCapacity));
+    }
+
+    /**
+     * To be called when a frame was acquired from the producer.
+     */
+    void onAcquired(long nowNs) {
+        if (mLastAcquiredNs >= 0) {
+            long intervalNs = nowNs - mLastAcquiredNs;
+            if (intervalNs > 0 && intervalNs <= MAX_FRAME_INTERVAL_NS)
+                mAverageIntervalNs = average(mAverageIntervalNs, intervalNs);
+        }
+        mLastAcquiredNs = nowNs;
+    }
+
+    /**
+     * To be called when a frame was ingested.
+     * @param latencyNs Time from acquiring the frame until it was ingested.
+     * @return The capacity the queue should have now.
+     */
+    int onIngested(long latencyNs) {
+        mAverageLatencyNs = average(mAverageLatencyNs, Math.max(0, latencyNs));
+
+        int wanted = getWantedCapacity();
+        if (wanted > mCapacity) {
+            mCapacity = wanted;
+            mShrinkableFrames = 0;
+        } else if (wanted < mCapacity) {
+            if (++mShrinkableFrames >= SHRINK_AFTER_FRAMES) {
+                --mCapacity;
+                mShrinkableFrames = 0;
+            }
+        } else {
+            mShrinkableFrames = 0;
+        }
+        return mCapacity;
+    }
+
+    /**
+     * @return The capacity the queue should have now.
+     */
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    private int getWantedCapacity() {
+        if (mAverageIntervalNs <= 0)
+            return MIN_CAPACITY;
+        int wanted = (int) Math.ceil(mAverageLatencyNs / mAverageIntervalNs);
+        return Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, wanted));
+    }
+
+    private static float average(float average, float sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * DroidVNC-NG streaming gesture dispatch.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Streams a pointer drag to the system while it happens, as short strokes chained with
+ * StrokeDescription.continueStroke(), instead of dispatching the whole path on release.
+ * <p>
+ * At most one segment is in flight: points arriving meanwhile are collected and sent as the next
+ * segment once the previous one completed, so a slow system gets fewer, longer segments instead of
+ * a growing backlog. Each segment lasts as long as its points took to arrive, capped, which keeps
+ * the gesture's velocity, e.g. for flinging, close to the client's.
+ * <p>
+ * A stream cancelled by the system, e.g. because the screen was touched, drops the rest of that
+ * gesture. If the very first continuation ever gets cancelled, continuation is taken to be broken
+ * on this device and {@link #isContinuationBroken()} tells to dispatch whole paths instead.
+ * <p>
+ * Thread-safe: pointer events come in on MainService's input thread, results on the main thread.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+final class GestureStreamer extends AccessibilityService.GestureResultCallback {
+
+    private static final String TAG = "GestureStreamer";
+    private static final long MAX_SEGMENT_DURATION_MS = 100;
+
+    private static volatile boolean sContinuationWorks;
+    private static volatile boolean sContinuationBroken;
+
+    private final AccessibilityService mService;
+    private int mDisplayId;
+    // the stream's last dispatched segment and what it was sent as, null if not streaming
+    private GestureDescription.StrokeDescription mStroke;
+    private GestureDescription mGesture;
+    private boolean mIsContinuation;
+    private boolean mIsInFlight;
+    private boolean mIsEnding;
+    private long mLastDispatchMs;
+    // end of the last dispatched segment
+    private float mEndX;
+    private float mEndY;
+    // points that arrived since, as a path from the end of the last dispatched segment
+    private Path mPending;
+    private float mPendingX;
+    private float mPendingY;
+
+    GestureStreamer(AccessibilityService service) {
+        mService = service;
+    }
+
+    /**
+     * @return Whether continuing strokes was found not to work on this device.
+     */
+    static boolean isContinuationBroken() {
+        return sContinuationBroken;
+    }
+
+    /**
+     * Puts the pointer down, superseding any previous stream.
+     * @return Whether streaming started, if not, the gesture needs to be dispatched as a whole.
+     */
+    synchronized boolean start(int displayId, int x, int y) {
+        mDisplayId = displayId;
+        mStroke = null;
+        mIsInFlight = false;
+        mIsEnding = false;
+        mPending = null;
+        mEndX = x;
+        mEndY = y;
+
+        Path path = new Path();
+        path.moveTo(x, y);
+        return dispatch(path, 1, true);
+    }
+
+    /**
+     * Moves the pointer, ignored if the stream was cancelled.
+     */
+    synchronized void move(int x, int y) {
+        if (mStroke == null || mIsEnding)
+            return;
+        if (mPending == null ? x == mEndX && y == mEndY : x == mPendingX && y == mPendingY)
+            return;
+
+        addPending(x, y);
+        if (!mIsInFlight)
+            dispatchPending();
+    }
+
+    /**
+     * Lifts the pointer after moving it to the given position, ignored if the stream was cancelled.
+     */
+    synchronized void end(int x, int y) {
+        if (mStroke == null || mIsEnding)
+            return;
+
+        addPending(x, y);
+        mIsEnding = true;
+        if (!mIsInFlight)
+            dispatchPending();
+    }
+
+    @Override
+    public synchronized void onCompleted(GestureDescription gestureDescription) {
+        if (gestureDescription != mGesture)
+            return;
+
+        mIsInFlight = false;
+        if (mIsContinuation)
+            sContinuationWorks = true;
+        if (!mStroke.willContinue()) {
+            mStroke = null;
+            return;
+        }
+        if (mIsEnding || mPending != null)
+            dispatchPending();
+    }
+
+    @Override
+    public synchronized void onCancelled(GestureDescription gestureDescription) {
+        if (gestureDescription != mGesture)
+            return;
+
+        mIsInFlight = false;
+        if (!sContinuationWorks && mIsContinuation) {
+            Log.w(TAG, "onCancelled: first continued stroke was cancelled, falling back to whole gestures");
+            sContinuationBroken = true;
+        }
+        mStroke = null;
+    }
+
+    private void addPending(int x, int y) {
+        if (mPending == null) {
+            mPending = new Path();
+            mPending.moveTo(mEndX, mEndY);
+        }
+        mPending.lineTo(x, y);
+        mPendingX = x;
+        mPendingY = y;
+    }
+
+    private void dispatchPending() {
+        Path path = mPending;
+        if (path == null) {
+            // lifting without having moved since the last segment
+            path = new Path();
+            path.moveTo(mEndX, mEndY);
+        } else {
+            mEndX = mPendingX;
+            mEndY = mPendingY;
+            mPending = null;
+        }
+
+        long duration = Math.max(1, Math.min(MAX_SEGMENT_DURATION_MS, SystemClock.uptimeMillis() - mLastDispatchMs));
+        dispatch(path, duration, !mIsEnding);
+    }
+
+    private boolean dispatch(Path path, long duration, boolean willContinue) {
+        try {
+            GestureDescription.StrokeDescription stroke = mStroke == null
+                    ? new GestureDescription.StrokeDescription(path, 0, duration, true)
+                    : mStroke.continueStroke(path, 0, duration, willContinue);
+            GestureDescription.Builder builder = new GestureDescription.Builder();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                builder.setDisplayId(mDisplayId);
+            }
+            builder.addStroke(stroke);
+            GestureDescription gesture = builder.build();
+
+            // set before dispatching, the result might come in right away
+            mIsContinuation = mStroke != null;
+            mStroke = stroke;
+            mGesture = gesture;
+            mIsInFlight = true;
+            mLastDispatchMs = SystemClock.uptimeMillis();
+            if (mService.dispatchGesture(gesture, this, null))
+                return true;
+            Log.w(TAG, "dispatch: system refused gesture");
+        } catch (Exception e) {
+            Log.w(TAG, "dispatch: " + e);
+        }
+        mStroke = null;
+        mGesture = null;
+        mIsInFlight = false;
+        return false;
+    }
+}
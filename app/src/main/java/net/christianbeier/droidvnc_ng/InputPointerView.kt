@@ -9,11 +9,14 @@ import android.graphics.Path
 import android.graphics.PixelFormat
 import android.hardware.display.DisplayManager
 import android.os.Build
+import android.view.Choreographer
 import android.view.Display
 import android.view.Gravity
 import android.view.View
 import android.view.WindowManager
 import java.lang.IllegalArgumentException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Create an input pointer view to be used on the specified display
@@ -55,7 +58,23 @@ class InputPointerView(
                 or WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN,
         PixelFormat.TRANSLUCENT
     )
-    
+
+    /*
+        Latest position requested via setPosition(), x and y packed into one value so that it's
+        written and read in one go without allocating. Applied with the next display frame.
+     */
+    private val pendingPosition = AtomicLong(NO_POSITION)
+    private val isFrameScheduled = AtomicBoolean()
+    private val scheduleFrame = Runnable { Choreographer.getInstance().postFrameCallback(frameCallback) }
+    private val frameCallback = Choreographer.FrameCallback {
+        // clear first, so a position arriving from now on schedules another frame
+        isFrameScheduled.set(false)
+        val position = pendingPosition.getAndSet(NO_POSITION)
+        if (position != NO_POSITION && isAttachedToWindow) {
+            positionView((position shr 32).toInt(), position.toInt())
+        }
+    }
+
     init {
         val displayManager = context.getSystemService(Context.DISPLAY_SERVICE) as DisplayManager
 
@@ -111,17 +130,52 @@ class InputPointerView(
      * Remove input pointer view from display specified in constructor.
      */
     fun removeView() {
+        cancelFrame()
         windowManager.removeView(this)
     }
 
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        cancelFrame()
+    }
+
+    /*
+        Drops a frame scheduled by setPosition() that would never run, clearing the flag so that
+        positions set after the view is added again schedule a new one.
+     */
+    private fun cancelFrame() {
+        removeCallbacks(scheduleFrame)
+        Choreographer.getInstance().removeFrameCallback(frameCallback)
+        isFrameScheduled.set(false)
+    }
+
     /**
      * Position input pointer view on display specified in constructor.
      */
     fun positionView(x: Int, y: Int) {
+        if (layoutParams.x == x && layoutParams.y == y) {
+            return
+        }
         layoutParams.x = x
         layoutParams.y = y
         windowManager.updateViewLayout(this, layoutParams)
     }
 
+    /**
+     * Position input pointer view on display specified in constructor with the next display frame.
+     * Can be called from any thread, as often as wanted: only the latest position per frame is applied.
+     */
+    fun setPosition(x: Int, y: Int) {
+        pendingPosition.set((x.toLong() shl 32) or (y.toLong() and 0xffffffffL))
+        if (isFrameScheduled.compareAndSet(false, true)) {
+            post(scheduleFrame)
+        }
+    }
+
+    private companion object {
+        // packs x = Int.MIN_VALUE and y = -1, which no pointer ever is at
+        const val NO_POSITION = Long.MIN_VALUE or 0xffffffffL
+    }
+
 }
 
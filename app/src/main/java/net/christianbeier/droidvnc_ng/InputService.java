@@ -19,14 +19,15 @@ import android.accessibilityservice.GestureDescription;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
-import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.ViewConfiguration;
 import android.graphics.Path;
@@ -44,19 +45,26 @@ import java.util.concurrent.ConcurrentHashMap;
 public class InputService extends AccessibilityService {
 
 	/**
-	 * This tracks gesture completion per client.
+	 * This tracks gesture completion per client and runs the given follow-up once a gesture is done.
 	 */
 	private static class GestureCallback extends AccessibilityService.GestureResultCallback {
 		private boolean mCompleted = true; // initially true so we can actually dispatch something
+		private final Runnable mOnDone;
+
+		GestureCallback(Runnable onDone) {
+			mOnDone = onDone;
+		}
 
 		@Override
 		public synchronized void onCompleted(GestureDescription gestureDescription) {
 			mCompleted = true;
+			mOnDone.run();
 		}
 
 		@Override
 		public synchronized void onCancelled(GestureDescription gestureDescription) {
 			mCompleted = true;
+			mOnDone.run();
 		}
 	}
 
@@ -68,7 +76,16 @@ public class InputService extends AccessibilityService {
 		boolean isButtonOneDown;
 		Path path = new Path();
 		long lastGestureStartTime;
-		GestureCallback gestureCallback = new GestureCallback();
+		// mouse wheel, scrolled by on the main thread
+		final ScrollAccumulator scrollAccumulator = new ScrollAccumulator();
+		final Runnable scrollDispatcher = () -> {
+			if (instance != null)
+				instance.dispatchScroll(this);
+		};
+		GestureCallback gestureCallback = new GestureCallback(scrollDispatcher);
+		// API level 26 and newer, null until first used
+		GestureStreamer gestureStreamer;
+		boolean isGestureStreamed;
 		InputPointerView pointerView;
 		// keyboard-related
 		boolean isKeyCtrlDown;
@@ -107,12 +124,27 @@ public class InputService extends AccessibilityService {
 	private static InputService instance;
 	/**
         * Scaling factor that's applied to incoming pointer events by dividing coordinates by
-        * the given factor.
+        * the given factor. Capture sources update it along with the framebuffer geometry.
         */
-	static float scaling;
+	static volatile float scaling;
 	static boolean isInputEnabled;
 	private boolean mTakeScreenShots;
-	private int mTakeScreenShotDelayMs = 100;
+	private final ScreenShotScheduler mScreenShotScheduler = new ScreenShotScheduler();
+	/*
+	   Screenshot loop state for idle mode, only accessed on the main thread: while paused, the loop
+	   parks its callback instead of scheduling the next screenshot and is restarted on resume.
+	 */
+	private boolean mScreenShotsPaused;
+	private TakeScreenshotCallback mParkedScreenShotCallback;
+	/*
+	   Scaling screenshots get ingested at, only accessed on the main thread. Becomes the pointer
+	   scaling once a screenshot at it is in the framebuffer.
+	 */
+	private float mScreenShotScaling;
+	/*
+	   Screenshot pixels are read back into this, reallocated only when the geometry changes.
+	 */
+	private ByteBuffer mScreenShotBuffer;
 
 	private Handler mMainHandler;
 
@@ -121,6 +153,17 @@ public class InputService extends AccessibilityService {
 	 * System keyboard input foci, display-specific starting on Android 10, see <a href="https://source.android.com/docs/core/display/multi_display/displays#focus">Android docs</a>
 	 */
 	private final Map<Integer, AccessibilityNodeInfo> mKeyboardFocusNodes = new ConcurrentHashMap<>();
+	/**
+	 * Text typed into the keyboard focus nodes but not written to them yet, per display.
+	 */
+	private final Map<Integer, TextEntry> mTextEntries = new ConcurrentHashMap<>();
+	private final Runnable mTextEntryFlusher = this::flushDueTextEntries;
+	/**
+	 * Real metrics per display, dropped on configuration changes like rotation.
+	 */
+	private final Map<Integer, DisplayMetrics> mDisplayMetrics = new ConcurrentHashMap<>();
+	// used on API level < 26 where ViewConfiguration doesn't tell, the platform's default
+	private static final float SCROLL_FACTOR_DP = 64;
 
 
 	@Override
@@ -137,8 +180,9 @@ public class InputService extends AccessibilityService {
 				displayId = Display.DEFAULT_DISPLAY;
 			}
 
-			// recycle old node if there
+			// recycle old node if there, but only after it got what was typed into it
 			AccessibilityNodeInfo previousFocusNode = mKeyboardFocusNodes.get(displayId);
+			flushTextEntry(displayId, previousFocusNode);
 			try {
 				Objects.requireNonNull(previousFocusNode).recycle();
 			} catch (Exception e) {
@@ -157,6 +201,12 @@ public class InputService extends AccessibilityService {
 	@Override
 	public void onInterrupt() { }
 
+	@Override
+	public void onConfigurationChanged(@NonNull Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		mDisplayMetrics.clear();
+	}
+
 	@Override
 	public void onServiceConnected()
 	{
@@ -211,13 +261,15 @@ public class InputService extends AccessibilityService {
 				// run this on UI thread
 				inputContext.pointerView.post(inputContext.pointerView::removeView);
 			}
+			if(inputContext != null) {
+				instance.mMainHandler.removeCallbacks(inputContext.scrollDispatcher);
+			}
 			instance.mInputContexts.remove(client);
 		} catch (Exception e) {
 			Log.e(TAG, "removeClient: " + e);
 		}
 	}
 
-	@SuppressWarnings("unused")
 	public static void onPointerEvent(int buttonMask, int x, int y, long client) {
 
 		if(!isInputEnabled) {
@@ -239,10 +291,8 @@ public class InputService extends AccessibilityService {
 			 */
 			InputPointerView pointerView = inputContext.pointerView;
 			if (pointerView != null) {
-				// showing pointers is enabled
-				int finalX = x;
-				int finalY = y;
-				pointerView.post(() -> pointerView.positionView(finalX, finalY));
+				// showing pointers is enabled, moves in between display frames only update the position to go to
+				pointerView.setPosition(x, y);
 			}
 
 			/*
@@ -252,6 +302,8 @@ public class InputService extends AccessibilityService {
 			// down, was up
 			if ((buttonMask & (1 << 0)) != 0 && !inputContext.isButtonOneDown) {
 				inputContext.isButtonOneDown = true;
+				// a tap might move the cursor, typed text goes where it was typed
+				instance.flushTextEntry(inputContext.getDisplayId());
 				instance.startGesture(inputContext, x, y);
 			}
 
@@ -274,22 +326,12 @@ public class InputService extends AccessibilityService {
 
 			// scroll up
 			if ((buttonMask & (1 << 3)) != 0) {
-
-				DisplayMetrics displayMetrics = new DisplayMetrics();
-				WindowManager wm = (WindowManager) instance.getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
-				wm.getDefaultDisplay().getRealMetrics(displayMetrics);
-
-				instance.scroll(inputContext, x, y, -displayMetrics.heightPixels / 2);
+				instance.scroll(inputContext, x, y, -1);
 			}
 
 			// scroll down
 			if ((buttonMask & (1 << 4)) != 0) {
-
-				DisplayMetrics displayMetrics = new DisplayMetrics();
-				WindowManager wm = (WindowManager) instance.getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
-				wm.getDefaultDisplay().getRealMetrics(displayMetrics);
-
-				instance.scroll(inputContext, x, y, displayMetrics.heightPixels / 2);
+				instance.scroll(inputContext, x, y, 1);
 			}
 		} catch (Exception e) {
 			// instance probably null
@@ -330,6 +372,14 @@ public class InputService extends AccessibilityService {
 			if(keysym == 0xFF1B)
 				inputContext.isKeyEscDown = down != 0;
 
+			/*
+				Text typed so far goes to the focus node before any other key has an effect.
+			 */
+			boolean isTextKey = keysym >= 32 && keysym <= 255 || keysym == 0xff08 || keysym == 0xffff;
+			boolean isModifierKey = keysym >= 0xFFE1 && keysym <= 0xFFEE || keysym == 0xFF7E;
+			if(down != 0 && !isTextKey && !isModifierKey)
+				instance.flushTextEntry(inputContext.getDisplayId());
+
 			/*
 				Ctrl-Alt-Del combo.
 		 	*/
@@ -374,8 +424,7 @@ public class InputService extends AccessibilityService {
 				Get current keyboard focus node for input context's display.
 			 */
 			AccessibilityNodeInfo currentFocusNode = instance.mKeyboardFocusNodes.get(inputContext.getDisplayId());
-			// refresh() is important to load the represented view's current text into the node
-			Objects.requireNonNull(currentFocusNode).refresh();
+			Objects.requireNonNull(currentFocusNode);
 
 			/*
 			   Left/Right
@@ -390,31 +439,6 @@ public class InputService extends AccessibilityService {
 					Objects.requireNonNull(currentFocusNode).performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_NEXT_AT_MOVEMENT_GRANULARITY.getId(), action);
 			}
 
-			/*
-			    Backspace/Delete
-			    TODO: implement deletions of text selections, right now it's only 1 char at a time
-			 */
-			if ((keysym == 0xff08 || keysym == 0xffff) && down != 0) {
-				CharSequence currentFocusText = Objects.requireNonNull(currentFocusNode).getText();
-				int cursorPos = getCursorPos(currentFocusNode);
-
-				// set new text
-				String newFocusText;
-				if (keysym == 0xff08) {
-					// backspace
-					newFocusText = String.valueOf(currentFocusText.subSequence(0, cursorPos - 1)) + currentFocusText.subSequence(cursorPos, currentFocusText.length());
-				} else {
-					// delete
-					newFocusText = String.valueOf(currentFocusText.subSequence(0, cursorPos)) + currentFocusText.subSequence(cursorPos + 1, currentFocusText.length());
-				}
-				Bundle action = new Bundle();
-				action.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, newFocusText);
-				currentFocusNode.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_SET_TEXT.getId(), action);
-
-				// ACTION_SET_TEXT moves cursor to the end, move cursor back to where it should be
-				setCursorPos(currentFocusNode, keysym == 0xff08 ? cursorPos - 1 : cursorPos);
-			}
-
 			/*
 			   Insert
 			 */
@@ -434,35 +458,26 @@ public class InputService extends AccessibilityService {
 			}
 
 			/*
-			    ISO-8859-1 input
+			    ISO-8859-1 input and Backspace/Delete, batched up and written to the node later on
+			    TODO: implement deletions of text selections, right now it's only 1 char at a time
 			 */
-			if (keysym >= 32 && keysym <= 255 && down != 0) {
-				CharSequence currentFocusText = Objects.requireNonNull(currentFocusNode).getText();
-				// some implementations return null for empty text, work around that
-				if (currentFocusText == null)
-					currentFocusText = "";
-
-				int cursorPos = getCursorPos(currentFocusNode);
-
-				// set new text
-				String textBeforeCursor = "";
-				try {
-					textBeforeCursor = String.valueOf(currentFocusText.subSequence(0, cursorPos));
-				} catch (IndexOutOfBoundsException ignored) {
-				}
-				String textAfterCursor = "";
-				try {
-					textAfterCursor = String.valueOf(currentFocusText.subSequence(cursorPos, currentFocusText.length()));
-				} catch (IndexOutOfBoundsException ignored) {
+			if (isTextKey && down != 0) {
+				TextEntry entry = instance.mTextEntries.computeIfAbsent(inputContext.getDisplayId(), displayId -> new TextEntry());
+				long now = SystemClock.uptimeMillis();
+				synchronized (entry) {
+					if (!entry.isSeeded()) {
+						// refresh() is important to load the represented view's current text into the node
+						currentFocusNode.refresh();
+						entry.seed(currentFocusNode.getText(), getCursorPos(currentFocusNode));
+					}
+					if (keysym == 0xff08)
+						entry.backspace(now);
+					else if (keysym == 0xffff)
+						entry.delete(now);
+					else
+						entry.insert((char) keysym, now);
 				}
-				String newFocusText = textBeforeCursor + (char) keysym + textAfterCursor;
-
-				Bundle action = new Bundle();
-				action.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, newFocusText);
-				currentFocusNode.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_SET_TEXT.getId(), action);
-
-				// ACTION_SET_TEXT moves cursor to the end, move cursor back to where it should be
-				setCursorPos(currentFocusNode, cursorPos > 0 ? cursorPos + 1 : 1);
+				instance.scheduleTextEntryFlush();
 			}
 
 		} catch (Exception e) {
@@ -477,7 +492,8 @@ public class InputService extends AccessibilityService {
 			return;
 		}
 
-		Log.d(TAG, "onCutText: text '" + text + "' by client " + client);
+		// don't log the text itself, can be several MB
+		Log.d(TAG, "onCutText: text of length " + text.length() + " by client " + client);
 
 		try {
 			instance.mMainHandler.post(() -> {
@@ -500,46 +516,52 @@ public class InputService extends AccessibilityService {
 		try {
 			instance.mTakeScreenShots = enable;
 			if (instance.mTakeScreenShots) {
+				instance.mScreenShotScaling = PreferenceManager.getDefaultSharedPreferences(instance).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(instance).getScaling());
 				TakeScreenshotCallback callback = new TakeScreenshotCallback() {
 					@Override
 					public void onSuccess(@NonNull ScreenshotResult screenshot) {
 						try {
 							// create hardware bitmap from HardwareBuffer
-							Bitmap bitmap = Bitmap.wrapHardwareBuffer(screenshot.getHardwareBuffer(), screenshot.getColorSpace());
-							// create software bitmap from hardware bitmap to be able to use copyPixelsToBuffer()
-							bitmap = Objects.requireNonNull(bitmap).copy(Bitmap.Config.ARGB_8888, false);
-							// apply scaling. fast NOP when scaling == 1.0
-							bitmap = Bitmap.createScaledBitmap(bitmap,
-									(int) (bitmap.getWidth() * scaling),
-									(int) (bitmap.getHeight() * scaling),
-									true); // use filter as this makes text more readable, we're slow in this mode anyway
-
-							ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Objects.requireNonNull(bitmap).getByteCount());
-							bitmap.copyPixelsToBuffer(byteBuffer);
-
-							// if needed, setup a new VNC framebuffer that matches the new buffer's dimensions
-							if (bitmap.getWidth() != MainService.vncGetFramebufferWidth() || bitmap.getHeight() != MainService.vncGetFramebufferHeight())
-								MainService.vncNewFramebuffer(bitmap.getWidth(), bitmap.getHeight());
-
-							MainService.vncUpdateFramebuffer(byteBuffer);
-
+							Bitmap hardwareBitmap = Bitmap.wrapHardwareBuffer(screenshot.getHardwareBuffer(), screenshot.getColorSpace());
+							// create software bitmap from hardware bitmap to be able to use copyPixelsToBuffer().
+							// there is no way to read back a hardware bitmap into an existing one, so this
+							// is released right after instead.
+							Bitmap bitmap = Objects.requireNonNull(hardwareBitmap).copy(Bitmap.Config.ARGB_8888, false);
 							// important, otherwise getting "A resource failed to call close." warnings from System
 							screenshot.getHardwareBuffer().close();
 
+							// reuse the pixel buffer as long as the geometry stays the same
+							int rowStride = bitmap.getRowBytes();
+							int capacity = rowStride * bitmap.getHeight();
+							if (instance.mScreenShotBuffer == null || instance.mScreenShotBuffer.capacity() != capacity)
+								instance.mScreenShotBuffer = ByteBuffer.allocateDirect(capacity);
+							instance.mScreenShotBuffer.clear();
+							bitmap.copyPixelsToBuffer(instance.mScreenShotBuffer);
+							int width = bitmap.getWidth();
+							int height = bitmap.getHeight();
+							bitmap.recycle();
+
+							// if needed, setup a new VNC framebuffer that matches the scaled dimensions
+							float screenShotScaling = instance.mScreenShotScaling;
+							int scaledWidth = (int) (width * screenShotScaling);
+							int scaledHeight = (int) (height * screenShotScaling);
+							if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
+								MainService.vncNewFramebuffer(scaledWidth, scaledHeight);
+
+							// the native side scales straight into the framebuffer, plain copy when scaling == 1.0
+							int result = MainService.vncUpdateFramebufferScaled(instance.mScreenShotBuffer, width, height, rowStride);
+							boolean changed = result != 0;
+							if (result >= 0)
+								// clients point into this screenshot's geometry from now on
+								scaling = screenShotScaling;
+							long delayMs = instance.mScreenShotScheduler.onFrame(SystemClock.uptimeMillis(), changed, MainService.vncIsFrameWanted(false));
+
 							// further screenshots
-							if (instance.mTakeScreenShots) {
-								// try again later, using but not incrementing delay
-								instance.mMainHandler.postDelayed(() ->
-										{
-											try {
-												instance.takeScreenshot(Display.DEFAULT_DISPLAY,
-														instance.getMainExecutor(),
-														this);
-											} catch (Exception ignored) {
-												// instance might be gone
-											}
-										},
-										instance.mTakeScreenShotDelayMs);
+							if (instance.mTakeScreenShots && instance.mScreenShotsPaused) {
+								Log.d(TAG, "takeScreenShots: paused");
+								instance.mParkedScreenShotCallback = this;
+							} else if (instance.mTakeScreenShots) {
+								instance.mMainHandler.postDelayed(() -> requestScreenShot(this), delayMs);
 							} else {
 								Log.d(TAG, "takeScreenShots: stop");
 							}
@@ -552,18 +574,10 @@ public class InputService extends AccessibilityService {
 					public void onFailure(int errorCode) {
 						try {
 							if (errorCode == AccessibilityService.ERROR_TAKE_SCREENSHOT_INTERVAL_TIME_SHORT && instance.mTakeScreenShots) {
-								// try again later, incrementing delay
-								instance.mMainHandler.postDelayed(() -> {
-									try {
-										instance.takeScreenshot(Display.DEFAULT_DISPLAY,
-												instance.getMainExecutor(),
-												this
-										);
-									} catch (Exception ignored) {
-										// instance might be gone
-									}
-								}, instance.mTakeScreenShotDelayMs += 50);
-								Log.w(TAG, "takeScreenShots: onFailure with ERROR_TAKE_SCREENSHOT_INTERVAL_TIME_SHORT - upped delay to " + instance.mTakeScreenShotDelayMs);
+								// try again later, backing off
+								long delayMs = instance.mScreenShotScheduler.onTooEarly(SystemClock.uptimeMillis());
+								instance.mMainHandler.postDelayed(() -> requestScreenShot(this), delayMs);
+								Log.w(TAG, "takeScreenShots: onFailure with ERROR_TAKE_SCREENSHOT_INTERVAL_TIME_SHORT - upped interval to " + instance.mScreenShotScheduler.getIntervalMs());
 								return;
 							}
 							Log.e(TAG, "takeScreenShots: onFailure with error code " + errorCode);
@@ -574,18 +588,70 @@ public class InputService extends AccessibilityService {
 					}
 				};
 
-				// first screenshot
+				// first screenshot, unless idle
+				instance.mScreenShotsPaused = !MainService.hasClients();
+				if (instance.mScreenShotsPaused) {
+					Log.d(TAG, "takeScreenShots: start paused");
+					instance.mParkedScreenShotCallback = callback;
+					return;
+				}
 				Log.d(TAG, "takeScreenShots: start");
-				instance.takeScreenshot(Display.DEFAULT_DISPLAY,
-						instance.getMainExecutor(),
-						callback
-				);
+				instance.mScreenShotScheduler.reset();
+				requestScreenShot(callback);
+			} else {
+				instance.mParkedScreenShotCallback = null;
+				instance.mScreenShotBuffer = null;
 			}
 		} catch (Exception e) {
 			Log.e(TAG, "takeScreenShots: exception " + e);
 		}
 	}
 
+	/**
+	 * Switches the screenshot loop started by takeScreenShots() to the given fraction of the
+	 * display size from the next screenshot on. Can be called from any thread.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.R)
+	public static void setScreenShotScaling(float scaling) {
+		try {
+			instance.mMainHandler.post(() -> {
+				try {
+					instance.mScreenShotScaling = scaling;
+				} catch (Exception ignored) {
+					// instance might be gone
+				}
+			});
+		} catch (Exception ignored) {
+			// instance probably null
+		}
+	}
+
+	/**
+	 * Pauses or resumes the screenshot loop started by takeScreenShots() without ending it.
+	 * Can be called from any thread.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.R)
+	public static void setScreenShotsPaused(boolean paused) {
+		try {
+			instance.mMainHandler.post(() -> {
+				try {
+					instance.mScreenShotsPaused = paused;
+					if (!paused && instance.mTakeScreenShots && instance.mParkedScreenShotCallback != null) {
+						Log.d(TAG, "takeScreenShots: resume");
+						TakeScreenshotCallback callback = instance.mParkedScreenShotCallback;
+						instance.mParkedScreenShotCallback = null;
+						instance.mScreenShotScheduler.reset();
+						requestScreenShot(callback);
+					}
+				} catch (Exception ignored) {
+					// instance might be gone
+				}
+			});
+		} catch (Exception ignored) {
+			// instance probably null
+		}
+	}
+
 	public static boolean isTakingScreenShots() {
 		try {
 			return instance.mTakeScreenShots;
@@ -594,17 +660,54 @@ public class InputService extends AccessibilityService {
 		}
 	}
 
+	/**
+	 * @return The rate at which screenshots are currently taken, 0 if not taking any or unknown yet.
+	 */
+	public static float getScreenShotFps() {
+		try {
+			return instance.mTakeScreenShots ? instance.mScreenShotScheduler.getFps() : 0;
+		} catch (Exception ignored) {
+			return 0;
+		}
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.R)
+	private static void requestScreenShot(TakeScreenshotCallback callback) {
+		try {
+			instance.mScreenShotScheduler.onRequest(SystemClock.uptimeMillis());
+			instance.takeScreenshot(Display.DEFAULT_DISPLAY, instance.getMainExecutor(), callback);
+		} catch (Exception ignored) {
+			// instance might be gone
+		}
+	}
+
 	private void startGesture(InputContext inputContext, int x, int y) {
 		inputContext.path.reset();
 		inputContext.path.moveTo( x, y );
 		inputContext.lastGestureStartTime = System.currentTimeMillis();
+
+		// stream the gesture while it happens where possible, otherwise it's dispatched as a whole on release
+		inputContext.isGestureStreamed = false;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !GestureStreamer.isContinuationBroken()) {
+			if (inputContext.gestureStreamer == null)
+				inputContext.gestureStreamer = new GestureStreamer(this);
+			inputContext.isGestureStreamed = inputContext.gestureStreamer.start(inputContext.getDisplayId(), x, y);
+		}
 	}
 
 	private void continueGesture(InputContext inputContext, int x, int y) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && inputContext.isGestureStreamed) {
+			inputContext.gestureStreamer.move(x, y);
+			return;
+		}
 		inputContext.path.lineTo( x, y );
 	}
 
 	private void endGesture(InputContext inputContext, int x, int y) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && inputContext.isGestureStreamed) {
+			inputContext.gestureStreamer.end(x, y);
+			return;
+		}
 		inputContext.path.lineTo( x, y );
 		long duration = System.currentTimeMillis() - inputContext.lastGestureStartTime;
 		// gesture ended very very shortly after start (< 1ms). make it 1ms to get dispatched to the system
@@ -626,19 +729,68 @@ public class InputService extends AccessibilityService {
 			dispatchGesture( createClick(inputContext, x, y, ViewConfiguration.getTapTimeout() + ViewConfiguration.getLongPressTimeout()), null, null );
 	}
 
-	private void scroll(InputContext inputContext, int x, int y, int scrollAmount )
+	/**
+	 * Adds scroll wheel ticks to be scrolled by shortly.
+	 * @param ticks Positive to scroll down.
+	 */
+	private void scroll(InputContext inputContext, int x, int y, int ticks)
+	{
+			long delay;
+			synchronized (inputContext.scrollAccumulator) {
+				long now = SystemClock.uptimeMillis();
+				inputContext.scrollAccumulator.onTick(ticks, x, y, now);
+				delay = inputContext.scrollAccumulator.getDelayMs(now);
+			}
+			mMainHandler.removeCallbacks(inputContext.scrollDispatcher);
+			mMainHandler.postDelayed(inputContext.scrollDispatcher, delay);
+	}
+
+	/**
+	 * Scrolls by the wheel ticks accumulated for the client in one swipe once they are due.
+	 * Runs on the main thread.
+	 */
+	private void dispatchScroll(InputContext inputContext)
 	{
 			/*
-			   Ignore if another gesture is still ongoing. Especially true for scroll events:
-			   These mouse button 4,5 events come per each virtual scroll wheel click, an incoming
-			   event would cancel the preceding one, only actually scrolling when the user stopped
-			   scrolling.
+			   Wait for the previous swipe to finish, an incoming gesture would cancel it. Ticks
+			   keep accumulating meanwhile and this is run again on completion.
 			 */
 			if(!inputContext.gestureCallback.mCompleted)
 				return;
 
+			int ticks, x, y;
+			synchronized (inputContext.scrollAccumulator) {
+				if (!inputContext.scrollAccumulator.hasPending())
+					return;
+				long delay = inputContext.scrollAccumulator.getDelayMs(SystemClock.uptimeMillis());
+				if (delay > 0) {
+					mMainHandler.postDelayed(inputContext.scrollDispatcher, delay);
+					return;
+				}
+				x = inputContext.scrollAccumulator.getX();
+				y = inputContext.scrollAccumulator.getY();
+				ticks = inputContext.scrollAccumulator.take();
+			}
+
+			DisplayMetrics displayMetrics = getDisplayMetrics(inputContext.getDisplayId());
+			ViewConfiguration viewConfiguration = ViewConfiguration.get(this);
+			float pixelsPerTick = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+					? viewConfiguration.getScaledVerticalScrollFactor()
+					: SCROLL_FACTOR_DP * displayMetrics.density;
+			int touchSlop = viewConfiguration.getScaledTouchSlop();
+			int distance = ScrollAccumulator.getSwipeDistance(ticks, pixelsPerTick, touchSlop, displayMetrics.heightPixels);
+			long duration = ScrollAccumulator.getSwipeDuration(ticks, pixelsPerTick, touchSlop, displayMetrics.heightPixels);
+
+			// keep the whole swipe on the display
+			int startY = distance > 0 ? Math.max(y, distance) : Math.min(y, displayMetrics.heightPixels - 1 + distance);
+
 			inputContext.gestureCallback.mCompleted = false;
-			dispatchGesture(createSwipe(inputContext, x, y, x, y - scrollAmount, ViewConfiguration.getScrollDefaultDelay()), inputContext.gestureCallback, null);
+			if (!dispatchGesture(createSwipe(inputContext, x, startY, x, startY - distance, (int) duration), inputContext.gestureCallback, null))
+				inputContext.gestureCallback.mCompleted = true;
+	}
+
+	private DisplayMetrics getDisplayMetrics(int displayId) {
+		return mDisplayMetrics.computeIfAbsent(displayId, id -> Utils.getDisplayMetrics(this, id));
 	}
 
 	private static GestureDescription createClick(InputContext inputContext,  int x, int y, int duration )
@@ -674,6 +826,73 @@ public class InputService extends AccessibilityService {
 		return swipeBuilder.build();
 	}
 
+	/**
+	 * Writes the text typed so far into the given display's keyboard focus node.
+	 */
+	private void flushTextEntry(int displayId) {
+		flushTextEntry(displayId, mKeyboardFocusNodes.get(displayId));
+	}
+
+	/**
+	 * Writes the text typed so far into the given node in one go and starts over with the next key.
+	 * @param node The keyboard focus node the text was typed into, can be null to just drop the text.
+	 */
+	private void flushTextEntry(int displayId, AccessibilityNodeInfo node) {
+		TextEntry entry = mTextEntries.get(displayId);
+		if (entry == null)
+			return;
+
+		synchronized (entry) {
+			if (entry.isDirty() && node != null) {
+				try {
+					Bundle action = new Bundle();
+					action.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, entry.getText().toString());
+					node.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_SET_TEXT.getId(), action);
+
+					// ACTION_SET_TEXT moves cursor to the end, move cursor back to where it should be
+					setCursorPos(node, entry.getCursor());
+				} catch (Exception e) {
+					// node probably recycled meanwhile
+					Log.e(TAG, "flushTextEntry: failed: " + e);
+				}
+			}
+			entry.reset();
+		}
+	}
+
+	/**
+	 * Schedules writing typed text for when the earliest pending entry is due.
+	 */
+	private void scheduleTextEntryFlush() {
+		long now = SystemClock.uptimeMillis();
+		long delay = Long.MAX_VALUE;
+		for (TextEntry entry : mTextEntries.values()) {
+			synchronized (entry) {
+				if (entry.isDirty())
+					delay = Math.min(delay, entry.getFlushDelayMs(now));
+			}
+		}
+		mMainHandler.removeCallbacks(mTextEntryFlusher);
+		if (delay != Long.MAX_VALUE)
+			mMainHandler.postDelayed(mTextEntryFlusher, delay);
+	}
+
+	/**
+	 * Runs on the main thread whenever a text entry might be due.
+	 */
+	private void flushDueTextEntries() {
+		long now = SystemClock.uptimeMillis();
+		for (Map.Entry<Integer, TextEntry> entry : mTextEntries.entrySet()) {
+			boolean isDue;
+			synchronized (entry.getValue()) {
+				isDue = entry.getValue().isDirty() && entry.getValue().getFlushDelayMs(now) == 0;
+			}
+			if (isDue)
+				flushTextEntry(entry.getKey());
+		}
+		scheduleTextEntryFlush();
+	}
+
 	/**
 	 * Returns current cursor position or -1 if no text for node.
 	 */
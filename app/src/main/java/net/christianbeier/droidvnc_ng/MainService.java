@@ -41,6 +41,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.IntentSanitizer;
@@ -90,6 +91,18 @@ public class MainService extends Service {
      * Only used on Android 10 and later.
      */
     public static final String EXTRA_FALLBACK_SCREEN_CAPTURE = "net.christianbeier.droidvnc_ng.EXTRA_FALLBACK_SCREEN_CAPTURE";
+    /**
+     * Capture and serve 16-bit RGB565 instead of 32-bit colour, halving bandwidth.
+     */
+    public static final String EXTRA_RGB565 = "net.christianbeier.droidvnc_ng.EXTRA_RGB565";
+    /**
+     * Scale the resolution down below EXTRA_SCALING while a client's connection can't keep up.
+     */
+    public static final String EXTRA_ADAPTIVE_SCALING = "net.christianbeier.droidvnc_ng.EXTRA_ADAPTIVE_SCALING";
+    /**
+     * Debug builds only: serve frames of the given SyntheticFrameGenerator.Pattern instead of the screen.
+     */
+    static final String EXTRA_SYNTHETIC_CAPTURE = "net.christianbeier.droidvnc_ng.EXTRA_SYNTHETIC_CAPTURE";
 
     final static String ACTION_HANDLE_MEDIA_PROJECTION_RESULT = "action_handle_media_projection_result";
     final static String EXTRA_MEDIA_PROJECTION_RESULT_DATA = "result_data_media_projection";
@@ -109,8 +122,50 @@ public class MainService extends Service {
     private static final String PREFS_KEY_SERVER_LAST_FILE_TRANSFER = "server_last_file_transfer" ;
     private static final String PREFS_KEY_SERVER_LAST_SHOW_POINTERS = "server_last_show_pointers" ;
     private static final String PREFS_KEY_SERVER_LAST_FALLBACK_SCREEN_CAPTURE = "server_last_fallback_screen_capture" ;
+    private static final String PREFS_KEY_SERVER_LAST_SYNTHETIC_CAPTURE = "server_last_synthetic_capture" ;
+    private static final String PREFS_KEY_SERVER_LAST_ADAPTIVE_SCALING = "server_last_adaptive_scaling" ;
     private static final String PREFS_KEY_SERVER_LAST_START_REQUEST_ID = "server_last_start_request_id" ;
 
+    /*
+        Layout of the array returned by getStats(), mirrors stats.h. All durations are in nanoseconds,
+        each percentile triple is p50, p95, p99 over the most recent frames or updates.
+     */
+    static final int STATS_FRAMES_TOTAL = 0;
+    static final int STATS_FRAME_INGEST = 1;
+    static final int STATS_FRAME_DIFF = 4;
+    static final int STATS_FRAME_MARK = 7;
+    static final int STATS_FRAME_CHANGED_TILES = 10;
+    static final int STATS_FRAMES_CAPTURED = 13;
+    static final int STATS_FRAMES_SENT = 14;
+    static final int STATS_FRAMES_DEDUPLICATED = 15;
+    static final int STATS_FRAME_BLOCK_SIZE = 16;
+    static final int STATS_CLIENT_COUNT = STATS_FRAME_BLOCK_SIZE;
+    static final int STATS_CLIENTS = STATS_CLIENT_COUNT + 1;
+    // offsets into a client block
+    static final int STATS_CLIENT_ID = 0;
+    static final int STATS_CLIENT_ENCODING = 1;
+    static final int STATS_CLIENT_UPDATES = 2;
+    static final int STATS_CLIENT_ENCODE = 3;
+    static final int STATS_CLIENT_BYTES = 6;
+    static final int STATS_CLIENT_LATENCY = 9;
+    static final int STATS_CLIENT_SEND_BACKLOG = 12;
+    static final int STATS_CLIENT_BLOCK_SIZE = 13;
+
+    /*
+        Layout of one event in the array filled by vncWaitInputEvents(), mirrors droidvnc-ng.c.
+     */
+    static final int INPUT_EVENT_CLIENT = 0;
+    static final int INPUT_EVENT_TYPE = 1;
+    static final int INPUT_EVENT_BUTTONS = 2;
+    static final int INPUT_EVENT_X = 3;
+    static final int INPUT_EVENT_Y = 4;
+    static final int INPUT_EVENT_KEYSYM = 5;
+    static final int INPUT_EVENT_TIMESTAMP = 6;
+    static final int INPUT_EVENT_SIZE = 7;
+    // values of INPUT_EVENT_TYPE, mirror inputqueue.h
+    static final int INPUT_EVENT_TYPE_POINTER = 0;
+    static final int INPUT_EVENT_TYPE_KEY = 1;
+
     private int mResultCode;
     private Intent mResultData;
     private PowerManager.WakeLock mWakeLock;
@@ -118,6 +173,18 @@ public class MainService extends Service {
 
     private int mNumberOfClients;
 
+    private CaptureSource mCaptureSource;
+
+    private static final int INPUT_BATCH_MAX = 64;
+    private static final long INPUT_THREAD_JOIN_TIMEOUT_MS = 1000;
+    private Thread mInputThread;
+
+    private static final long ADAPTIVE_SCALING_INTERVAL_MS = 1000;
+    private final Handler mAdaptiveScalingHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mAdaptiveScalingSample = this::sampleAdaptiveScaling;
+    private final AdaptiveScaling mAdaptiveScaling = new AdaptiveScaling();
+    private long mAdaptiveScalingFramesSent;
+
     private static class OutboundClientReconnectData {
         Intent intent;
         long client;
@@ -166,15 +233,23 @@ public class MainService extends Service {
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    private native boolean vncStartServer(int width, int height, int port, String desktopName, String password, String httpRootDir);
+    private native boolean vncStartServer(int width, int height, int bytesPerPixel, int port, String desktopName, String password, String httpRootDir);
     private native boolean vncStopServer();
     private native boolean vncIsActive();
     private native long vncConnectReverse(String host, int port);
     private native long vncConnectRepeater(String host, int port, String repeaterIdentifier);
     static native boolean vncNewFramebuffer(int width, int height);
-    static native boolean vncUpdateFramebuffer(ByteBuffer buf);
+    static native boolean vncUpdateFramebufferStrided(ByteBuffer buf, int width, int height, int rowStride, int pixelStride);
+    static native boolean vncUpdateFramebufferCropped(ByteBuffer buf, int x, int y, int width, int height, int rowStride, int pixelStride);
+    static native ByteBuffer vncGetBackBuffer();
+    static native boolean vncSwapFramebuffer();
+    static native int vncUpdateFramebufferScaled(ByteBuffer buf, int srcWidth, int srcHeight, int rowStride);
     static native int vncGetFramebufferWidth();
     static native int vncGetFramebufferHeight();
+    static native boolean vncIsFrameWanted(boolean captured);
+    private static native long[] vncGetStats();
+    private static native int vncGetInputGeneration();
+    private static native int vncWaitInputEvents(long[] events, int generation);
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -300,6 +375,7 @@ public class MainService extends Service {
 
         stopScreenCapture();
         vncStopServer();
+        stopInputThread();
         instance = null;
     }
 
@@ -337,6 +413,7 @@ public class MainService extends Service {
 
                 boolean status = vncStartServer(displayMetrics.widthPixels,
                         displayMetrics.heightPixels,
+                        getServerBytesPerPixel(),
                         port,
                         name,
                         PreferenceManager.getDefaultSharedPreferences(this).getString(PREFS_KEY_SERVER_LAST_PASSWORD, mDefaults.getPassword()),
@@ -347,6 +424,7 @@ public class MainService extends Service {
                 sendBroadcastToOthersAndUs(answer);
 
                 if (status) {
+                    startInputThread();
                     startScreenCapture();
                     registerNSD(name, port);
                     updateNotification();
@@ -372,12 +450,14 @@ public class MainService extends Service {
             }
 
             if (mResultCode != 0 && mResultData != null
-                    || (Build.VERSION.SDK_INT >= 30 && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREFS_KEY_SERVER_LAST_FALLBACK_SCREEN_CAPTURE, false))) {
+                    || (Build.VERSION.SDK_INT >= 30 && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREFS_KEY_SERVER_LAST_FALLBACK_SCREEN_CAPTURE, false))
+                    || getSyntheticCapturePattern() != null) {
                 DisplayMetrics displayMetrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
                 int port = PreferenceManager.getDefaultSharedPreferences(this).getInt(PREFS_KEY_SERVER_LAST_PORT, mDefaults.getPort());
                 String name = Utils.getDeviceName(this);
                 boolean status = vncStartServer(displayMetrics.widthPixels,
                         displayMetrics.heightPixels,
+                        getServerBytesPerPixel(),
                         port,
                         name,
                         PreferenceManager.getDefaultSharedPreferences(this).getString(PREFS_KEY_SERVER_LAST_PASSWORD, mDefaults.getPassword()),
@@ -389,6 +469,7 @@ public class MainService extends Service {
                 sendBroadcastToOthersAndUs(answer);
 
                 if(status) {
+                    startInputThread();
                     startScreenCapture();
                     registerNSD(name, port);
                     updateNotification();
@@ -459,6 +540,9 @@ public class MainService extends Service {
             ed.putBoolean(PREFS_KEY_SERVER_LAST_FALLBACK_SCREEN_CAPTURE,
                     !intent.getBooleanExtra(EXTRA_VIEW_ONLY, prefs.getBoolean(Constants.PREFS_KEY_SETTINGS_VIEW_ONLY, mDefaults.getViewOnly()))
                             && intent.getBooleanExtra(EXTRA_FALLBACK_SCREEN_CAPTURE, false));
+            ed.putString(PREFS_KEY_SERVER_LAST_SYNTHETIC_CAPTURE, BuildConfig.DEBUG ? intent.getStringExtra(EXTRA_SYNTHETIC_CAPTURE) : null);
+            ed.putBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, intent.getBooleanExtra(EXTRA_RGB565, mDefaults.getRgb565()));
+            ed.putBoolean(PREFS_KEY_SERVER_LAST_ADAPTIVE_SCALING, intent.getBooleanExtra(EXTRA_ADAPTIVE_SCALING, mDefaults.getAdaptiveScaling()));
             ed.apply();
             // also set new value for InputService
             InputService.scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(this).getScaling());
@@ -551,6 +635,10 @@ public class MainService extends Service {
         try {
             instance.mWakeLock.acquire();
             instance.mNumberOfClients++;
+            if (instance.mNumberOfClients == 1) {
+                Log.d(TAG, "onClientConnected: first client, leaving idle mode");
+                setScreenCaptureIdle(false);
+            }
             instance.updateNotification();
             InputService.addClient(client, PreferenceManager.getDefaultSharedPreferences(instance).getBoolean(PREFS_KEY_SERVER_LAST_SHOW_POINTERS, new Defaults(instance).getShowPointers()));
             if(!MediaProjectionService.isMediaProjectionEnabled() && InputService.isTakingScreenShots()) {
@@ -573,6 +661,10 @@ public class MainService extends Service {
         try {
             instance.mWakeLock.release();
             instance.mNumberOfClients--;
+            if (instance.mNumberOfClients == 0) {
+                Log.d(TAG, "onClientDisconnected: last client gone, entering idle mode");
+                setScreenCaptureIdle(true);
+            }
             if(!instance.mIsStopping) {
                 // don't show notifications when clients are disconnected on orderly server shutdown
                 instance.updateNotification();
@@ -695,32 +787,164 @@ public class MainService extends Service {
     }
 
     private void startScreenCapture() {
-        if (mResultCode != 0 && mResultData != null) {
+        SyntheticFrameGenerator.Pattern syntheticCapturePattern = getSyntheticCapturePattern();
+        if (syntheticCapturePattern != null) {
+            Log.d(TAG, "startScreenCapture: using synthetic " + syntheticCapturePattern + " frames");
+            DisplayMetrics displayMetrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
+            float scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, mDefaults.getScaling());
+            mCaptureSource = new SyntheticCaptureSource(
+                    new SyntheticFrameGenerator(syntheticCapturePattern,
+                            (int) (displayMetrics.widthPixels * scaling),
+                            (int) (displayMetrics.heightPixels * scaling)),
+                    CaptureSource.INGEST);
+        } else if (mResultCode != 0 && mResultData != null) {
             Log.d(TAG, "startScreenCapture: using MediaProjection backend");
-            Intent intent = new Intent(this, MediaProjectionService.class);
-            intent.putExtra(MainService.EXTRA_MEDIA_PROJECTION_RESULT_CODE, mResultCode);
-            intent.putExtra(MainService.EXTRA_MEDIA_PROJECTION_RESULT_DATA, mResultData);
+            mCaptureSource = new MediaProjectionCaptureSource(this, mResultCode, mResultData);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Log.d(TAG, "startScreenCapture: trying takeScreenShot backend");
+            mCaptureSource = new ScreenShotCaptureSource();
+        } else {
+            Log.w(TAG, "startScreenCapture: no backend available");
+            return;
+        }
+        mCaptureSource.start();
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                startForegroundService(intent);
-            } else {
-                startService(intent);
+        // synthetic frames come in one size only
+        if (syntheticCapturePattern == null
+                && PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREFS_KEY_SERVER_LAST_ADAPTIVE_SCALING, mDefaults.getAdaptiveScaling()))
+            mAdaptiveScalingHandler.postDelayed(mAdaptiveScalingSample, ADAPTIVE_SCALING_INTERVAL_MS);
+    }
+
+    /**
+     * Pauses or resumes the running screen capture backend.
+     */
+    private static void setScreenCaptureIdle(boolean idle) {
+        try {
+            instance.mCaptureSource.setIdle(idle);
+        } catch (NullPointerException ignored) {
+            // not capturing
+        }
+    }
+
+    private void stopScreenCapture() {
+        mAdaptiveScalingHandler.removeCallbacks(mAdaptiveScalingSample);
+        // the next source starts out at the configured scaling, InputService.scaling follows with its first frame
+        mAdaptiveScaling.reset();
+
+        if (mCaptureSource != null) {
+            mCaptureSource.stop();
+            mCaptureSource = null;
+        }
+    }
+
+    /**
+     * Starts handing the running server's pointer and key events to InputService, one after the
+     * other on a thread of its own, so that LibVNCServer's client threads only need to queue them.
+     */
+    private void startInputThread() {
+        // an input thread of an earlier server that is still busy leaves once done with its batch
+        int generation = vncGetInputGeneration();
+        mInputThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            long[] events = new long[INPUT_BATCH_MAX * INPUT_EVENT_SIZE];
+            int count;
+            while ((count = vncWaitInputEvents(events, generation)) >= 0) {
+                for (int i = 0; i < count; ++i) {
+                    int event = i * INPUT_EVENT_SIZE;
+                    long client = events[event + INPUT_EVENT_CLIENT];
+                    if (events[event + INPUT_EVENT_TYPE] == INPUT_EVENT_TYPE_POINTER)
+                        InputService.onPointerEvent((int) events[event + INPUT_EVENT_BUTTONS],
+                                (int) events[event + INPUT_EVENT_X],
+                                (int) events[event + INPUT_EVENT_Y],
+                                client);
+                    else
+                        InputService.onKeyEvent((int) events[event + INPUT_EVENT_BUTTONS], events[event + INPUT_EVENT_KEYSYM], client);
+                }
             }
-        } else {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-                Log.d(TAG, "startScreenCapture: trying takeScreenShot backend");
-                InputService.takeScreenShots(true);
-            } else {
-                Log.w(TAG, "startScreenCapture: no backend available");
+            Log.d(TAG, "input thread: server stopped");
+        }, "VNCInput");
+        mInputThread.start();
+    }
+
+    /**
+     * Waits for the input thread to finish after the server was stopped. One that is stuck in
+     * InputService for longer never takes out events of a restarted server, see vncGetInputGeneration().
+     */
+    private void stopInputThread() {
+        if (mInputThread == null)
+            return;
+        try {
+            mInputThread.join(INPUT_THREAD_JOIN_TIMEOUT_MS);
+            if (mInputThread.isAlive())
+                Log.w(TAG, "stopInputThread: input thread still busy, it leaves once done");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mInputThread = null;
+    }
+
+    /**
+     * Feeds the worst client's link to the adaptive scaling and applies its decision, on the main thread.
+     */
+    private void sampleAdaptiveScaling() {
+        long[] stats = getStats();
+        if (stats != null && mCaptureSource != null) {
+            long latencyNs = 0;
+            long backlogBytes = 0;
+            for (int i = 0; i < stats[STATS_CLIENT_COUNT]; ++i) {
+                int block = STATS_CLIENTS + i * STATS_CLIENT_BLOCK_SIZE;
+                // the median, single slow updates are no reason to act
+                latencyNs = Math.max(latencyNs, stats[block + STATS_CLIENT_LATENCY]);
+                backlogBytes = Math.max(backlogBytes, stats[block + STATS_CLIENT_SEND_BACKLOG]);
+            }
+            long framesSent = stats[STATS_FRAMES_SENT];
+            boolean changed = stats[STATS_CLIENT_COUNT] == 0
+                    ? mAdaptiveScaling.reset()
+                    : mAdaptiveScaling.onSample(framesSent != mAdaptiveScalingFramesSent, latencyNs, backlogBytes);
+            mAdaptiveScalingFramesSent = framesSent;
+
+            if (changed) {
+                float scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, mDefaults.getScaling())
+                        * mAdaptiveScaling.getFactor();
+                Log.d(TAG, "sampleAdaptiveScaling: latency " + latencyNs / 1000000 + " ms, backlog " + backlogBytes + " bytes, scaling now " + scaling);
+                // InputService.scaling follows once the first frame at the new size is in
+                mCaptureSource.setScaling(scaling);
             }
         }
+        mAdaptiveScalingHandler.postDelayed(mAdaptiveScalingSample, ADAPTIVE_SCALING_INTERVAL_MS);
     }
 
-    private void stopScreenCapture() {
-        // stop all backends unconditionally
-        stopService(new Intent(this, MediaProjectionService.class));
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            InputService.takeScreenShots(false);
+    /**
+     * @return 2 for RGB565 as given with EXTRA_RGB565, 4 otherwise. Synthetic frames are always 32-bit.
+     */
+    private int getServerBytesPerPixel() {
+        if (getSyntheticCapturePattern() != null)
+            return 4;
+        return PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, mDefaults.getRgb565()) ? 2 : 4;
+    }
+
+    /**
+     * @return The pattern to serve instead of the screen as given with EXTRA_SYNTHETIC_CAPTURE, null if none.
+     */
+    private SyntheticFrameGenerator.Pattern getSyntheticCapturePattern() {
+        String pattern = PreferenceManager.getDefaultSharedPreferences(this).getString(PREFS_KEY_SERVER_LAST_SYNTHETIC_CAPTURE, null);
+        try {
+            return pattern != null ? SyntheticFrameGenerator.Pattern.valueOf(pattern) : null;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "getSyntheticCapturePattern: unknown pattern " + pattern);
+            return null;
+        }
+    }
+
+    /**
+     * Get a snapshot of the running screen capture backend's counters.
+     * @return Values as per the CaptureSource.STATS_* indices, null if not capturing.
+     */
+    static long[] getCaptureStats() {
+        try {
+            return instance.mCaptureSource.getStats();
+        } catch (NullPointerException ignored) {
+            return null;
         }
     }
 
@@ -744,6 +968,27 @@ public class MainService extends Service {
         }
     }
 
+    /**
+     * Get a snapshot of the native pipeline statistics.
+     * @return The frame block, the client count at STATS_CLIENT_COUNT and then, starting at
+     *         STATS_CLIENTS, one block of STATS_CLIENT_BLOCK_SIZE per client; null if the server is not running.
+     */
+    static long[] getStats() {
+        try {
+            return vncGetStats();
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    static boolean hasClients() {
+        try {
+            return instance.mNumberOfClients > 0;
+        } catch (Exception ignored) {
+            return false;
+        }
+    }
+
     static boolean isServerActive() {
         try {
             return instance.vncIsActive();
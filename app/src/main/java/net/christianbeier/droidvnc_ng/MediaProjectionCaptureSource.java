@@ -0,0 +1,87 @@
+/*
+ * DroidVNC-NG MediaProjection capture source.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Captures via MediaProjectionService, which needs the user's consent given beforehand.
+ */
+final class MediaProjectionCaptureSource implements CaptureSource {
+
+    private final Context mContext;
+    private final int mResultCode;
+    private final Intent mResultData;
+
+    MediaProjectionCaptureSource(Context context, int resultCode, Intent resultData) {
+        mContext = context;
+        mResultCode = resultCode;
+        mResultData = resultData;
+    }
+
+    @Override
+    public void start() {
+        Intent intent = new Intent(mContext, MediaProjectionService.class);
+        intent.putExtra(MainService.EXTRA_MEDIA_PROJECTION_RESULT_CODE, mResultCode);
+        intent.putExtra(MainService.EXTRA_MEDIA_PROJECTION_RESULT_DATA, mResultData);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mContext.startForegroundService(intent);
+        } else {
+            mContext.startService(intent);
+        }
+    }
+
+    @Override
+    public void stop() {
+        mContext.stopService(new Intent(mContext, MediaProjectionService.class));
+    }
+
+    @Override
+    public void setIdle(boolean idle) {
+        MediaProjectionService.setIdle(idle);
+    }
+
+    @Override
+    public void setScaling(float scaling) {
+        MediaProjectionService.setScaling(scaling);
+    }
+
+    @Override
+    public int getWidth() {
+        // frames are cropped and scaled to the framebuffer on the way in
+        return Math.max(0, MainService.vncGetFramebufferWidth());
+    }
+
+    @Override
+    public int getHeight() {
+        return Math.max(0, MainService.vncGetFramebufferHeight());
+    }
+
+    @Override
+    public long[] getStats() {
+        return MediaProjectionService.getCaptureStats();
+    }
+}
@@ -29,7 +29,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
@@ -38,7 +37,11 @@ import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
@@ -47,22 +50,106 @@ import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MediaProjectionService extends Service {
 
     private static final String TAG = "MediaProjectionService";
 
+    /**
+     * When the frame queue is full, drop all queued frames in favour of the new one.
+     */
+    static final String DROP_POLICY_LATEST = "latest";
+    /**
+     * When the frame queue is full, drop the oldest queued frame only.
+     */
+    static final String DROP_POLICY_OLDEST = "oldest";
+
     private int mResultCode;
     private Intent mResultData;
     private ImageReader mImageReader;
+    // the reader for the other orientation, detached
+    private ImageReader mSpareImageReader;
     private VirtualDisplay mVirtualDisplay;
+    private int mVirtualDisplayDpi;
+    // fraction of the display size captured, only accessed on the main thread
+    private float mScaling;
     private MediaProjection mMediaProjection;
     private MediaProjectionManager mMediaProjectionManager;
+    private final MediaProjection.Callback mMediaProjectionCallback = new MediaProjection.Callback() {
+        @Override
+        public void onStop() {
+            Log.d(TAG, "callback: onStop");
+            super.onStop();
+        }
+
+        @Override
+        public void onCapturedContentResize(int width, int height) {
+            Log.d(TAG, "callback: onCapturedContentResize " + width + "x" + height);
+        }
+
+        @Override
+        public void onCapturedContentVisibilityChanged(boolean isVisible) {
+            Log.d(TAG, "callback: onCapturedContentVisibilityChanged " + isVisible);
+        }
+    };
 
     private boolean mHasPortraitInLandscapeWorkaroundApplied;
     private boolean mHasPortraitInLandscapeWorkaroundSet;
 
+    /*
+        Idle mode: with no clients connected, the VirtualDisplay gets no Surface, so nothing is
+        rendered, delivered or ingested at all. Only accessed on the main thread.
+     */
+    private boolean mIsIdle;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+        The capture pipeline runs on its own thread so that frame delivery does not compete with
+        UI work on the main thread. Its stages are: acquire images from the ImageReader into a
+        bounded queue, then, once a client has an update request outstanding, convert (if needed)
+        and ingest them into the framebuffer. Frames are held in the queue, superseded according
+        to the drop policy, while no client wants one. The queue is only accessed on the capture thread.
+     */
+    private interface FrameIngester {
+        // the convert and ingest stages for one image
+        void ingest(Image image);
+    }
+    private static class QueuedFrame {
+        final Image image;
+        final FrameIngester ingester;
+        final long acquiredNs;
+        QueuedFrame(Image image, FrameIngester ingester, long acquiredNs) {
+            this.image = image;
+            this.ingester = ingester;
+            this.acquiredNs = acquiredNs;
+        }
+    }
+    private static final int FRAME_POLL_INTERVAL_MS = 10;
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+    private final ArrayDeque<QueuedFrame> mFrameQueue = new ArrayDeque<>();
+    private volatile int mFrameQueueCapacity;
+    // set if the capacity is sized automatically, then only accessed on the capture thread
+    private FrameQueueSizer mFrameQueueSizer;
+    private int mImageReaderMaxImages;
+    // matching the server framebuffer's bytes per pixel
+    private int mPixelFormat;
+    private String mDropPolicy;
+    private final Runnable mFramePoll = this::pollFrames;
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mQueueDepthMax = new AtomicInteger();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mFramesProduced = new AtomicLong();
+    private final AtomicLong mFramesAcquired = new AtomicLong();
+    private final AtomicLong mReaderStalls = new AtomicLong();
+    // when the current reconfiguration started as per System.nanoTime(), 0 if none is pending
+    private final AtomicLong mReconfigureStartNs = new AtomicLong();
+    private final AtomicLong mReconfigureLatencyNs = new AtomicLong();
+
     private static MediaProjectionService instance;
 
 
@@ -76,6 +163,25 @@ public class MediaProjectionService extends Service {
         Log.d(TAG, "onCreate");
 
         instance = this;
+        mIsIdle = !MainService.hasClients();
+
+        Defaults defaults = new Defaults(this);
+        if (defaults.getCaptureQueueSize() == 0) {
+            mFrameQueueSizer = new FrameQueueSizer(FrameQueueSizer.MIN_CAPACITY);
+            mFrameQueueCapacity = mFrameQueueSizer.getCapacity();
+            // buffers are only allocated once the queue actually holds that many frames
+            mImageReaderMaxImages = FrameQueueSizer.MAX_CAPACITY + 1;
+        } else {
+            mFrameQueueCapacity = defaults.getCaptureQueueSize();
+            mImageReaderMaxImages = mFrameQueueCapacity + 1;
+        }
+        mDropPolicy = defaults.getCaptureDropPolicy();
+        mScaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, defaults.getScaling());
+        mPixelFormat = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Constants.PREFS_KEY_SERVER_LAST_RGB565, defaults.getRgb565())
+                ? PixelFormat.RGB_565 : PixelFormat.RGBA_8888;
+        mCaptureThread = new HandlerThread("CaptureThread", Process.THREAD_PRIORITY_DISPLAY);
+        mCaptureThread.start();
+        mCaptureHandler = new Handler(mCaptureThread.getLooper());
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             /*
@@ -119,6 +225,8 @@ public class MediaProjectionService extends Service {
         DisplayMetrics displayMetrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
         Log.d(TAG, "onConfigurationChanged: width: " + displayMetrics.widthPixels + " height: " + displayMetrics.heightPixels);
 
+        // measured until the first frame of the new configuration is ingested, which does not happen while idle
+        mReconfigureStartNs.set(mIsIdle ? 0 : System.nanoTime());
         startScreenCapture();
     }
 
@@ -128,6 +236,12 @@ public class MediaProjectionService extends Service {
         Log.d(TAG, "onDestroy");
 
         stopScreenCapture();
+        // runs after everything already posted to the capture thread
+        mCaptureThread.quitSafely();
+
+        Log.d(TAG, "onDestroy: " + mFramesProduced.get() + " frames produced, " + mFramesAcquired.get() + " acquired, "
+                + mFramesDropped.get() + " dropped, " + mReaderStalls.get() + " reader stalls, capture queue max depth "
+                + mQueueDepthMax.get() + " of " + mFrameQueueCapacity);
 
         instance = null;
     }
@@ -149,7 +263,7 @@ public class MediaProjectionService extends Service {
     @SuppressLint("WrongConstant")
     private void startScreenCapture() {
 
-        if(mMediaProjection == null)
+        if(mMediaProjection == null) {
             try {
                 mMediaProjection = mMediaProjectionManager.getMediaProjection(mResultCode, mResultData);
             } catch (SecurityException e) {
@@ -161,38 +275,19 @@ public class MediaProjectionService extends Service {
                 return;
             }
 
-        if (mMediaProjection == null) {
-            Log.e(TAG, "startScreenCapture: did not get a media projection, probably user denied");
-            return;
-        }
+            if (mMediaProjection == null) {
+                Log.e(TAG, "startScreenCapture: did not get a media projection, probably user denied");
+                return;
+            }
 
-        // Android 14 and newer require this callback
-        mMediaProjection.registerCallback(new MediaProjection.Callback() {
-                                              @Override
-                                              public void onStop() {
-                                                  Log.d(TAG, "callback: onStop");
-                                                  super.onStop();
-                                              }
-
-                                              @Override
-                                              public void onCapturedContentResize(int width, int height) {
-                                                  Log.d(TAG, "callback: onCapturedContentResize " + width + "x" + height);
-                                              }
-
-                                              @Override
-                                              public void onCapturedContentVisibilityChanged(boolean isVisible) {
-                                                  Log.d(TAG, "callback: onCapturedContentVisibilityChanged " + isVisible);
-                                              }
-                                          },
-                null);
-
-        if (mImageReader != null)
-            mImageReader.close();
+            // Android 14 and newer require this callback, once per projection
+            mMediaProjection.registerCallback(mMediaProjectionCallback, null);
+        }
 
         final DisplayMetrics metrics = Utils.getDisplayMetrics(this, Display.DEFAULT_DISPLAY);
 
         // apply selected scaling
-        float scaling = PreferenceManager.getDefaultSharedPreferences(this).getFloat(Constants.PREFS_KEY_SERVER_LAST_SCALING, new Defaults(this).getScaling());
+        final float scaling = mScaling;
         int scaledWidth = (int) (metrics.widthPixels * scaling);
         int scaledHeight = (int) (metrics.heightPixels * scaling);
 
@@ -202,6 +297,10 @@ public class MediaProjectionService extends Service {
             mHasPortraitInLandscapeWorkaroundApplied = true;
         }
 
+        final int readerWidth;
+        final int readerHeight;
+        final FrameIngester ingester;
+
         // use workaround if flag set and in actual portrait mode
         if(mHasPortraitInLandscapeWorkaroundApplied && scaledWidth < scaledHeight) {
 
@@ -211,101 +310,68 @@ public class MediaProjectionService extends Service {
             final int quirkyLandscapeWidth = (int)((float)scaledHeight/portraitInsideLandscapeScaleFactor);
             final int quirkyLandscapeHeight = (int)((float)scaledWidth/portraitInsideLandscapeScaleFactor);
 
-            mImageReader = ImageReader.newInstance(quirkyLandscapeWidth, quirkyLandscapeHeight, PixelFormat.RGBA_8888, 2);
-            mImageReader.setOnImageAvailableListener(imageReader -> {
-                try (Image image = imageReader.acquireLatestImage()) {
-
-                    if (image == null)
-                        return;
-
+            readerWidth = quirkyLandscapeWidth;
+            readerHeight = quirkyLandscapeHeight;
+            ingester = image -> {
+                try {
                     final Image.Plane[] planes = image.getPlanes();
                     final ByteBuffer buffer = planes[0].getBuffer();
                     int pixelStride = planes[0].getPixelStride();
                     int rowStride = planes[0].getRowStride();
-                    int rowPadding = rowStride - pixelStride * quirkyLandscapeWidth;
-                    int w = quirkyLandscapeWidth + rowPadding / pixelStride;
 
-                    // create destination Bitmap
-                    Bitmap dest = Bitmap.createBitmap(w, quirkyLandscapeHeight, Bitmap.Config.ARGB_8888);
-
-                    // copy landscape buffer to dest bitmap
-                    buffer.rewind();
-                    dest.copyPixelsFromBuffer(buffer);
-
-                    // get the portrait portion that's in the center of the landscape bitmap
-                    Bitmap croppedDest = Bitmap.createBitmap(dest, quirkyLandscapeWidth / 2 - scaledWidth / 2, 0, scaledWidth, scaledHeight);
-
-                    ByteBuffer croppedBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
-                    croppedDest.copyPixelsToBuffer(croppedBuffer);
-
-                    // if needed, setup a new VNC framebuffer that matches the new buffer's dimensions
-                    if (scaledWidth != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
-                        MainService.vncNewFramebuffer(scaledWidth, scaledHeight);
-
-                    MainService.vncUpdateFramebuffer(croppedBuffer);
+                    // the portrait portion is in the center of the landscape image, the native side
+                    // reads it straight from the plane, switching the framebuffer to its dimensions if needed
+                    if (MainService.vncUpdateFramebufferCropped(buffer,
+                            quirkyLandscapeWidth / 2 - scaledWidth / 2, 0,
+                            scaledWidth, scaledHeight, rowStride, pixelStride))
+                        // clients point into this frame's geometry from now on
+                        InputService.scaling = scaling;
                 } catch (Exception ignored) {
                 }
-            }, null);
+            };
+        } else {
+            /*
+                This is the default behaviour.
+             */
+            readerWidth = scaledWidth;
+            readerHeight = scaledHeight;
+            ingester = image -> {
+                try {
+                    final Image.Plane[] planes = image.getPlanes();
+                    final ByteBuffer buffer = planes[0].getBuffer();
+                    int pixelStride = planes[0].getPixelStride();
+                    int rowStride = planes[0].getRowStride();
 
-            try {
-                if(mVirtualDisplay == null) {
-                    mVirtualDisplay = mMediaProjection.createVirtualDisplay(getString(R.string.app_name),
-                            quirkyLandscapeWidth, quirkyLandscapeHeight, metrics.densityDpi,
-                            DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                            mImageReader.getSurface(), null, null);
-                } else {
-                    mVirtualDisplay.resize(quirkyLandscapeWidth, quirkyLandscapeHeight, metrics.densityDpi);
-                    mVirtualDisplay.setSurface(mImageReader.getSurface());
+                    // the native side skips the plane's row padding so it never reaches clients
+                    if (CaptureSource.INGEST.onFrame(buffer, scaledWidth, scaledHeight, rowStride, pixelStride))
+                        // clients point into this frame's geometry from now on
+                        InputService.scaling = scaling;
+                } catch (Exception ignored) {
                 }
-            } catch (SecurityException e) {
-                Log.w(TAG, "startScreenCapture: got SecurityException, re-requesting confirmation");
-                // This initiates a prompt dialog for the user to confirm screen projection.
-                Intent mediaProjectionRequestIntent = new Intent(this, MediaProjectionRequestActivity.class);
-                mediaProjectionRequestIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(mediaProjectionRequestIntent);
-            }
+            };
+        }
 
+        if (mVirtualDisplay != null && isImageReader(mImageReader, readerWidth, readerHeight) && metrics.densityDpi == mVirtualDisplayDpi) {
+            // a configuration change that did not change the geometry, e.g. dark mode
+            Log.d(TAG, "startScreenCapture: geometry unchanged, keeping capture as is");
+            mReconfigureStartNs.set(0);
             return;
         }
 
-        /*
-            This is the default behaviour.
-         */
-        mImageReader = ImageReader.newInstance(scaledWidth, scaledHeight, PixelFormat.RGBA_8888, 2);
-        mImageReader.setOnImageAvailableListener(imageReader -> {
-            try (Image image = imageReader.acquireLatestImage()) {
-
-                if (image == null)
-                    return;
-
-                final Image.Plane[] planes = image.getPlanes();
-                final ByteBuffer buffer = planes[0].getBuffer();
-                int pixelStride = planes[0].getPixelStride();
-                int rowStride = planes[0].getRowStride();
-                int rowPadding = rowStride - pixelStride * scaledWidth;
-                int w = scaledWidth + rowPadding / pixelStride;
-
-                // if needed, setup a new VNC framebuffer that matches the image plane's parameters
-                if (w != MainService.vncGetFramebufferWidth() || scaledHeight != MainService.vncGetFramebufferHeight())
-                    MainService.vncNewFramebuffer(w, scaledHeight);
-
-                buffer.rewind();
-
-                MainService.vncUpdateFramebuffer(buffer);
-            } catch (Exception ignored) {
-            }
-        }, null);
+        ImageReader imageReader = obtainImageReader(readerWidth, readerHeight);
+        imageReader.setOnImageAvailableListener(reader -> acquireFrames(reader, ingester), mCaptureHandler);
 
         try {
             if(mVirtualDisplay == null) {
                 mVirtualDisplay = mMediaProjection.createVirtualDisplay(getString(R.string.app_name),
-                        scaledWidth, scaledHeight, metrics.densityDpi,
+                        readerWidth, readerHeight, metrics.densityDpi,
                         DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                        mImageReader.getSurface(), null,null);
+                        mIsIdle ? null : imageReader.getSurface(), null,null);
             } else {
-                mVirtualDisplay.resize(scaledWidth, scaledHeight, metrics.densityDpi);
-                mVirtualDisplay.setSurface(mImageReader.getSurface());
+                mVirtualDisplay.resize(readerWidth, readerHeight, metrics.densityDpi);
+                mVirtualDisplay.setSurface(mIsIdle ? null : imageReader.getSurface());
             }
+            mVirtualDisplayDpi = metrics.densityDpi;
         } catch (SecurityException e) {
             Log.w(TAG, "startScreenCapture: got SecurityException, re-requesting confirmation");
             // This initiates a prompt dialog for the user to confirm screen projection.
@@ -316,6 +382,183 @@ public class MediaProjectionService extends Service {
 
     }
 
+    private static boolean isImageReader(ImageReader imageReader, int width, int height) {
+        return imageReader != null && imageReader.getWidth() == width && imageReader.getHeight() == height;
+    }
+
+    /**
+     * Makes an ImageReader of the given geometry the current one. The previous current one is kept
+     * as spare, detached, so that rotating back and forth does not create readers anew. When there
+     * is none yet, one for the other orientation is set up in advance.
+     */
+    private ImageReader obtainImageReader(int width, int height) {
+        if (isImageReader(mImageReader, width, height))
+            return mImageReader;
+
+        ImageReader previous = mImageReader;
+        if (isImageReader(mSpareImageReader, width, height)) {
+            mImageReader = mSpareImageReader;
+        } else {
+            if (mSpareImageReader != null)
+                closeImageReader(mSpareImageReader);
+            // one more than can be queued so that acquiring always works
+            mImageReader = ImageReader.newInstance(width, height, mPixelFormat, mImageReaderMaxImages);
+        }
+
+        if (previous != null) {
+            detachImageReader(previous);
+            mSpareImageReader = previous;
+        } else {
+            mSpareImageReader = ImageReader.newInstance(height, width, mPixelFormat, mImageReaderMaxImages);
+        }
+
+        return mImageReader;
+    }
+
+    /**
+     * Acquire stage, on the capture thread: moves all available images into the frame queue,
+     * then ingests what clients want.
+     */
+    private void acquireFrames(ImageReader imageReader, FrameIngester ingester) {
+        // called once per frame the platform rendered, albeit possibly late
+        mFramesProduced.incrementAndGet();
+
+        boolean wanted = false;
+        int acquired = 0;
+        for (;;) {
+            Image image;
+            try {
+                image = imageReader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // should the queue be full, out of images
+                Log.w(TAG, "acquireFrames: could not acquire image: " + e);
+                mReaderStalls.incrementAndGet();
+                break;
+            } catch (Exception e) {
+                // reader closed meanwhile
+                Log.w(TAG, "acquireFrames: could not acquire image: " + e);
+                break;
+            }
+            if (image == null)
+                break;
+
+            long now = System.nanoTime();
+            mFramesAcquired.incrementAndGet();
+            if (mFrameQueueSizer != null)
+                mFrameQueueSizer.onAcquired(now);
+            enqueueFrame(new QueuedFrame(image, ingester, now));
+            wanted = MainService.vncIsFrameWanted(true);
+            ++acquired;
+        }
+        if (acquired >= imageReader.getMaxImages())
+            mReaderStalls.incrementAndGet();
+
+        ingestFrames(wanted);
+    }
+
+    private void enqueueFrame(QueuedFrame frame) {
+        if (mFrameQueue.size() >= mFrameQueueCapacity) {
+            if (DROP_POLICY_OLDEST.equals(mDropPolicy)) {
+                dropFrame(mFrameQueue.pollFirst());
+            } else {
+                while (!mFrameQueue.isEmpty())
+                    dropFrame(mFrameQueue.pollFirst());
+            }
+        }
+        mFrameQueue.addLast(frame);
+        updateQueueDepth();
+    }
+
+    /**
+     * Convert and ingest stages, on the capture thread: ingests queued frames in order as long as
+     * clients want them, otherwise polls until they do.
+     */
+    private void ingestFrames(boolean wanted) {
+        mCaptureHandler.removeCallbacks(mFramePoll);
+
+        while (wanted && !mFrameQueue.isEmpty()) {
+            QueuedFrame frame = mFrameQueue.pollFirst();
+            updateQueueDepth();
+            try {
+                frame.ingester.ingest(frame.image);
+            } finally {
+                frame.image.close();
+            }
+            if (mFrameQueueSizer != null) {
+                int capacity = mFrameQueueSizer.onIngested(System.nanoTime() - frame.acquiredNs);
+                if (capacity != mFrameQueueCapacity)
+                    Log.d(TAG, "ingestFrames: frame queue capacity now " + capacity);
+                mFrameQueueCapacity = capacity;
+            }
+            long reconfigureStartNs = mReconfigureStartNs.getAndSet(0);
+            if (reconfigureStartNs != 0) {
+                mReconfigureLatencyNs.set(System.nanoTime() - reconfigureStartNs);
+                Log.d(TAG, "ingestFrames: reconfiguration took " + mReconfigureLatencyNs.get() / 1000000 + " ms");
+            }
+            wanted = MainService.vncIsFrameWanted(false);
+        }
+
+        if (!mFrameQueue.isEmpty())
+            mCaptureHandler.postDelayed(mFramePoll, FRAME_POLL_INTERVAL_MS);
+    }
+
+    private void pollFrames() {
+        if (MainService.hasClients()) {
+            ingestFrames(MainService.vncIsFrameWanted(false));
+        } else {
+            // going idle, queued frames will be superseded on resume anyway
+            flushFrames();
+        }
+    }
+
+    private void dropFrame(QueuedFrame frame) {
+        frame.image.close();
+        mFramesDropped.incrementAndGet();
+    }
+
+    private void flushFrames() {
+        mCaptureHandler.removeCallbacks(mFramePoll);
+        while (!mFrameQueue.isEmpty())
+            mFrameQueue.pollFirst().image.close();
+        updateQueueDepth();
+    }
+
+    private void updateQueueDepth() {
+        int depth = mFrameQueue.size();
+        mQueueDepth.set(depth);
+        if (depth > mQueueDepthMax.get())
+            mQueueDepthMax.set(depth); // only ever written on the capture thread
+    }
+
+    /**
+     * Stops frame delivery from the given reader and discards what it delivered on the capture
+     * thread, so that no outdated frame gets ingested should it be used again.
+     */
+    private void detachImageReader(ImageReader imageReader) {
+        imageReader.setOnImageAvailableListener(null, null);
+        mCaptureHandler.post(() -> {
+            flushFrames();
+            try {
+                Image image;
+                while ((image = imageReader.acquireNextImage()) != null)
+                    image.close();
+            } catch (Exception ignored) {
+                // closed meanwhile
+            }
+        });
+    }
+
+    /**
+     * Closes the given reader on the capture thread, after the frames it delivered were discarded.
+     */
+    private void closeImageReader(ImageReader imageReader) {
+        imageReader.setOnImageAvailableListener(null, null);
+        mCaptureHandler.post(() -> {
+            flushFrames();
+            imageReader.close();
+        });
+    }
+
     private void stopScreenCapture() {
         try {
             mVirtualDisplay.release();
@@ -324,6 +567,15 @@ public class MediaProjectionService extends Service {
             //unused
         }
 
+        if (mImageReader != null) {
+            closeImageReader(mImageReader);
+            mImageReader = null;
+        }
+        if (mSpareImageReader != null) {
+            closeImageReader(mSpareImageReader);
+            mSpareImageReader = null;
+        }
+
         if (mMediaProjection != null) {
             mMediaProjection.stop();
             mMediaProjection = null;
@@ -338,6 +590,78 @@ public class MediaProjectionService extends Service {
         return instance != null && instance.mResultCode != 0 && instance.mResultData != null;
     }
 
+    /**
+     * Enters or leaves idle mode, in which the screen is not captured at all. Leaving it resumes
+     * capture, with the first frame diffed against the last one ingested before going idle, so
+     * clients get everything that changed meanwhile. Can be called from any thread.
+     */
+    static void setIdle(boolean idle) {
+        try {
+            instance.mMainHandler.post(() -> {
+                try {
+                    if (instance.mIsIdle == idle)
+                        return;
+                    instance.mIsIdle = idle;
+                    Log.d(TAG, "setIdle: " + idle);
+                    if (instance.mVirtualDisplay != null && instance.mImageReader != null)
+                        instance.mVirtualDisplay.setSurface(idle ? null : instance.mImageReader.getSurface());
+                } catch (NullPointerException ignored) {
+                    // instance gone meanwhile
+                }
+            });
+        } catch (NullPointerException e) {
+            //unused
+        }
+    }
+
+    /**
+     * Switches to capturing at the given fraction of the display size by resizing the
+     * VirtualDisplay, clients get the new size with the next frame, which is also when
+     * InputService.scaling changes. Can be called from any thread.
+     */
+    static void setScaling(float scaling) {
+        try {
+            instance.mMainHandler.post(() -> {
+                try {
+                    if (instance.mScaling == scaling)
+                        return;
+                    instance.mScaling = scaling;
+                    Log.d(TAG, "setScaling: " + scaling);
+                    // before capture is set up, it will simply use the new value
+                    if (instance.mVirtualDisplay != null) {
+                        instance.mReconfigureStartNs.set(instance.mIsIdle ? 0 : System.nanoTime());
+                        instance.startScreenCapture();
+                    }
+                } catch (NullPointerException ignored) {
+                    // instance gone meanwhile
+                }
+            });
+        } catch (NullPointerException e) {
+            //unused
+        }
+    }
+
+    /**
+     * Get a snapshot of the capture pipeline counters.
+     * @return Values as per the CaptureSource.STATS_* indices, null if not capturing.
+     */
+    static long[] getCaptureStats() {
+        try {
+            long[] stats = new long[CaptureSource.STATS_SIZE];
+            stats[CaptureSource.STATS_QUEUE_DEPTH] = instance.mQueueDepth.get();
+            stats[CaptureSource.STATS_QUEUE_DEPTH_MAX] = instance.mQueueDepthMax.get();
+            stats[CaptureSource.STATS_FRAMES_DROPPED] = instance.mFramesDropped.get();
+            stats[CaptureSource.STATS_RECONFIGURE_LATENCY] = instance.mReconfigureLatencyNs.get();
+            stats[CaptureSource.STATS_FRAMES_PRODUCED] = instance.mFramesProduced.get();
+            stats[CaptureSource.STATS_FRAMES_ACQUIRED] = instance.mFramesAcquired.get();
+            stats[CaptureSource.STATS_READER_STALLS] = instance.mReaderStalls.get();
+            stats[CaptureSource.STATS_QUEUE_CAPACITY] = instance.mFrameQueueCapacity;
+            return stats;
+        } catch (NullPointerException e) {
+            return null;
+        }
+    }
+
     static void togglePortraitInLandscapeWorkaround() {
         try {
             // set
@@ -0,0 +1,74 @@
+/*
+ * DroidVNC-NG accessibility screenshot capture source.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Captures via InputService taking screenshots, the fallback when there is no MediaProjection.
+ */
+@RequiresApi(api = Build.VERSION_CODES.R)
+final class ScreenShotCaptureSource implements CaptureSource {
+
+    @Override
+    public void start() {
+        InputService.takeScreenShots(true);
+    }
+
+    @Override
+    public void stop() {
+        InputService.takeScreenShots(false);
+    }
+
+    @Override
+    public void setIdle(boolean idle) {
+        InputService.setScreenShotsPaused(idle);
+    }
+
+    @Override
+    public void setScaling(float scaling) {
+        InputService.setScreenShotScaling(scaling);
+    }
+
+    @Override
+    public int getWidth() {
+        // screenshots are scaled to the framebuffer on the way in
+        return Math.max(0, MainService.vncGetFramebufferWidth());
+    }
+
+    @Override
+    public int getHeight() {
+        return Math.max(0, MainService.vncGetFramebufferHeight());
+    }
+
+    @Override
+    public long[] getStats() {
+        if (!InputService.isTakingScreenShots())
+            return null;
+        long[] stats = new long[STATS_SIZE];
+        stats[STATS_FRAME_RATE_MILLIHZ] = (long) (InputService.getScreenShotFps() * 1000);
+        return stats;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * DroidVNC-NG screenshot scheduler.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package net.christianbeier.droidvnc_ng;
+
+/**
+ * Decides when to take the next screenshot in the accessibility screenshot capture mode.
+ * <p>
+ * The platform rate-limits screenshots with a device-specific minimum interval it does not expose.
+ * This probes towards it AIMD-style: each delivered screenshot shortens the request interval by a
+ * fixed step, each rejection for being too early lengthens it by a factor. On top of that, an idle
+ * backoff that doubles with every screenshot that was unchanged or that no client was waiting for
+ * stretches the delay, and is dropped as soon as a screenshot is both wanted and changed.
+ * <p>
+ * Not thread-safe apart from {@link #getFps()}, all other calls are meant to come from one thread.
+ * Times are in milliseconds of any monotonic clock.
+ */
+final class ScreenShotScheduler {
+
+    static final long INITIAL_INTERVAL_MS = 100;
+    static final long MIN_INTERVAL_MS = 16;
+    static final long MAX_INTERVAL_MS = 2000;
+    static final long PROBE_STEP_MS = 10;
+    static final float BACKOFF_FACTOR = 1.5f;
+    static final long IDLE_BACKOFF_MIN_MS = 50;
+    static final long IDLE_BACKOFF_MAX_MS = 500;
+
+    // weight of the newest frame interval in the moving average the frame rate is derived from
+    private static final float FPS_SMOOTHING = 0.2f;
+
+    private long mIntervalMs = INITIAL_INTERVAL_MS;
+    private long mIdleBackoffMs;
+    private long mLastRequestMs = -1;
+    private long mLastFrameMs = -1;
+    private float mAverageFrameIntervalMs;
+    private volatile float mFps;
+
+    /**
+     * Forgets about previous screenshots, e.g. when the loop is (re)started, but keeps the probed interval.
+     */
+    void reset() {
+        mIdleBackoffMs = 0;
+        mLastRequestMs = -1;
+        mLastFrameMs = -1;
+        mAverageFrameIntervalMs = 0;
+        mFps = 0;
+    }
+
+    /**
+     * To be called right when a screenshot is requested.
+     */
+    void onRequest(long nowMs) {
+        mLastRequestMs = nowMs;
+    }
+
+    /**
+     * To be called when a screenshot was delivered.
+     * @param changed Whether the screenshot differed from the previous one.
+     * @param wanted Whether a client was waiting for a framebuffer update.
+     * @return Delay in milliseconds until the next screenshot should be requested.
+     */
+    long onFrame(long nowMs, boolean changed, boolean wanted) {
+        if (mLastFrameMs >= 0) {
+            float frameIntervalMs = Math.max(1, nowMs - mLastFrameMs);
+            mAverageFrameIntervalMs = mAverageFrameIntervalMs == 0
+                    ? frameIntervalMs
+                    : mAverageFrameIntervalMs + FPS_SMOOTHING * (frameIntervalMs - mAverageFrameIntervalMs);
+            mFps = 1000f / mAverageFrameIntervalMs;
+        }
+        mLastFrameMs = nowMs;
+
+        // additive decrease: probe for a shorter interval
+        mIntervalMs = Math.max(MIN_INTERVAL_MS, mIntervalMs - PROBE_STEP_MS);
+
+        if (changed && wanted)
+            mIdleBackoffMs = 0;
+        else
+            mIdleBackoffMs = mIdleBackoffMs == 0 ? IDLE_BACKOFF_MIN_MS : Math.min(IDLE_BACKOFF_MAX_MS, mIdleBackoffMs * 2);
+
+        return getDelay(nowMs);
+    }
+
+    /**
+     * To be called when a screenshot request was rejected because it came too early.
+     * @return Delay in milliseconds until the next screenshot should be requested.
+     */
+    long onTooEarly(long nowMs) {
+        // multiplicative increase
+        mIntervalMs = Math.min(MAX_INTERVAL_MS, (long) Math.ceil(mIntervalMs * BACKOFF_FACTOR));
+        return getDelay(nowMs);
+    }
+
+    /**
+     * @return The currently probed minimum interval between screenshot requests.
+     */
+    long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /**
+     * @return The rate at which screenshots were delivered recently, 0 if unknown. Can be called from any thread.
+     */
+    float getFps() {
+        return mFps;
+    }
+
+    private long getDelay(long nowMs) {
+        if (mLastRequestMs < 0)
+            return 0;
+        return Math.max(0, mLastRequestMs + mIntervalMs + mIdleBackoffMs - nowMs);
+    }
+}
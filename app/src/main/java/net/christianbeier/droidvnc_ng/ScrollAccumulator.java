@@ -0,0 +1,116 @@
+/*
+ * DroidVNC-NG mouse wheel scrolling.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+/**
+ * Sums up mouse wheel ticks so that they get scrolled by in one swipe instead of one swipe per
+ * tick, of which the ones arriving while another is still being performed would be lost.
+ * <p>
+ * Ticks are due {@link #WINDOW_MS} after the first one that was accumulated and keep accumulating
+ * while the previous swipe is in flight. A swipe scrolls by the platform's per-tick distance for
+ * each tick, plus the touch slop the scrolled view eats before it starts moving. Totals that do not
+ * fit on the display become shorter, faster swipes instead, so that the view flings further.
+ * <p>
+ * Not thread-safe, callers need to synchronize on the accumulator. Times are in milliseconds of
+ * any monotonic clock.
+ */
+final class ScrollAccumulator {
+
+    static final long WINDOW_MS = 50;
+    static final long SWIPE_DURATION_MS = 200;
+    static final long MIN_SWIPE_DURATION_MS = 40;
+    // of the display height, leaving room to place the swipe
+    static final float MAX_SWIPE_FRACTION = 0.6f;
+
+    private int mTicks;
+    private int mX;
+    private int mY;
+    private long mFirstTickMs;
+
+    /**
+     * Adds wheel ticks at the given pointer position.
+     * @param ticks Positive to scroll down, i.e. to move the content up.
+     */
+    void onTick(int ticks, int x, int y, long nowMs) {
+        if (mTicks == 0)
+            mFirstTickMs = nowMs;
+        mTicks += ticks;
+        mX = x;
+        mY = y;
+    }
+
+    boolean hasPending() {
+        return mTicks != 0;
+    }
+
+    /**
+     * @return Milliseconds until the pending ticks should be scrolled by, 0 if they are due.
+     */
+    long getDelayMs(long nowMs) {
+        return Math.max(0, mFirstTickMs + WINDOW_MS - nowMs);
+    }
+
+    /**
+     * Takes the pending ticks out.
+     * @return The sum of the ticks, positive to scroll down.
+     */
+    int take() {
+        int ticks = mTicks;
+        mTicks = 0;
+        return ticks;
+    }
+
+    /**
+     * @return The pointer position of the latest tick.
+     */
+    int getX() {
+        return mX;
+    }
+
+    int getY() {
+        return mY;
+    }
+
+    /**
+     * @param ticks As returned by {@link #take()}.
+     * @param pixelsPerTick Distance the platform scrolls by per wheel tick.
+     * @param touchSlop Distance a touch can move before it is taken for scrolling.
+     * @return Length of the swipe, positive for swiping up, i.e. scrolling down.
+     */
+    static int getSwipeDistance(int ticks, float pixelsPerTick, int touchSlop, int displayHeight) {
+        float distance = Math.min(Math.abs(ticks) * pixelsPerTick + touchSlop, displayHeight * MAX_SWIPE_FRACTION);
+        return (int) Math.signum(ticks) * (int) distance;
+    }
+
+    /**
+     * @return Duration of the swipe for the given ticks, see {@link #getSwipeDistance(int, float, int, int)}.
+     */
+    static long getSwipeDuration(int ticks, float pixelsPerTick, int touchSlop, int displayHeight) {
+        float wanted = Math.abs(ticks) * pixelsPerTick + touchSlop;
+        float possible = displayHeight * MAX_SWIPE_FRACTION;
+        if (wanted <= possible)
+            return SWIPE_DURATION_MS;
+        // speed up in proportion to what's missing
+        return Math.max(MIN_SWIPE_DURATION_MS, (long) (SWIPE_DURATION_MS * possible / wanted));
+    }
+}
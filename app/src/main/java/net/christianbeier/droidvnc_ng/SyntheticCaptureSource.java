@@ -0,0 +1,157 @@
+/*
+ * DroidVNC-NG synthetic capture source.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Delivers frames from a SyntheticFrameGenerator at a fixed rate instead of capturing the screen,
+ * for measuring the rest of the pipeline on a device without any capture backend variance.
+ */
+final class SyntheticCaptureSource implements CaptureSource {
+
+    private static final String TAG = "SyntheticCaptureSource";
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private final SyntheticFrameGenerator mGenerator;
+    private final FrameCallback mCallback;
+    private final ByteBuffer mBuffer;
+    private final IntBuffer mPixels;
+    private final HandlerThread mThread = new HandlerThread("SyntheticCapture", Process.THREAD_PRIORITY_DISPLAY);
+    private Handler mHandler;
+    private final Runnable mFrame = this::deliverFrame;
+
+    // only accessed on the capture thread
+    private boolean mIsIdle;
+    private int mFrameIndex;
+    private long mNextFrameMs;
+    private long mRateStartMs;
+    private long mRateFrames;
+    private volatile long mFrameRateMilliHz;
+    private volatile boolean mIsRunning;
+
+    SyntheticCaptureSource(SyntheticFrameGenerator generator, FrameCallback callback) {
+        mGenerator = generator;
+        mCallback = callback;
+        mBuffer = ByteBuffer.allocateDirect(generator.getWidth() * generator.getHeight() * 4).order(ByteOrder.nativeOrder());
+        mPixels = mBuffer.asIntBuffer();
+    }
+
+    @Override
+    public void start() {
+        Log.d(TAG, "start: " + mGenerator.getWidth() + "x" + mGenerator.getHeight());
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mIsRunning = true;
+        mHandler.post(() -> {
+            mIsIdle = !MainService.hasClients();
+            if (!mIsIdle)
+                resume();
+        });
+    }
+
+    /**
+     * Stops delivering frames, returning only once the last frame has left the callback.
+     */
+    @Override
+    public void stop() {
+        Log.d(TAG, "stop");
+        mIsRunning = false;
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void setIdle(boolean idle) {
+        if (!mIsRunning)
+            return;
+        mHandler.post(() -> {
+            if (mIsIdle == idle)
+                return;
+            mIsIdle = idle;
+            Log.d(TAG, "setIdle: " + idle);
+            if (idle)
+                mHandler.removeCallbacks(mFrame);
+            else
+                resume();
+        });
+    }
+
+    @Override
+    public void setScaling(float scaling) {
+        // the generator renders one size only
+    }
+
+    @Override
+    public int getWidth() {
+        return mGenerator.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mGenerator.getHeight();
+    }
+
+    @Override
+    public long[] getStats() {
+        if (!mIsRunning)
+            return null;
+        long[] stats = new long[STATS_SIZE];
+        stats[STATS_FRAME_RATE_MILLIHZ] = mFrameRateMilliHz;
+        return stats;
+    }
+
+    private void resume() {
+        mNextFrameMs = SystemClock.uptimeMillis();
+        mRateStartMs = mNextFrameMs;
+        mRateFrames = 0;
+        deliverFrame();
+    }
+
+    private void deliverFrame() {
+        mGenerator.render(mFrameIndex++, mPixels, mGenerator.getWidth());
+        mBuffer.clear();
+        mCallback.onFrame(mBuffer, mGenerator.getWidth(), mGenerator.getHeight(), mGenerator.getWidth() * 4, 4);
+
+        long now = SystemClock.uptimeMillis();
+        ++mRateFrames;
+        if (now > mRateStartMs)
+            mFrameRateMilliHz = mRateFrames * 1000 * 1000 / (now - mRateStartMs);
+
+        // fixed rate, but don't try to catch up when falling behind
+        mNextFrameMs = Math.max(mNextFrameMs + FRAME_INTERVAL_MS, now);
+        mHandler.postAtTime(mFrame, mNextFrameMs);
+    }
+}
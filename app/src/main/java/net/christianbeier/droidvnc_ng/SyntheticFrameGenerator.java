@@ -0,0 +1,163 @@
+/*
+ * DroidVNC-NG synthetic frame generator.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Renders deterministic frames of typical screen content that only depend on the frame index,
+ * so that measurements are comparable across devices and builds. Same patterns as the native
+ * host-side synthetic source in app/src/test/cpp.
+ */
+final class SyntheticFrameGenerator {
+
+    enum Pattern {
+        // the same frame over and over
+        STATIC,
+        // a page of text-like content between static bars, scrolling steadily
+        SCROLLING_TEXT,
+        // a noise-filled video area changing completely on every frame
+        VIDEO
+    }
+
+    static final int SCROLL_STEP = 8;
+    private static final int STATUS_BAR = 48;
+    private static final int NAVIGATION_BAR = 96;
+    private static final int LINE_HEIGHT = 24;
+
+    private final Pattern mPattern;
+    private final int mWidth;
+    private final int mHeight;
+    // static and scrolling text: the pre-rendered page, wrapping around
+    private final int[] mPage;
+    private final int mPageHeight;
+    private final int[] mRow;
+
+    SyntheticFrameGenerator(Pattern pattern, int width, int height) {
+        mPattern = pattern;
+        mWidth = width;
+        mHeight = height;
+        mRow = new int[width];
+        if (pattern == Pattern.STATIC || pattern == Pattern.SCROLLING_TEXT) {
+            // several screens worth, whole lines so that wrapping around does not show
+            mPageHeight = (height * 4 / LINE_HEIGHT) * LINE_HEIGHT;
+            mPage = renderPage(width, mPageHeight);
+        } else {
+            mPageHeight = 0;
+            mPage = null;
+        }
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Renders the frame with the given index as opaque 32-bit pixels, 0xAABBGGRR in native byte order.
+     * @param frame Destination, rows starting rowStride pixels apart from its index 0.
+     */
+    void render(int index, IntBuffer frame, int rowStride) {
+        final int contentTop = Math.min(STATUS_BAR, mHeight);
+        final int contentBottom = Math.max(mHeight - NAVIGATION_BAR, contentTop);
+
+        fillRows(frame, rowStride, 0, contentTop, 0xff303080);
+        fillRows(frame, rowStride, contentBottom, mHeight, 0xff101010);
+
+        switch (mPattern) {
+            case STATIC:
+            case SCROLLING_TEXT: {
+                int offset = mPattern == Pattern.STATIC ? 0 : (int) (((long) index * SCROLL_STEP) % mPageHeight);
+                for (int y = contentTop; y < contentBottom; ++y) {
+                    frame.position(y * rowStride);
+                    frame.put(mPage, ((offset + y - contentTop) % mPageHeight) * mWidth, mWidth);
+                }
+                break;
+            }
+            case VIDEO: {
+                // a 16:9 video area in the middle of the content, letterboxed in black
+                int videoHeight = Math.min(mWidth * 9 / 16, contentBottom - contentTop);
+                int videoTop = contentTop + (contentBottom - contentTop - videoHeight) / 2;
+                fillRows(frame, rowStride, contentTop, contentBottom, 0xff000000);
+                int[] rng = { 0x9e3779b9 ^ (index * 0x85ebca6b + 1) };
+                for (int y = videoTop; y < videoTop + videoHeight; ++y) {
+                    for (int x = 0; x < mWidth; ++x)
+                        mRow[x] = 0xff000000 | (xorshift(rng) & 0xffffff);
+                    frame.position(y * rowStride);
+                    frame.put(mRow);
+                }
+                break;
+            }
+        }
+        frame.rewind();
+    }
+
+    private void fillRows(IntBuffer frame, int rowStride, int y1, int y2, int pixel) {
+        Arrays.fill(mRow, pixel);
+        for (int y = y1; y < y2; ++y) {
+            frame.position(y * rowStride);
+            frame.put(mRow);
+        }
+    }
+
+    private static int xorshift(int[] state) {
+        int x = state[0];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return state[0] = x;
+    }
+
+    /*
+        Lines of glyph-like blocks on white with ragged line ends, a separator every few lines.
+     */
+    private static int[] renderPage(int width, int height) {
+        int[] page = new int[width * height];
+        int[] rng = { 0x2545f491 };
+        Arrays.fill(page, 0xffffffff);
+        for (int line = 0; line < height / LINE_HEIGHT; ++line) {
+            int top = line * LINE_HEIGHT * width;
+            if (line % 8 == 7) {
+                for (int x = 16; x < width - 16; ++x)
+                    page[top + (LINE_HEIGHT / 2) * width + x] = 0xffcccccc;
+                continue;
+            }
+            int end = width - 16 - Integer.remainderUnsigned(xorshift(rng), Math.max(1, width / 3));
+            for (int x = 16; x + 10 <= end; x += 10) {
+                if (Integer.remainderUnsigned(xorshift(rng), 6) == 0)
+                    continue; // space
+                for (int gy = 0; gy < 14; ++gy) {
+                    int bits = xorshift(rng);
+                    for (int gx = 0; gx < 8; ++gx)
+                        if ((bits >>> gx & 1) != 0)
+                            page[top + (gy + 5) * width + x + gx] = 0xff202020;
+                }
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * DroidVNC-NG batched text entry.
+ *
+ * Author: Christian Beier <info@christianbeier.net>
+ *
+ * Copyright (C) 2024 Kitchen Armor.
+ *
+ * You can redistribute and/or modify this program under the terms of the
+ * GNU General Public License version 2 as published by the Free Software
+ * Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package net.christianbeier.droidvnc_ng;
+
+/**
+ * Collects the text edits typed into one keyboard focus node so that they can be written to it
+ * in one go instead of one whole-text replacement per key.
+ * <p>
+ * An entry is seeded with the node's text and cursor when the first edit of a batch comes in and
+ * from then on applies characters, backspaces and deletes to its own copy. The batch is due to be
+ * written once no edit came for {@link #QUIET_MS}, or {@link #MAX_DELAY_MS} after its first edit
+ * while typing goes on. After writing, {@link #reset()} makes the next batch start from the node's
+ * text again, so changes made on the device in between are not overwritten.
+ * <p>
+ * Not thread-safe, callers need to synchronize on the entry. Times are in milliseconds of any
+ * monotonic clock.
+ */
+final class TextEntry {
+
+    static final long QUIET_MS = 40;
+    static final long MAX_DELAY_MS = 250;
+
+    private final StringBuilder mText = new StringBuilder();
+    private int mCursor = -1;
+    private boolean mIsDirty;
+    private long mFirstEditMs;
+    private long mLastEditMs;
+
+    /**
+     * @return Whether the entry holds a batch's text, i.e. was seeded since the last reset.
+     */
+    boolean isSeeded() {
+        return mCursor >= 0;
+    }
+
+    /**
+     * Starts a batch from the focus node's current state.
+     * @param text The node's text, null if it has none.
+     * @param cursor The node's cursor position, the end of the text if unknown or out of range.
+     */
+    void seed(CharSequence text, int cursor) {
+        mText.setLength(0);
+        if (text != null)
+            mText.append(text);
+        mCursor = cursor < 0 || cursor > mText.length() ? mText.length() : cursor;
+        mIsDirty = false;
+    }
+
+    void insert(char c, long nowMs) {
+        mText.insert(mCursor, c);
+        ++mCursor;
+        onEdit(nowMs);
+    }
+
+    void backspace(long nowMs) {
+        if (mCursor == 0)
+            return;
+        mText.deleteCharAt(--mCursor);
+        onEdit(nowMs);
+    }
+
+    void delete(long nowMs) {
+        if (mCursor == mText.length())
+            return;
+        mText.deleteCharAt(mCursor);
+        onEdit(nowMs);
+    }
+
+    /**
+     * @return Whether there are edits not written to the node yet.
+     */
+    boolean isDirty() {
+        return mIsDirty;
+    }
+
+    /**
+     * @return Milliseconds until the pending edits should be written, 0 if they are due.
+     */
+    long getFlushDelayMs(long nowMs) {
+        long dueMs = Math.min(mLastEditMs + QUIET_MS, mFirstEditMs + MAX_DELAY_MS);
+        return Math.max(0, dueMs - nowMs);
+    }
+
+    /**
+     * @return The text with all edits applied, only valid until the next edit.
+     */
+    CharSequence getText() {
+        return mText;
+    }
+
+    int getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Forgets about the batch, e.g. after it was written or when the focus moved elsewhere.
+     */
+    void reset() {
+        mText.setLength(0);
+        mCursor = -1;
+        mIsDirty = false;
+    }
+
+    private void onEdit(long nowMs) {
+        if (!mIsDirty)
+            mFirstEditMs = nowMs;
+        mLastEditMs = nowMs;
+        mIsDirty = true;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Host-side microbenchmark of the framebuffer update path: plain memcmp()+memcpy() of the whole
+ * frame as done before versus the tiled compare-and-copy of fbdiff_update() with the selected kernel,
+ * the whole ingest with scroll detection, with and without row hashing rejecting duplicate frames
+ * and unchanged stripes, plus the overhead scroll detection adds per frame.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "fbdiff.h"
+#include "framehash.h"
+#include "scrolldetect.h"
+
+#define BPP 4
+#define ITERATIONS 200
+
+static double getTime(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (double) ts.tv_sec + (double) ts.tv_nsec / 1e9;
+}
+
+/*
+ * Changes the given percentage of rows of the frame, spread evenly.
+ */
+static void mutate(char *frame, int stride, int height, int percent, int iteration)
+{
+    if (percent <= 0)
+        return;
+    int step = 100 / percent;
+    for (int y = iteration % step; y < height; y += step)
+        memset(frame + (long) y * stride, iteration & 0xff, stride);
+}
+
+static void bench(int width, int height, int percent)
+{
+    const int stride = width * BPP;
+    const size_t size = (size_t) stride * height;
+    char *fb = malloc(size);
+    char *frame = malloc(size);
+    volatile int sink = 0;
+
+    // actually touch all pages
+    memset(fb, 0, size);
+    memset(frame, 0, size);
+
+    double t0 = getTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+        mutate(frame, stride, height, percent, i);
+        if (memcmp(fb, frame, size) != 0)
+            memcpy(fb, frame, size);
+        sink += fb[0];
+    }
+    double plain = (getTime() - t0) * 1000 / ITERATIONS;
+
+    memset(fb, 0, size);
+    memset(frame, 0, size);
+    t0 = getTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+        mutate(frame, stride, height, percent, i);
+        sink += fbdiff_update(fb, stride, frame, stride, width, height, BPP, NULL, NULL);
+    }
+    double tiled = (getTime() - t0) * 1000 / ITERATIONS;
+
+    // ingest as in droidvnc-ng.c, scroll detection hashing the frame itself
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    scrolldetect_init(&sd, height);
+    memset(fb, 0, size);
+    memset(frame, 0, size);
+    t0 = getTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+        mutate(frame, stride, height, percent, i);
+        sink += scrolldetect_detect(&sd, frame, stride, width, height, BPP, &shift);
+        sink += fbdiff_update(fb, stride, frame, stride, width, height, BPP, NULL, NULL);
+    }
+    double ingest = (getTime() - t0) * 1000 / ITERATIONS;
+
+    // the same, but rejecting duplicate frames and skipping unchanged stripes using row hashes
+    // that scroll detection reuses
+    framehash fh;
+    framehash_init(&fh, width, height, BPP, FBDIFF_TILE_SIZE);
+    scrolldetect_invalidate(&sd);
+    memset(fb, 0, size);
+    memset(frame, 0, size);
+    t0 = getTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+        mutate(frame, stride, height, percent, i);
+        if (framehash_update(&fh, frame, stride) == 0)
+            continue;
+        sink += scrolldetect_detect_hashes(&sd, fh.hashes, height, &shift);
+        for (int stripe = 0; stripe < fh.stripes; ++stripe) {
+            if (!framehash_stripe_changed(&fh, stripe))
+                continue;
+            int y1 = stripe * fh.stripeRows;
+            int y2 = y1 + fh.stripeRows < height ? y1 + fh.stripeRows : height;
+            sink += fbdiff_update(fb + (long) y1 * stride, stride, frame + (long) y1 * stride, stride,
+                                  width, y2 - y1, BPP, NULL, NULL);
+        }
+    }
+    double hashed = (getTime() - t0) * 1000 / ITERATIONS;
+    framehash_free(&fh);
+    scrolldetect_free(&sd);
+
+    printf("%5dx%-5d %3d%% rows changed: memcmp+memcpy %7.3f ms, fbdiff_update %7.3f ms, ingest %7.3f ms, hashed ingest %7.3f ms\n",
+           width, height, percent, plain, tiled, ingest, hashed);
+
+    free(frame);
+    free(fb);
+}
+
+/*
+ * Worst case for scroll detection: every row changes, so every row is looked up and votes.
+ */
+static void benchScrollDetect(int width, int height)
+{
+    const int stride = width * BPP;
+    const size_t size = (size_t) stride * height;
+    char *frame = malloc(size);
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    volatile int sink = 0;
+
+    scrolldetect_init(&sd, height);
+    for (size_t i = 0; i < size; ++i)
+        frame[i] = (char) rand();
+
+    double t0 = getTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+        // shift by one row each time
+        memmove(frame + stride, frame, size - stride);
+        sink += scrolldetect_detect(&sd, frame, stride, width, height, BPP, &shift);
+    }
+    double ms = (getTime() - t0) * 1000 / ITERATIONS;
+
+    printf("%5dx%-5d scrolling: memmove+scrolldetect_detect %7.3f ms, detected %d of %d\n",
+           width, height, ms, sink, ITERATIONS);
+
+    scrolldetect_free(&sd);
+    free(frame);
+}
+
+int main(void)
+{
+    static const int sizes[][2] = {{1280, 720}, {1920, 1080}, {1600, 2560}};
+    static const int changes[] = {0, 1, 10, 100};
+
+    fbdiff_init();
+    printf("fbdiff_bench: using %s kernel, %d iterations each\n", fbdiff_kernel_name(), ITERATIONS);
+
+    for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); ++s)
+        for (size_t c = 0; c < sizeof(changes) / sizeof(changes[0]); ++c)
+            bench(sizes[s][0], sizes[s][1], changes[c]);
+
+    for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); ++s)
+        benchScrollDetect(sizes[s][0], sizes[s][1]);
+
+    return 0;
+}
@@ -0,0 +1,158 @@
+/*
+ * Host-side test of the framebuffer change detection using synthetic frames.
+ */
+
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "fbdiff.h"
+#include "fbdiff_simd.h"
+
+#define WIDTH 100
+#define HEIGHT 70
+#define BPP 4
+
+typedef struct {
+    int count;
+    int x1[64], y1[64], x2[64], y2[64];
+} rects;
+
+static void collect(int x1, int y1, int x2, int y2, void *userdata)
+{
+    rects *r = userdata;
+    assert(r->count < 64);
+    r->x1[r->count] = x1;
+    r->y1[r->count] = y1;
+    r->x2[r->count] = x2;
+    r->y2[r->count] = y2;
+    r->count++;
+}
+
+static void setPixel(char *buf, int stride, int x, int y, unsigned int value)
+{
+    memcpy(buf + y * stride + x * BPP, &value, BPP);
+}
+
+typedef int (*cmpcpy_row_fn)(char *dst, const char *src, int len, int segmentLen, unsigned char *dirty, int copy);
+
+/*
+ * Checks a compare-and-copy row kernel against the obvious memcmp()+memcpy() for all row lengths
+ * and difference positions up to a couple of segments, with and without segments already dirty.
+ */
+static void testKernel(const char *name, cmpcpy_row_fn kernel)
+{
+    const int segmentLen = 40;
+    char src[200], dst[200];
+    unsigned char dirty[5];
+
+    for (int len = 1; len <= 200; ++len) {
+        for (int diffPos = -1; diffPos < len; ++diffPos) {
+            for (int preDirty = -1; preDirty < (len + segmentLen - 1) / segmentLen; ++preDirty) {
+                for (int i = 0; i < len; ++i)
+                    src[i] = dst[i] = (char) (i * 7);
+                if (diffPos >= 0)
+                    src[diffPos] ^= 0x5a;
+                memset(dirty, 0, sizeof(dirty));
+                if (preDirty >= 0)
+                    dirty[preDirty] = 1;
+
+                int changed = kernel(dst, src, len, segmentLen, dirty, 1);
+                if (changed != (diffPos >= 0 || preDirty >= 0)
+                    || memcmp(dst, src, len) != 0
+                    || (diffPos >= 0 && !dirty[diffPos / segmentLen])) {
+                    fprintf(stderr, "kernel %s failed for len %d diffPos %d preDirty %d\n", name, len, diffPos, preDirty);
+                    abort();
+                }
+                for (int seg = 0; seg < (len + segmentLen - 1) / segmentLen; ++seg) {
+                    if (dirty[seg] != (seg == preDirty || (diffPos >= 0 && seg == diffPos / segmentLen))) {
+                        fprintf(stderr, "kernel %s flagged wrong segment for len %d diffPos %d preDirty %d\n", name, len, diffPos, preDirty);
+                        abort();
+                    }
+                }
+            }
+        }
+    }
+}
+
+int main(void)
+{
+    testKernel("scalar", fbdiff_cmpcpy_row_scalar);
+#if defined(FBDIFF_ENABLE_NEON)
+    testKernel("neon", fbdiff_cmpcpy_row_neon);
+#endif
+#if defined(FBDIFF_ENABLE_SSE2)
+    testKernel("sse2", fbdiff_cmpcpy_row_sse2);
+#endif
+#if defined(FBDIFF_ENABLE_AVX2)
+    if (__builtin_cpu_supports("avx2"))
+        testKernel("avx2", fbdiff_cmpcpy_row_avx2);
+#endif
+
+    fbdiff_init();
+    printf("fbdiff_test: using %s kernel\n", fbdiff_kernel_name());
+
+    const int stride = WIDTH * BPP;
+    char *fb = calloc(stride * HEIGHT, 1);
+    char *frame = calloc(stride * HEIGHT, 1);
+    rects r;
+
+    // identical frames: nothing changed, nothing reported
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_update(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, collect, &r) == 0);
+    assert(r.count == 0);
+
+    // one pixel in the second tile column, first band
+    setPixel(frame, stride, 40, 5, 0xffffffff);
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_update(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, collect, &r) == 1);
+    assert(r.count == 1);
+    assert(r.x1[0] == 32 && r.y1[0] == 0 && r.x2[0] == 64 && r.y2[0] == 32);
+    assert(memcmp(fb, frame, stride * HEIGHT) == 0);
+
+    // two adjacent tiles are merged into one rect, partial last tile is clipped
+    setPixel(frame, stride, 70, 65, 0x12345678);
+    setPixel(frame, stride, 99, 69, 0x12345678);
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_update(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, collect, &r) == 2);
+    assert(r.count == 1);
+    assert(r.x1[0] == 64 && r.y1[0] == 64 && r.x2[0] == WIDTH && r.y2[0] == HEIGHT);
+    assert(memcmp(fb, frame, stride * HEIGHT) == 0);
+
+    // non-adjacent tiles are reported separately
+    setPixel(frame, stride, 0, 40, 0xabcdef01);
+    setPixel(frame, stride, 99, 40, 0xabcdef01);
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_update(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, collect, &r) == 2);
+    assert(r.count == 2);
+    assert(memcmp(fb, frame, stride * HEIGHT) == 0);
+
+    // comparing only reports but does not copy
+    char *copy = malloc(stride * HEIGHT);
+    memcpy(copy, fb, stride * HEIGHT);
+    setPixel(frame, stride, 50, 50, 0xdeadbeef);
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_compare(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, collect, &r) == 1);
+    assert(r.count == 1);
+    assert(r.x1[0] == 32 && r.y1[0] == 32 && r.x2[0] == 64 && r.y2[0] == 64);
+    assert(memcmp(fb, copy, stride * HEIGHT) == 0);
+    assert(fbdiff_update(fb, stride, frame, stride, WIDTH, HEIGHT, BPP, NULL, NULL) == 1);
+    free(copy);
+
+    // full change of a strided source
+    const int srcStride = stride + 16 * BPP;
+    char *padded = malloc(srcStride * HEIGHT);
+    memset(padded, 0x42, srcStride * HEIGHT);
+    memset(&r, 0, sizeof(r));
+    assert(fbdiff_update(fb, stride, padded, srcStride, WIDTH, HEIGHT, BPP, collect, &r) == 4 * 3);
+    assert(r.count == 3);
+    for (int y = 0; y < HEIGHT; ++y)
+        assert(memcmp(fb + y * stride, padded + y * srcStride, stride) == 0);
+
+    free(padded);
+    free(frame);
+    free(fb);
+
+    printf("fbdiff_test: all passed\n");
+    return 0;
+}
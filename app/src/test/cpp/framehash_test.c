@@ -0,0 +1,96 @@
+/*
+ * Host-side test of the stripe hashing used to reject duplicate frames.
+ */
+
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "framehash.h"
+
+#define WIDTH 200
+#define HEIGHT 100
+#define BPP 4
+#define STRIDE (WIDTH * BPP + 24)
+#define STRIPE_ROWS 32
+#define STRIPES ((HEIGHT + STRIPE_ROWS - 1) / STRIPE_ROWS)
+
+static void setPixel(char *frame, int x, int y, unsigned int pixel)
+{
+    memcpy(frame + y * STRIDE + x * BPP, &pixel, BPP);
+}
+
+static int changedStripes(const framehash *fh, int expected[STRIPES])
+{
+    for (int i = 0; i < STRIPES; ++i)
+        if (framehash_stripe_changed(fh, i) != expected[i])
+            return 0;
+    return 1;
+}
+
+int main(void)
+{
+    framehash fh;
+    char *frame = malloc(HEIGHT * STRIDE);
+    for (int i = 0; i < HEIGHT * STRIDE; ++i)
+        frame[i] = (char) (i * 31 + 7);
+
+    assert(framehash_init(&fh, WIDTH, HEIGHT, BPP, STRIPE_ROWS));
+    assert(fh.stripes == STRIPES);
+    assert(framehash_matches(&fh, WIDTH, HEIGHT, BPP));
+    assert(!framehash_matches(&fh, WIDTH, HEIGHT, 2));
+
+    // no previous frame: everything changed
+    assert(framehash_update(&fh, frame, STRIDE) == STRIPES);
+
+    // identical frame
+    assert(framehash_update(&fh, frame, STRIDE) == 0);
+
+    // row padding is ignored
+    for (int y = 0; y < HEIGHT; ++y)
+        memset(frame + y * STRIDE + WIDTH * BPP, y, STRIDE - WIDTH * BPP);
+    assert(framehash_update(&fh, frame, STRIDE) == 0);
+
+    // single pixel changes, in the last, shorter stripe and across two stripes
+    setPixel(frame, WIDTH - 1, HEIGHT - 1, 0x12345678);
+    assert(framehash_update(&fh, frame, STRIDE) == 1);
+    assert(changedStripes(&fh, (int[STRIPES]) { 0, 0, 0, 1 }));
+
+    setPixel(frame, 0, 0, 0x12345678);
+    setPixel(frame, 10, 2 * STRIPE_ROWS, 0x12345678);
+    assert(framehash_update(&fh, frame, STRIDE) == 2);
+    assert(changedStripes(&fh, (int[STRIPES]) { 1, 0, 1, 0 }));
+
+    assert(framehash_update(&fh, frame, STRIDE) == 0);
+    assert(changedStripes(&fh, (int[STRIPES]) { 0, 0, 0, 0 }));
+
+    // rows swapped within a stripe
+    char row[WIDTH * BPP];
+    memcpy(row, frame + 40 * STRIDE, sizeof(row));
+    memcpy(frame + 40 * STRIDE, frame + 41 * STRIDE, sizeof(row));
+    memcpy(frame + 41 * STRIDE, row, sizeof(row));
+    assert(framehash_update(&fh, frame, STRIDE) == 1);
+    assert(changedStripes(&fh, (int[STRIPES]) { 0, 1, 0, 0 }));
+
+    // after invalidation, everything changed again
+    framehash_invalidate(&fh);
+    assert(framehash_update(&fh, frame, STRIDE) == STRIPES);
+
+    framehash_free(&fh);
+    assert(!framehash_matches(&fh, WIDTH, HEIGHT, BPP));
+    assert(!framehash_init(&fh, 0, HEIGHT, BPP, STRIPE_ROWS));
+
+    // the block hash depends on all bytes and the length
+    char block[100] = { 0 };
+    uint64_t h = framehash_bytes(block, sizeof(block));
+    assert(framehash_bytes(block, sizeof(block) - 1) != h);
+    block[99] = 1;
+    assert(framehash_bytes(block, sizeof(block)) != h);
+    block[99] = 0;
+    block[0] = 1;
+    assert(framehash_bytes(block, sizeof(block)) != h);
+
+    free(frame);
+    printf("framehash_test: all passed\n");
+    return 0;
+}
@@ -0,0 +1,215 @@
+/*
+ * Host-side test of the input event queue: ordering and completeness with concurrent producers,
+ * coalescing of pointer moves only, dropping only moves when full and waking up on close.
+ */
+
+#include <assert.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <unistd.h>
+#include "inputqueue.h"
+
+#define PRODUCERS 4
+#define EVENTS_PER_PRODUCER 100000
+
+static inputqueue theQueue;
+
+static inputqueue_event pointer(int64_t client, int buttons, int x, int y)
+{
+    inputqueue_event event = { client, x, INPUTQUEUE_POINTER, buttons, x, y, 0 };
+    return event;
+}
+
+static inputqueue_event key(int64_t client, int down, uint32_t keysym)
+{
+    inputqueue_event event = { client, 0, INPUTQUEUE_KEY, down, 0, 0, keysym };
+    return event;
+}
+
+static void *produce(void *arg)
+{
+    int64_t client = (int64_t) (intptr_t) arg;
+    for (int i = 0; i < EVENTS_PER_PRODUCER; ++i) {
+        // key events, so nothing gets coalesced or dropped, waiting when full
+        inputqueue_event event = key(client, 1, (uint32_t) i);
+        assert(inputqueue_push(&theQueue, &event, 0));
+    }
+    return NULL;
+}
+
+static void testConcurrentProducers(void)
+{
+    assert(inputqueue_init(&theQueue, 64));
+    inputqueue_open(&theQueue);
+
+    pthread_t threads[PRODUCERS];
+    for (int i = 0; i < PRODUCERS; ++i)
+        pthread_create(&threads[i], NULL, produce, (void *) (intptr_t) (i + 1));
+
+    uint32_t next[PRODUCERS] = { 0 };
+    int total = 0;
+    inputqueue_event events[16];
+    while (total < PRODUCERS * EVENTS_PER_PRODUCER) {
+        int count = inputqueue_take(&theQueue, events, 16);
+        assert(count > 0 && count <= 16);
+        for (int i = 0; i < count; ++i) {
+            int producer = (int) events[i].client - 1;
+            assert(producer >= 0 && producer < PRODUCERS);
+            // each producer's events in order, none lost or duplicated
+            assert(events[i].keysym == next[producer]);
+            ++next[producer];
+        }
+        total += count;
+    }
+
+    for (int i = 0; i < PRODUCERS; ++i)
+        pthread_join(threads[i], NULL);
+    assert(atomic_load(&theQueue.coalesced) == 0);
+
+    inputqueue_close(&theQueue);
+    assert(inputqueue_take(&theQueue, events, 16) == -1);
+    inputqueue_free(&theQueue);
+}
+
+static void testCoalescing(void)
+{
+    assert(inputqueue_init(&theQueue, 64));
+    inputqueue_open(&theQueue);
+
+    inputqueue_event in[] = {
+        pointer(1, 0, 1, 1),    // first one seen, kept
+        pointer(1, 0, 2, 2),
+        pointer(1, 0, 3, 3),    // moves coalesced into this, with the timestamp of 2
+        pointer(1, 1, 4, 4),    // press keeps its position
+        pointer(1, 1, 5, 5),
+        pointer(1, 1, 6, 6),    // drag coalesced into this
+        key(1, 1, 42),          // keys are never coalesced and separate moves
+        pointer(1, 1, 7, 7),
+        pointer(2, 1, 8, 8),    // other client
+        pointer(1, 1, 9, 9),
+        pointer(1, 0, 10, 10),  // release keeps its position
+    };
+    const int expected[][2] = { { 1, 1 }, { 3, 2 }, { 4, 4 }, { 6, 5 }, { 0, 0 }, { 7, 7 }, { 8, 8 }, { 9, 9 }, { 10, 10 } };
+    for (unsigned i = 0; i < sizeof(in) / sizeof(in[0]); ++i)
+        assert(inputqueue_push(&theQueue, &in[i], 0));
+
+    inputqueue_event out[16];
+    int count = inputqueue_take(&theQueue, out, 16);
+    assert(count == sizeof(expected) / sizeof(expected[0]));
+    for (int i = 0; i < count; ++i) {
+        assert(out[i].x == expected[i][0]);
+        assert(out[i].timestampNs == expected[i][1]);
+    }
+    assert(out[4].type == INPUTQUEUE_KEY && out[4].keysym == 42);
+    assert(atomic_load(&theQueue.coalesced) == 2);
+
+    // moves continuing the last batch coalesce into one, also beyond a full out
+    for (int i = 20; i < 30; ++i) {
+        inputqueue_event event = pointer(1, 0, i, i);
+        assert(inputqueue_push(&theQueue, &event, 1));
+    }
+    assert(inputqueue_take(&theQueue, out, 1) == 1);
+    assert(out[0].x == 29 && out[0].timestampNs == 20);
+
+    inputqueue_free(&theQueue);
+}
+
+static void *pushKey(void *arg)
+{
+    inputqueue_event event = key(1, 0, (uint32_t) (intptr_t) arg);
+    return (void *) (intptr_t) inputqueue_push(&theQueue, &event, 0);
+}
+
+static void testFull(void)
+{
+    assert(!inputqueue_init(&theQueue, 3));
+    assert(inputqueue_init(&theQueue, 4));
+
+    // closed until opened
+    inputqueue_event event = key(1, 1, 0);
+    assert(!inputqueue_push(&theQueue, &event, 0));
+    inputqueue_open(&theQueue);
+    assert(atomic_load(&theQueue.dropped) == 0);
+
+    // moves leave a quarter free
+    for (int i = 0; i < 3; ++i) {
+        event = pointer(1, 0, i, i);
+        assert(inputqueue_push(&theQueue, &event, 1));
+    }
+    assert(!inputqueue_push(&theQueue, &event, 1));
+    assert(atomic_load(&theQueue.dropped) == 1);
+
+    // which button and key changes get
+    event = key(1, 1, 10);
+    assert(inputqueue_push(&theQueue, &event, 0));
+    assert(!inputqueue_push(&theQueue, &event, 1));
+    assert(atomic_load(&theQueue.dropped) == 2);
+
+    // and wait for room when it is used up as well
+    pthread_t thread;
+    pthread_create(&thread, NULL, pushKey, (void *) 11);
+    usleep(50000);
+    inputqueue_event out[4];
+    assert(inputqueue_take(&theQueue, out, 2) == 2);
+    assert(out[0].x == 0 && out[1].x == 2);
+    void *pushed;
+    pthread_join(thread, &pushed);
+    assert(pushed);
+    assert(inputqueue_take(&theQueue, out, 4) == 2);
+    assert(out[0].keysym == 10 && out[0].buttons == 1);
+    assert(out[1].keysym == 11 && out[1].buttons == 0);
+    assert(atomic_load(&theQueue.dropped) == 2);
+
+    // or until closing, events queued before that are still taken out
+    for (int i = 0; i < 4; ++i) {
+        event = key(1, 1, i);
+        assert(inputqueue_push(&theQueue, &event, 0));
+    }
+    pthread_create(&thread, NULL, pushKey, (void *) 4);
+    usleep(50000);
+    inputqueue_close(&theQueue);
+    pthread_join(thread, &pushed);
+    assert(!pushed);
+    assert(atomic_load(&theQueue.dropped) == 3);
+    assert(inputqueue_take(&theQueue, out, 2) == 2);
+    assert(out[0].keysym == 0 && out[1].keysym == 1);
+    assert(inputqueue_take(&theQueue, out, 4) == 2);
+    assert(inputqueue_take(&theQueue, out, 4) == -1);
+
+    // reopening starts over
+    inputqueue_open(&theQueue);
+    assert(inputqueue_push(&theQueue, &event, 0));
+    assert(inputqueue_take(&theQueue, out, 2) == 1);
+    inputqueue_free(&theQueue);
+}
+
+static void *closeLater(void *arg)
+{
+    usleep(50000);
+    inputqueue_close(arg);
+    return NULL;
+}
+
+static void testCloseWakesConsumer(void)
+{
+    assert(inputqueue_init(&theQueue, 4));
+    inputqueue_open(&theQueue);
+
+    pthread_t thread;
+    pthread_create(&thread, NULL, closeLater, &theQueue);
+    inputqueue_event out[1];
+    assert(inputqueue_take(&theQueue, out, 1) == -1);
+    pthread_join(thread, NULL);
+    inputqueue_free(&theQueue);
+}
+
+int main(void)
+{
+    testCoalescing();
+    testFull();
+    testCloseWakesConsumer();
+    testConcurrentProducers();
+
+    printf("inputqueue_test: all passed\n");
+    return 0;
+}
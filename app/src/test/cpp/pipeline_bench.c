@@ -0,0 +1,181 @@
+/*
+ * Host-side benchmark of the whole pipeline libdroidvnc-ng runs on the device, minus JNI:
+ * frames from the synthetic capture source are ingested into a LibVNCServer screen like
+ * vncUpdateFramebufferStrided() does, encoded and sent over loopback to a LibVNCClient instance.
+ * Per frame, it measures capture (rendering the frame), ingest and delivery, i.e. the time from
+ * the end of ingest until the client holds the exact frame.
+ *
+ * Usage: pipeline_bench [width height [frames [encodings]]]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <rfb/rfb.h>
+#include <rfb/rfbclient.h>
+#include "fbdiff.h"
+#include "ingest.h"
+#include "stats.h"
+#include "synthsource.h"
+
+#define PORT 5959
+#define DELIVERY_TIMEOUT_US 2000000
+
+static int64_t theLastUpdateNs;
+
+static void onFinishedFrameBufferUpdate(rfbClient *client)
+{
+    (void) client;
+    theLastUpdateNs = stats_now();
+}
+
+/*
+ * Whether the client has the same frame as the server, ignoring the unused alpha byte.
+ */
+static int isDelivered(const rfbClient *client, const rfbScreenInfoPtr screen)
+{
+    for (int y = 0; y < screen->height; ++y) {
+        const uint32_t *serverRow = (const uint32_t *) (screen->frameBuffer + (long) y * screen->paddedWidthInBytes);
+        const uint32_t *clientRow = (const uint32_t *) client->frameBuffer + (long) y * client->width;
+        for (int x = 0; x < screen->width; ++x)
+            if ((serverRow[x] ^ clientRow[x]) & 0xffffff)
+                return 0;
+    }
+    return 1;
+}
+
+/*
+ * Handles server messages until the client is in sync or the timeout hits.
+ * @return When the last update needed arrived, -1 on timeout or error.
+ */
+static int64_t waitForDelivery(rfbClient *client, rfbScreenInfoPtr screen)
+{
+    int64_t deadline = stats_now() + DELIVERY_TIMEOUT_US * 1000LL;
+    for (;;) {
+        int64_t before = theLastUpdateNs;
+        int64_t left = (deadline - stats_now()) / 1000;
+        if (left <= 0 || WaitForMessage(client, (unsigned int) left) <= 0 || !HandleRFBServerMessage(client))
+            return -1;
+        if (theLastUpdateNs != before && isDelivered(client, screen))
+            return theLastUpdateNs;
+    }
+}
+
+static void printPercentiles(const char *what, int64_t *values, int count)
+{
+    int64_t p[3];
+    stats_percentiles(values, count, p);
+    printf("  %-9s p50 %7.3f ms  p95 %7.3f ms  p99 %7.3f ms\n", what, p[0] / 1e6, p[1] / 1e6, p[2] / 1e6);
+}
+
+static void bench(rfbScreenInfoPtr screen, ingest *in, rfbClient *client, synth_pattern pattern, int frames)
+{
+    synthsource source;
+    const int stride = screen->paddedWidthInBytes;
+    char *frame = malloc((size_t) stride * screen->height);
+    int64_t *capture = calloc(frames, sizeof(int64_t));
+    int64_t *ingested = calloc(frames, sizeof(int64_t));
+    int64_t *delivery = calloc(frames, sizeof(int64_t));
+    int changed = 0;
+
+    if (!frame || !capture || !ingested || !delivery || !synth_init(&source, pattern, screen->width, screen->height)) {
+        fprintf(stderr, "pipeline_bench: out of memory\n");
+        exit(1);
+    }
+
+    int64_t start = stats_now();
+    for (int i = 0; i < frames; ++i) {
+        int64_t t0 = stats_now();
+        synth_render(&source, (unsigned int) i, frame, stride);
+        int64_t t1 = stats_now();
+        int isChanged = ingest_frame(in, frame, stride, t1);
+        int64_t t2 = stats_now();
+        capture[i] = t1 - t0;
+        ingested[i] = t2 - t1;
+        if (isChanged) {
+            int64_t t3 = waitForDelivery(client, screen);
+            if (t3 < 0) {
+                fprintf(stderr, "pipeline_bench: frame %d not delivered\n", i);
+                exit(1);
+            }
+            delivery[changed++] = t3 - t2;
+        }
+    }
+    double seconds = (stats_now() - start) / 1e9;
+
+    printf("%s: %d frames, %d changed, %.1f fps\n", synth_pattern_name(pattern), frames, changed, frames / seconds);
+    printPercentiles("capture", capture, frames);
+    printPercentiles("ingest", ingested, frames);
+    printPercentiles("delivery", delivery, changed);
+
+    synth_free(&source);
+    free(frame);
+    free(capture);
+    free(ingested);
+    free(delivery);
+}
+
+int main(int argc, char **argv)
+{
+    int width = argc > 2 ? atoi(argv[1]) : 1080;
+    int height = argc > 2 ? atoi(argv[2]) : 1920;
+    int frames = argc > 3 ? atoi(argv[3]) : 300;
+    const char *encodings = argc > 4 ? argv[4] : NULL;
+    int serverArgc = 0;
+
+    if (width <= 0 || height <= 0 || frames <= 0) {
+        fprintf(stderr, "usage: %s [width height [frames [encodings]]]\n", argv[0]);
+        return 1;
+    }
+
+    fbdiff_init();
+    stats_reset();
+    rfbLogEnable(FALSE);
+    rfbEnableClientLogging = FALSE;
+
+    // set up like vncStartServer() does
+    rfbScreenInfoPtr screen = rfbGetScreen(&serverArgc, NULL, width, height, 8, 3, 4);
+    if (!screen || !(screen->frameBuffer = calloc((size_t) width * height, 4))) {
+        fprintf(stderr, "pipeline_bench: failed setting up server\n");
+        return 1;
+    }
+    screen->port = PORT;
+    screen->ipv6port = PORT;
+    screen->cursor = NULL;
+    screen->deferPtrUpdateTime = 0;
+    rfbInitServer(screen);
+    rfbRunEventLoop(screen, -1, TRUE);
+
+    ingest in;
+    if (!ingest_init(&in, screen))
+        fprintf(stderr, "pipeline_bench: failed allocating scroll detection, disabled\n");
+
+    rfbClient *client = rfbGetClient(8, 3, 4);
+    client->serverHost = strdup("127.0.0.1");
+    client->serverPort = PORT;
+    client->FinishedFrameBufferUpdate = onFinishedFrameBufferUpdate;
+    if (encodings)
+        client->appData.encodingsString = encodings;
+    if (!rfbInitClient(client, NULL, NULL)) { // cleans up the client on failure
+        fprintf(stderr, "pipeline_bench: failed connecting client\n");
+        return 1;
+    }
+    // initial full update
+    if (waitForDelivery(client, screen) < 0) {
+        fprintf(stderr, "pipeline_bench: no initial update\n");
+        return 1;
+    }
+
+    printf("%dx%d, fbdiff kernel %s, encodings %s\n", width, height, fbdiff_kernel_name(),
+           client->appData.encodingsString ? client->appData.encodingsString : "default");
+    for (int p = 0; p < SYNTH_PATTERN_COUNT; ++p)
+        bench(screen, &in, client, (synth_pattern) p, frames);
+
+    rfbClientCleanup(client);
+    ingest_free(&in);
+    rfbShutdownServer(screen, TRUE);
+    free(screen->frameBuffer);
+    rfbScreenCleanup(screen);
+
+    return 0;
+}
@@ -0,0 +1,194 @@
+/*
+ * Host-side test of the frame scaler: exact results for known patterns in each mode, and no
+ * reads or writes outside the given frames for awkward geometries.
+ */
+
+#include <assert.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "scale.h"
+
+#define GUARD 0xa5
+
+static uint32_t *makeFrame(int width, int height)
+{
+    return malloc((size_t) width * height * 4);
+}
+
+static void fill(uint32_t *frame, int width, int height, uint32_t pixel)
+{
+    for (int i = 0; i < width * height; ++i)
+        frame[i] = pixel;
+}
+
+static void testCopy(void)
+{
+    scaler s;
+    uint32_t *src = makeFrame(100, 50), *dst = makeFrame(100, 50);
+    for (int i = 0; i < 100 * 50; ++i)
+        src[i] = (uint32_t) i * 2654435761u;
+
+    assert(scaler_init(&s, 100, 50, 100, 50));
+    assert(s.mode == SCALE_COPY);
+    scaler_scale(&s, (const char *) src, 100 * 4, (char *) dst, 100 * 4);
+    assert(memcmp(src, dst, 100 * 50 * 4) == 0);
+
+    scaler_free(&s);
+    free(src);
+    free(dst);
+}
+
+/*
+ * A 2x2 checkerboard halved must become uniform grey, a 3x3 one thirded a weighted one.
+ */
+static void testBox(void)
+{
+    scaler s;
+    uint32_t *src = makeFrame(64, 48), *dst = makeFrame(32, 24);
+    for (int y = 0; y < 48; ++y)
+        for (int x = 0; x < 64; ++x)
+            src[y * 64 + x] = (x + y) % 2 ? 0xffffffff : 0xff000000;
+
+    assert(scaler_init(&s, 64, 48, 32, 24));
+    assert(s.mode == SCALE_BOX);
+    scaler_scale(&s, (const char *) src, 64 * 4, (char *) dst, 32 * 4);
+    for (int i = 0; i < 32 * 24; ++i)
+        assert(dst[i] == 0xff808080 || dst[i] == 0xff7f7f7f);
+    scaler_free(&s);
+    free(dst);
+
+    // 5 or 4 of 9 source pixels white
+    dst = makeFrame(21, 16);
+    assert(scaler_init(&s, 63, 48, 21, 16));
+    scaler_scale(&s, (const char *) src, 64 * 4, (char *) dst, 21 * 4);
+    for (int y = 0; y < 16; ++y)
+        for (int x = 0; x < 21; ++x) {
+            uint32_t expected = (x + y) % 2 ? 0xff8e8e8e : 0xff717171;
+            assert(dst[y * 21 + x] == expected);
+        }
+
+    scaler_free(&s);
+    free(src);
+    free(dst);
+}
+
+/*
+ * Uniform frames stay uniform and a horizontal gradient stays monotonic with bilinear scaling.
+ */
+static void testBilinear(void)
+{
+    scaler s;
+    uint32_t *src = makeFrame(256, 40), *dst = makeFrame(200, 30);
+
+    assert(scaler_init(&s, 256, 40, 200, 30));
+    assert(s.mode == SCALE_BILINEAR);
+
+    fill(src, 256, 40, 0x80402010);
+    scaler_scale(&s, (const char *) src, 256 * 4, (char *) dst, 200 * 4);
+    for (int i = 0; i < 200 * 30; ++i)
+        assert(dst[i] == 0x80402010);
+
+    for (int y = 0; y < 40; ++y)
+        for (int x = 0; x < 256; ++x)
+            src[y * 256 + x] = 0xff000000 | (uint32_t) x << 16 | (uint32_t) x << 8 | (uint32_t) x;
+    scaler_scale(&s, (const char *) src, 256 * 4, (char *) dst, 200 * 4);
+    for (int y = 0; y < 30; ++y)
+        for (int x = 1; x < 200; ++x) {
+            uint32_t prev = dst[y * 200 + x - 1] & 0xff, cur = dst[y * 200 + x] & 0xff;
+            assert(cur >= prev && cur - prev <= 2);
+            assert((dst[y * 200 + x] >> 24) == 0xff);
+        }
+
+    scaler_free(&s);
+    free(src);
+    free(dst);
+}
+
+/*
+ * Source and destination are placed right in front of guard bytes with padded strides, in all
+ * modes and for geometries whose factors don't divide evenly.
+ */
+static void testBounds(int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+{
+    scaler s;
+    const int srcStride = srcWidth * 4 + 12, dstStride = dstWidth * 4 + 20;
+    const size_t srcSize = (size_t) srcStride * (srcHeight - 1) + srcWidth * 4;
+    const size_t dstSize = (size_t) dstStride * dstHeight;
+    char *src = malloc(srcSize + 64), *dst = malloc(dstSize + 64);
+
+    for (size_t i = 0; i < srcSize; ++i)
+        src[i] = (char) (i * 7);
+    memset(src + srcSize, GUARD, 64);
+    memset(dst, GUARD, dstSize + 64);
+
+    assert(scaler_init(&s, srcWidth, srcHeight, dstWidth, dstHeight));
+    scaler_scale(&s, src, srcStride, dst, dstStride);
+
+    for (int y = 0; y < dstHeight; ++y)
+        for (int i = dstWidth * 4; i < dstStride; ++i)
+            assert((unsigned char) dst[(size_t) y * dstStride + i] == GUARD);
+    for (int i = 0; i < 64; ++i)
+        assert((unsigned char) dst[dstSize + i] == GUARD);
+
+    printf("%4dx%-4d -> %4dx%-4d mode %d ok\n", srcWidth, srcHeight, dstWidth, dstHeight, s.mode);
+
+    scaler_free(&s);
+    free(src);
+    free(dst);
+}
+
+/*
+ * Packing keeps the top bits of each channel and leaves the destination row padding alone.
+ */
+static void testPackRgb565(void)
+{
+    // RGBA in memory order, as captured
+    const uint8_t rgba[][4] = {
+        { 0xff, 0xff, 0xff, 0xff },
+        { 0xff, 0x00, 0x00, 0x00 },
+        { 0x00, 0xff, 0x00, 0x80 },
+        { 0x00, 0x00, 0xff, 0xff },
+        { 0x08, 0x04, 0x08, 0xff },
+        { 0x07, 0x03, 0x07, 0xff },
+    };
+    const uint16_t expected[] = { 0xffff, 0xf800, 0x07e0, 0x001f, 0x0821, 0x0000 };
+    const int count = sizeof(expected) / sizeof(expected[0]);
+    uint8_t dst[2][sizeof(expected) + 2];
+
+    memset(dst, GUARD, sizeof(dst));
+    scale_pack_rgb565((const char *) rgba, 0, (char *) dst, sizeof(dst[0]), count, 2);
+
+    for (int y = 0; y < 2; ++y) {
+        for (int x = 0; x < count; ++x) {
+            uint16_t pixel;
+            memcpy(&pixel, dst[y] + x * 2, 2);
+            assert(pixel == expected[x]);
+        }
+        assert(dst[y][count * 2] == GUARD && dst[y][count * 2 + 1] == GUARD);
+    }
+}
+
+int main(void)
+{
+    testCopy();
+    testBox();
+    testBilinear();
+    testPackRgb565();
+
+    testBounds(1080, 2400, 540, 1200);
+    testBounds(1081, 2401, 360, 800);
+    testBounds(1080, 2400, 810, 1800);
+    testBounds(720, 1280, 1, 1);
+    testBounds(7, 5, 13, 11);
+    testBounds(1, 1, 1, 1);
+
+    // invalid geometry
+    scaler s;
+    assert(!scaler_init(&s, 0, 10, 10, 10));
+    assert(!scaler_init(&s, 10, 10, 10, -1));
+
+    printf("scale_test: all passed\n");
+    return 0;
+}
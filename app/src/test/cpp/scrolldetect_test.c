@@ -0,0 +1,231 @@
+/*
+ * Host-side test of the scroll detection using a corpus of synthetic scrolling frames: a tall
+ * page of text-like content seen through a viewport between a static status and navigation bar.
+ */
+
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "fbdiff.h"
+#include "framehash.h"
+#include "scrolldetect.h"
+
+#define WIDTH 240
+#define HEIGHT 480
+#define BPP 4
+#define STRIDE (WIDTH * BPP)
+#define HEADER 24
+#define FOOTER 48
+#define CONTENT (HEIGHT - HEADER - FOOTER)
+#define PAGE_HEIGHT 4000
+
+#define WHITE 0xffffffffu
+
+static unsigned int *page;
+static unsigned int rngState = 12345;
+
+static unsigned int rng(void)
+{
+    rngState = rngState * 1103515245u + 12345u;
+    return rngState >> 8;
+}
+
+/*
+ * Lines of "text" 16 rows high separated by blank rows, every now and then a list separator,
+ * which repeats identically all over the page.
+ */
+static void makePage(void)
+{
+    page = malloc((size_t) PAGE_HEIGHT * WIDTH * sizeof(unsigned int));
+    for (int y = 0; y < PAGE_HEIGHT; ++y) {
+        unsigned int *row = page + (size_t) y * WIDTH;
+        int lineRow = y % 24;
+        for (int x = 0; x < WIDTH; ++x)
+            row[x] = WHITE;
+        if (lineRow == 23) {
+            for (int x = 8; x < WIDTH - 8; ++x)
+                row[x] = 0xffcccccc;
+        } else if (lineRow >= 4 && lineRow < 20) {
+            for (int x = 8; x < WIDTH - 8; ++x)
+                if (rng() % 3 == 0)
+                    row[x] = 0xff000000 | (rng() & 0x3f3f3f);
+        }
+    }
+}
+
+/*
+ * Renders the viewport with the page scrolled to the given offset.
+ */
+static void render(char *frame, int offset)
+{
+    for (int y = 0; y < HEIGHT; ++y) {
+        unsigned int *row = (unsigned int *) (frame + y * STRIDE);
+        if (y < HEADER) {
+            for (int x = 0; x < WIDTH; ++x)
+                row[x] = 0xff202080;
+        } else if (y >= HEIGHT - FOOTER) {
+            for (int x = 0; x < WIDTH; ++x)
+                row[x] = 0xff101010 + (x / 60);
+        } else {
+            memcpy(row, page + (size_t) (offset + y - HEADER) * WIDTH, STRIDE);
+        }
+    }
+}
+
+static void countTile(int x1, int y1, int x2, int y2, void *userdata)
+{
+    *(int *) userdata += ((x2 - x1 + FBDIFF_TILE_SIZE - 1) / FBDIFF_TILE_SIZE) * ((y2 - y1 + FBDIFF_TILE_SIZE - 1) / FBDIFF_TILE_SIZE);
+}
+
+/*
+ * Checks a scroll by delta page rows from the given offset is detected as a shift of the
+ * content area, then checks that applying it to the previous frame leaves only the exposed strip
+ * for the diff, and that the result is exactly the new frame.
+ */
+static void testScroll(int offset, int delta)
+{
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    char *prev = malloc(HEIGHT * STRIDE), *cur = malloc(HEIGHT * STRIDE), *fb = malloc(HEIGHT * STRIDE);
+
+    assert(scrolldetect_init(&sd, HEIGHT));
+    render(prev, offset);
+    render(cur, offset + delta);
+
+    assert(!scrolldetect_detect(&sd, prev, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+    assert(scrolldetect_detect(&sd, cur, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // scrolling down moves content up
+    assert(shift.dy == -delta);
+    assert(shift.y1 >= HEADER && shift.y2 <= HEIGHT - FOOTER);
+    // all of the content that is still visible, give or take blank rows at the edges
+    assert(shift.y2 - shift.y1 >= CONTENT - abs(delta) - 24);
+
+    // the same from row hashes computed by framehash
+    scrolldetect sdHashes;
+    scrolldetect_shift shiftHashes;
+    framehash fh;
+    assert(scrolldetect_init(&sdHashes, HEIGHT));
+    assert(framehash_init(&fh, WIDTH, HEIGHT, BPP, FBDIFF_TILE_SIZE));
+    framehash_update(&fh, prev, STRIDE);
+    assert(!scrolldetect_detect_hashes(&sdHashes, fh.hashes, HEIGHT, &shiftHashes));
+    framehash_update(&fh, cur, STRIDE);
+    assert(scrolldetect_detect_hashes(&sdHashes, fh.hashes, HEIGHT, &shiftHashes));
+    assert(memcmp(&shift, &shiftHashes, sizeof(shift)) == 0);
+    framehash_free(&fh);
+    scrolldetect_free(&sdHashes);
+
+    // without CopyRect
+    int tilesPlain = 0;
+    memcpy(fb, prev, HEIGHT * STRIDE);
+    fbdiff_update(fb, STRIDE, cur, STRIDE, WIDTH, HEIGHT, BPP, countTile, &tilesPlain);
+
+    // with CopyRect, like applyShift() in droidvnc-ng.c
+    int tilesShifted = 0;
+    memcpy(fb, prev, HEIGHT * STRIDE);
+    memmove(fb + shift.y1 * STRIDE, fb + (shift.y1 - shift.dy) * STRIDE, (shift.y2 - shift.y1) * STRIDE);
+    fbdiff_update(fb, STRIDE, cur, STRIDE, WIDTH, HEIGHT, BPP, countTile, &tilesShifted);
+    assert(memcmp(fb, cur, HEIGHT * STRIDE) == 0);
+
+    int tilesX = (WIDTH + FBDIFF_TILE_SIZE - 1) / FBDIFF_TILE_SIZE;
+    int exposedTileRows = (abs(delta) + 24 + FBDIFF_TILE_SIZE - 1) / FBDIFF_TILE_SIZE + 2;
+    assert(tilesShifted <= exposedTileRows * tilesX);
+    assert(tilesShifted < tilesPlain);
+
+    printf("scroll by %4d from %4d: band %3d-%3d, %3d tiles instead of %3d\n",
+           delta, offset, shift.y1, shift.y2, tilesShifted, tilesPlain);
+
+    scrolldetect_free(&sd);
+    free(prev);
+    free(cur);
+    free(fb);
+}
+
+/*
+ * Frame sequences that must not be taken for scrolling.
+ */
+static void testNoScroll(void)
+{
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    char *frame = malloc(HEIGHT * STRIDE);
+
+    assert(scrolldetect_init(&sd, HEIGHT));
+
+    // unchanged frame
+    render(frame, 100);
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // blinking cursor
+    ((unsigned int *) (frame + 200 * STRIDE))[50] ^= 0xffffff;
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // unrelated content
+    for (int i = 0; i < HEIGHT * WIDTH; ++i)
+        ((unsigned int *) frame)[i] = rng();
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // uniform to another uniform colour
+    memset(frame, 0xff, HEIGHT * STRIDE);
+    scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift);
+    memset(frame, 0x00, HEIGHT * STRIDE);
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // after invalidation, a scroll is not detected as there is nothing to compare against
+    render(frame, 100);
+    scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift);
+    scrolldetect_invalidate(&sd);
+    render(frame, 150);
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    // wrong height
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT - 1, BPP, &shift));
+
+    scrolldetect_free(&sd);
+    free(frame);
+}
+
+/*
+ * A fling: consecutive frames with decelerating scroll speed, each one detected relative to the previous.
+ */
+static void testFling(void)
+{
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    char *frame = malloc(HEIGHT * STRIDE);
+
+    assert(scrolldetect_init(&sd, HEIGHT));
+
+    int offset = 0;
+    render(frame, offset);
+    assert(!scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+
+    for (int speed = 180; speed > 0; speed = speed * 3 / 4) {
+        offset += speed;
+        render(frame, offset);
+        assert(scrolldetect_detect(&sd, frame, STRIDE, WIDTH, HEIGHT, BPP, &shift));
+        assert(shift.dy == -speed);
+    }
+
+    scrolldetect_free(&sd);
+    free(frame);
+}
+
+int main(void)
+{
+    fbdiff_init();
+    makePage();
+
+    int deltas[] = { 1, 3, 16, 24, 57, 120, 200, -1, -24, -77, -200 };
+    for (size_t i = 0; i < sizeof(deltas) / sizeof(deltas[0]); ++i)
+        testScroll(1000, deltas[i]);
+
+    testNoScroll();
+    testFling();
+
+    free(page);
+    printf("scrolldetect_test: all passed\n");
+    return 0;
+}
@@ -0,0 +1,112 @@
+/*
+ * Host-side test of the pipeline statistics rings and their aggregation.
+ */
+
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include "stats.h"
+
+static void testPercentiles(void)
+{
+    int64_t out[3];
+
+    stats_percentiles(NULL, 0, out);
+    assert(out[0] == 0 && out[1] == 0 && out[2] == 0);
+
+    int64_t one[] = { 42 };
+    stats_percentiles(one, 1, out);
+    assert(out[0] == 42 && out[1] == 42 && out[2] == 42);
+
+    // 1..100 shuffled
+    int64_t values[100];
+    for (int i = 0; i < 100; ++i)
+        values[i] = (i * 37) % 100 + 1;
+    stats_percentiles(values, 100, out);
+    assert(out[0] == 50 && out[1] == 95 && out[2] == 99);
+}
+
+static void testFrames(void)
+{
+    int64_t out[STATS_FRAME_BLOCK_SIZE];
+
+    stats_reset();
+    stats_frames_snapshot(out);
+    assert(out[STATS_FRAMES_TOTAL] == 0);
+    assert(out[STATS_FRAMES_CAPTURED] == 0 && out[STATS_FRAMES_SENT] == 0 && out[STATS_FRAMES_DEDUPLICATED] == 0);
+    assert(stats_latest_modified_frame() == 0);
+    assert(stats_modified_frame_arrival(1) == 0);
+
+    // more frames than the ring holds, every other one unchanged
+    int total = STATS_FRAME_RING_SIZE * 3 + 5;
+    for (int i = 0; i < total; ++i) {
+        // half of the captured frames get dropped before ingestion
+        stats_count_captured_frame();
+        stats_count_captured_frame();
+        if (i % 4 == 0)
+            stats_count_deduplicated_frame();
+        stats_frame frame = { .arrivalNs = 1000 + i, .diffNs = i, .markNs = 2 * i, .doneNs = 1000 + i + 10, .changedTiles = i % 2 };
+        stats_record_frame(&frame);
+    }
+
+    stats_frames_snapshot(out);
+    assert(out[STATS_FRAMES_TOTAL] == total);
+    assert(out[STATS_FRAMES_CAPTURED] == 2 * total);
+    assert(out[STATS_FRAMES_DEDUPLICATED] == (total + 3) / 4);
+    // ingest time is constant
+    assert(out[STATS_FRAME_INGEST] == 10 && out[STATS_FRAME_INGEST + 2] == 10);
+    // only the last STATS_FRAME_RING_SIZE frames count
+    assert(out[STATS_FRAME_DIFF + 2] > total - 5 && out[STATS_FRAME_DIFF + 2] <= total - 1);
+    assert(out[STATS_FRAME_DIFF] >= total - STATS_FRAME_RING_SIZE);
+    assert(out[STATS_FRAME_MARK + 2] == 2 * out[STATS_FRAME_DIFF + 2]);
+    assert(out[STATS_FRAME_CHANGED_TILES] >= 0 && out[STATS_FRAME_CHANGED_TILES + 2] == 1);
+
+    // modified frames are the odd ones
+    uint64_t modified = stats_latest_modified_frame();
+    assert(modified == (uint64_t) total / 2);
+    assert(stats_modified_frame_arrival(modified) == 1000 + total - 2);
+    assert(stats_modified_frame_arrival(modified + 1) == 0);
+    // long gone ones are clamped to the oldest remembered
+    int64_t oldest = stats_modified_frame_arrival(1);
+    assert(oldest > 1000 + 1 && oldest < 1000 + total - 2);
+}
+
+static void testClient(void)
+{
+    int64_t out[STATS_CLIENT_BLOCK_SIZE];
+    int64_t frames[STATS_FRAME_BLOCK_SIZE];
+    stats_reset();
+    stats_client *client = stats_client_new();
+    assert(client);
+
+    stats_client_snapshot(client, out);
+    assert(out[STATS_CLIENT_UPDATES] == 0 && out[STATS_CLIENT_ENCODE] == 0);
+
+    for (int i = 1; i <= STATS_UPDATE_RING_SIZE + 10; ++i) {
+        stats_update update = { .encodeNs = i, .latencyNs = 3 * i, .bytes = 100 * i, .encoding = i % 2 ? 7 : 16 };
+        stats_client_record_update(client, &update);
+    }
+
+    stats_client_snapshot(client, out);
+    assert(out[STATS_CLIENT_UPDATES] == STATS_UPDATE_RING_SIZE + 10);
+    assert(out[STATS_CLIENT_ENCODING] == 16);
+    assert(out[STATS_CLIENT_ENCODE + 2] > STATS_UPDATE_RING_SIZE && out[STATS_CLIENT_ENCODE + 2] <= STATS_UPDATE_RING_SIZE + 10);
+    assert(out[STATS_CLIENT_ENCODE] > 10);
+    assert(out[STATS_CLIENT_BYTES + 2] == 100 * out[STATS_CLIENT_ENCODE + 2]);
+    assert(out[STATS_CLIENT_LATENCY + 2] == 3 * out[STATS_CLIENT_ENCODE + 2]);
+
+    stats_frames_snapshot(frames);
+    assert(frames[STATS_FRAMES_SENT] == STATS_UPDATE_RING_SIZE + 10);
+
+    stats_client_free(client);
+}
+
+int main(void)
+{
+    testPercentiles();
+    testFrames();
+    testClient();
+
+    printf("stats_test: all passed\n");
+    return 0;
+}
@@ -0,0 +1,136 @@
+/*
+ * Deterministic synthetic capture source, see synthsource.h.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "synthsource.h"
+
+#define STATUS_BAR 48
+#define NAVIGATION_BAR 96
+#define LINE_HEIGHT 24
+
+static unsigned int xorshift(unsigned int *state)
+{
+    unsigned int x = *state;
+    x ^= x << 13;
+    x ^= x >> 17;
+    x ^= x << 5;
+    return *state = x;
+}
+
+/*
+ * Lines of glyph-like blocks on white with ragged line ends, a separator every few lines.
+ */
+static void renderPage(unsigned int *page, int width, int height)
+{
+    unsigned int rng = 0x2545f491;
+    for (int y = 0; y < height; ++y) {
+        unsigned int *row = page + (size_t) y * width;
+        for (int x = 0; x < width; ++x)
+            row[x] = 0xffffffff;
+    }
+    for (int line = 0; line < height / LINE_HEIGHT; ++line) {
+        unsigned int *top = page + (size_t) line * LINE_HEIGHT * width;
+        if (line % 8 == 7) {
+            for (int x = 16; x < width - 16; ++x)
+                top[(size_t) (LINE_HEIGHT / 2) * width + x] = 0xffcccccc;
+            continue;
+        }
+        int end = width - 16 - (int) (xorshift(&rng) % (width / 3));
+        for (int x = 16; x + 10 <= end; x += 10) {
+            if (xorshift(&rng) % 6 == 0)
+                continue; // space
+            for (int gy = 0; gy < 14; ++gy) {
+                unsigned int bits = xorshift(&rng);
+                for (int gx = 0; gx < 8; ++gx)
+                    if (bits >> gx & 1)
+                        top[(size_t) (gy + 5) * width + x + gx] = 0xff202020;
+            }
+        }
+    }
+}
+
+static void fillRows(char *frame, int stride, int width, int y1, int y2, unsigned int pixel)
+{
+    for (int y = y1; y < y2; ++y) {
+        unsigned int *row = (unsigned int *) (frame + (long) y * stride);
+        for (int x = 0; x < width; ++x)
+            row[x] = pixel;
+    }
+}
+
+int synth_init(synthsource *s, synth_pattern pattern, int width, int height)
+{
+    memset(s, 0, sizeof(*s));
+    s->pattern = pattern;
+    s->width = width;
+    s->height = height;
+    if (pattern == SYNTH_STATIC || pattern == SYNTH_SCROLLING_TEXT) {
+        // several screens worth, whole lines so that wrapping around does not show
+        s->pageHeight = (height * 4 / LINE_HEIGHT) * LINE_HEIGHT;
+        s->page = malloc((size_t) s->pageHeight * width * sizeof(unsigned int));
+        if (!s->page)
+            return 0;
+        renderPage(s->page, width, s->pageHeight);
+    }
+    return 1;
+}
+
+void synth_free(synthsource *s)
+{
+    free(s->page);
+    s->page = NULL;
+}
+
+const char *synth_pattern_name(synth_pattern pattern)
+{
+    switch (pattern) {
+        case SYNTH_STATIC:
+            return "static";
+        case SYNTH_SCROLLING_TEXT:
+            return "scrolling text";
+        case SYNTH_VIDEO:
+            return "video";
+    }
+    return "unknown";
+}
+
+void synth_render(const synthsource *s, unsigned int index, char *frame, int stride)
+{
+    const int width = s->width;
+    const int height = s->height;
+    const int contentTop = STATUS_BAR < height ? STATUS_BAR : height;
+    const int contentBottom = height - NAVIGATION_BAR > contentTop ? height - NAVIGATION_BAR : contentTop;
+
+    fillRows(frame, stride, width, 0, contentTop, 0xff303080);
+    fillRows(frame, stride, width, contentBottom, height, 0xff101010);
+
+    switch (s->pattern) {
+        case SYNTH_STATIC:
+        case SYNTH_SCROLLING_TEXT: {
+            // static is a text page that does not move
+            int offset = s->pattern == SYNTH_STATIC
+                         ? 0
+                         : (int) ((index * SYNTH_SCROLL_STEP) % (unsigned int) s->pageHeight);
+            for (int y = contentTop; y < contentBottom; ++y)
+                memcpy(frame + (long) y * stride,
+                       s->page + (size_t) ((offset + y - contentTop) % s->pageHeight) * width,
+                       (size_t) width * 4);
+            break;
+        }
+        case SYNTH_VIDEO: {
+            // a 16:9 video area in the middle of the content, letterboxed in black
+            int videoHeight = width * 9 / 16 < contentBottom - contentTop ? width * 9 / 16 : contentBottom - contentTop;
+            int videoTop = contentTop + (contentBottom - contentTop - videoHeight) / 2;
+            fillRows(frame, stride, width, contentTop, contentBottom, 0xff000000);
+            unsigned int rng = 0x9e3779b9 ^ (index * 0x85ebca6b + 1);
+            for (int y = videoTop; y < videoTop + videoHeight; ++y) {
+                unsigned int *row = (unsigned int *) (frame + (long) y * stride);
+                for (int x = 0; x < width; ++x)
+                    row[x] = 0xff000000 | (xorshift(&rng) & 0xffffff);
+            }
+            break;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Deterministic synthetic capture source for host-side tests and benchmarks: renders frames of
+ * typical screen content that only depend on the frame index, so that runs are comparable
+ * across machines and commits. Mirrors SyntheticCaptureSource on the Java side.
+ */
+
+#ifndef DROIDVNC_NG_SYNTHSOURCE_H
+#define DROIDVNC_NG_SYNTHSOURCE_H
+
+typedef enum {
+    SYNTH_STATIC,           // the same frame over and over
+    SYNTH_SCROLLING_TEXT,   // a page of text-like content between static bars, scrolling steadily
+    SYNTH_VIDEO             // a noise-filled video area changing completely on every frame
+} synth_pattern;
+
+#define SYNTH_PATTERN_COUNT 3
+#define SYNTH_SCROLL_STEP 8
+
+typedef struct {
+    synth_pattern pattern;
+    int width;
+    int height;
+    unsigned int *page;     // static and scrolling text: the pre-rendered page, wrapping around
+    int pageHeight;
+} synthsource;
+
+/**
+ * @return 1 on success, 0 on allocation failure with nothing allocated.
+ */
+int synth_init(synthsource *s, synth_pattern pattern, int width, int height);
+
+void synth_free(synthsource *s);
+
+const char *synth_pattern_name(synth_pattern pattern);
+
+/**
+ * Renders the frame with the given index as 32-bit pixels with opaque alpha.
+ */
+void synth_render(const synthsource *s, unsigned int index, char *frame, int stride);
+
+#endif //DROIDVNC_NG_SYNTHSOURCE_H
@@ -0,0 +1,93 @@
+/*
+ * Host-side test of the synthetic capture source: frames must be deterministic and the patterns
+ * must look like what they stand for to the ingest path, i.e. the static one deduplicated, the
+ * scrolling one detected as scrolling and the video one changing all over its area.
+ */
+
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "framehash.h"
+#include "scrolldetect.h"
+#include "synthsource.h"
+
+#define WIDTH 360
+#define HEIGHT 640
+#define BPP 4
+#define STRIDE (WIDTH * BPP)
+
+static void testDeterministic(synth_pattern pattern)
+{
+    synthsource s1, s2;
+    char *a = malloc(HEIGHT * STRIDE), *b = malloc(HEIGHT * STRIDE);
+
+    assert(synth_init(&s1, pattern, WIDTH, HEIGHT));
+    assert(synth_init(&s2, pattern, WIDTH, HEIGHT));
+    synth_render(&s1, 17, a, STRIDE);
+    synth_render(&s1, 3, b, STRIDE);
+    synth_render(&s2, 17, b, STRIDE);
+    assert(memcmp(a, b, HEIGHT * STRIDE) == 0);
+
+    // opaque
+    for (int i = 0; i < WIDTH * HEIGHT; ++i)
+        assert(((unsigned int *) a)[i] >> 24 == 0xff);
+
+    synth_free(&s1);
+    synth_free(&s2);
+    free(a);
+    free(b);
+}
+
+static void testPatterns(void)
+{
+    synthsource s;
+    framehash fh;
+    scrolldetect sd;
+    scrolldetect_shift shift;
+    char *frame = malloc(HEIGHT * STRIDE);
+
+    assert(framehash_init(&fh, WIDTH, HEIGHT, BPP, 32));
+    assert(scrolldetect_init(&sd, HEIGHT));
+
+    assert(synth_init(&s, SYNTH_STATIC, WIDTH, HEIGHT));
+    synth_render(&s, 0, frame, STRIDE);
+    framehash_update(&fh, frame, STRIDE);
+    synth_render(&s, 1, frame, STRIDE);
+    assert(framehash_update(&fh, frame, STRIDE) == 0);
+    synth_free(&s);
+
+    assert(synth_init(&s, SYNTH_SCROLLING_TEXT, WIDTH, HEIGHT));
+    for (unsigned int i = 0; i < 10; ++i) {
+        synth_render(&s, i, frame, STRIDE);
+        framehash_update(&fh, frame, STRIDE);
+        int scrolled = scrolldetect_detect_hashes(&sd, fh.hashes, HEIGHT, &shift);
+        assert(scrolled == (i > 0));
+        if (scrolled)
+            assert(shift.dy == -SYNTH_SCROLL_STEP);
+    }
+    synth_free(&s);
+
+    assert(synth_init(&s, SYNTH_VIDEO, WIDTH, HEIGHT));
+    synth_render(&s, 0, frame, STRIDE);
+    framehash_update(&fh, frame, STRIDE);
+    synth_render(&s, 1, frame, STRIDE);
+    int changed = framehash_update(&fh, frame, STRIDE);
+    // the whole 16:9 area, give or take the stripes it only partly covers
+    assert(changed >= (WIDTH * 9 / 16) / 32 && changed <= (WIDTH * 9 / 16) / 32 + 2);
+    synth_free(&s);
+
+    scrolldetect_free(&sd);
+    framehash_free(&fh);
+    free(frame);
+}
+
+int main(void)
+{
+    for (int p = 0; p < SYNTH_PATTERN_COUNT; ++p)
+        testDeterministic((synth_pattern) p);
+    testPatterns();
+
+    printf("synthsource_test: all passed\n");
+    return 0;
+}
@@ -0,0 +1,88 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveScalingTest {
+
+    private static final long BAD_LATENCY_NS = AdaptiveScaling.SATURATED_LATENCY_NS * 2;
+    private static final long OK_LATENCY_NS = AdaptiveScaling.GOOD_LATENCY_NS / 2;
+
+    /**
+     * Feeds the same sample the given number of times.
+     * @return How often the factor changed.
+     */
+    private static int feed(AdaptiveScaling scaling, int samples, boolean updated, long latencyNs, long backlogBytes) {
+        int changes = 0;
+        for (int i = 0; i < samples; ++i)
+            if (scaling.onSample(updated, latencyNs, backlogBytes))
+                ++changes;
+        return changes;
+    }
+
+    @Test
+    public void stepsDownWhenSaturated() {
+        AdaptiveScaling scaling = new AdaptiveScaling();
+        assertEquals(0, feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES - 1, true, BAD_LATENCY_NS, 0));
+        assertEquals(1, feed(scaling, 1, true, BAD_LATENCY_NS, 0));
+        assertEquals(AdaptiveScaling.FACTORS[1], scaling.getFactor(), 0);
+
+        // the update caused by the change is not taken into account
+        assertEquals(0, feed(scaling, AdaptiveScaling.SETTLE_SAMPLES, true, BAD_LATENCY_NS, 0));
+
+        // a backlog alone is enough, also without updates
+        assertEquals(1, feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES, false, 0, AdaptiveScaling.SATURATED_BACKLOG_BYTES));
+        assertEquals(AdaptiveScaling.FACTORS[2], scaling.getFactor(), 0);
+
+        // bottoms out
+        feed(scaling, 100, true, BAD_LATENCY_NS, AdaptiveScaling.SATURATED_BACKLOG_BYTES);
+        assertEquals(AdaptiveScaling.FACTORS[AdaptiveScaling.FACTORS.length - 1], scaling.getFactor(), 0);
+    }
+
+    @Test
+    public void stepsUpSlowly() {
+        AdaptiveScaling scaling = new AdaptiveScaling();
+        feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES + AdaptiveScaling.SETTLE_SAMPLES
+                + AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES, true, BAD_LATENCY_NS, 0);
+        assertEquals(AdaptiveScaling.FACTORS[2], scaling.getFactor(), 0);
+
+        assertEquals(0, feed(scaling, AdaptiveScaling.SETTLE_SAMPLES + AdaptiveScaling.STEP_UP_AFTER_SAMPLES - 1, true, OK_LATENCY_NS, 0));
+        assertEquals(1, feed(scaling, 1, true, OK_LATENCY_NS, 0));
+        assertEquals(AdaptiveScaling.FACTORS[1], scaling.getFactor(), 0);
+    }
+
+    @Test
+    public void hysteresis() {
+        AdaptiveScaling scaling = new AdaptiveScaling();
+        feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES + AdaptiveScaling.SETTLE_SAMPLES, true, BAD_LATENCY_NS, 0);
+        float factor = scaling.getFactor();
+
+        // in between good and saturated, or alternating, nothing changes
+        long middle = (AdaptiveScaling.GOOD_LATENCY_NS + AdaptiveScaling.SATURATED_LATENCY_NS) / 2;
+        assertEquals(0, feed(scaling, 100, true, middle, 0));
+        for (int i = 0; i < 100; ++i) {
+            assertFalse(scaling.onSample(true, BAD_LATENCY_NS, 0));
+            assertFalse(scaling.onSample(true, OK_LATENCY_NS, 0));
+        }
+        assertEquals(factor, scaling.getFactor(), 0);
+    }
+
+    @Test
+    public void staticScreenIsNoReasonToStepUp() {
+        AdaptiveScaling scaling = new AdaptiveScaling();
+        feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES + AdaptiveScaling.SETTLE_SAMPLES, true, BAD_LATENCY_NS, 0);
+        // stale latency of the last updates does not count either
+        assertEquals(0, feed(scaling, 100, false, BAD_LATENCY_NS, 0));
+        assertEquals(AdaptiveScaling.FACTORS[1], scaling.getFactor(), 0);
+    }
+
+    @Test
+    public void reset() {
+        AdaptiveScaling scaling = new AdaptiveScaling();
+        assertFalse(scaling.reset());
+        feed(scaling, AdaptiveScaling.STEP_DOWN_AFTER_SAMPLES, true, BAD_LATENCY_NS, 0);
+        assertTrue(scaling.reset());
+        assertEquals(1.0f, scaling.getFactor(), 0);
+    }
+}
@@ -0,0 +1,65 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameQueueSizerTest {
+
+    private static final long FRAME_INTERVAL_NS = 16000000;
+
+    /**
+     * Feeds frames at a fixed interval, each ingested after the given latency.
+     * @return The capacity after the last frame.
+     */
+    private static int simulate(FrameQueueSizer sizer, long latencyNs, int frames) {
+        int capacity = sizer.getCapacity();
+        for (int i = 0; i < frames; ++i) {
+            sizer.onAcquired(i * FRAME_INTERVAL_NS);
+            capacity = sizer.onIngested(latencyNs);
+        }
+        return capacity;
+    }
+
+    @Test
+    public void fastConsumerNeedsOneFrame() {
+        assertEquals(1, simulate(new FrameQueueSizer(1), FRAME_INTERVAL_NS / 4, 100));
+    }
+
+    @Test
+    public void growsWithLatency() {
+        FrameQueueSizer sizer = new FrameQueueSizer(1);
+        assertEquals(3, simulate(sizer, 40000000, 100));
+        // capped
+        assertEquals(FrameQueueSizer.MAX_CAPACITY, simulate(sizer, 10 * FRAME_INTERVAL_NS, 100));
+    }
+
+    @Test
+    public void shrinksOnlyAfterAWhile() {
+        FrameQueueSizer sizer = new FrameQueueSizer(FrameQueueSizer.MAX_CAPACITY);
+        // long enough for the latency average to settle, short of a shrink
+        assertEquals(FrameQueueSizer.MAX_CAPACITY, simulate(sizer, FRAME_INTERVAL_NS / 4, FrameQueueSizer.SHRINK_AFTER_FRAMES - 1));
+        assertEquals(FrameQueueSizer.MAX_CAPACITY - 1, simulate(sizer, FRAME_INTERVAL_NS / 4, 1));
+        // one step at a time
+        assertEquals(FrameQueueSizer.MAX_CAPACITY - 1, simulate(sizer, FRAME_INTERVAL_NS / 4, FrameQueueSizer.SHRINK_AFTER_FRAMES - 1));
+        assertEquals(FrameQueueSizer.MIN_CAPACITY, simulate(sizer, FRAME_INTERVAL_NS / 4, 3 * FrameQueueSizer.SHRINK_AFTER_FRAMES));
+    }
+
+    @Test
+    public void ignoresIdleGaps() {
+        FrameQueueSizer sizer = new FrameQueueSizer(1);
+        sizer.onAcquired(0);
+        sizer.onIngested(40000000);
+        // a static screen for a minute does not make the frame interval long
+        sizer.onAcquired(60000000000L);
+        sizer.onIngested(40000000);
+        sizer.onAcquired(60000000000L + 20000000);
+        assertEquals(2, sizer.onIngested(40000000));
+    }
+
+    @Test
+    public void clampsInitialCapacity() {
+        assertEquals(FrameQueueSizer.MIN_CAPACITY, new FrameQueueSizer(0).getCapacity());
+        assertEquals(FrameQueueSizer.MAX_CAPACITY, new FrameQueueSizer(100).getCapacity());
+    }
+}
@@ -0,0 +1,104 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScreenShotSchedulerTest {
+
+    /**
+     * Simulates a platform that rejects requests coming earlier than minIntervalMs after the
+     * previous accepted one, with every screenshot changed and wanted.
+     * @return The scheduler after the given number of requests.
+     */
+    private static ScreenShotScheduler simulate(long minIntervalMs, int requests) {
+        ScreenShotScheduler scheduler = new ScreenShotScheduler();
+        long now = 0;
+        long lastAccepted = -minIntervalMs;
+        for (int i = 0; i < requests; ++i) {
+            scheduler.onRequest(now);
+            long delay;
+            if (now - lastAccepted >= minIntervalMs) {
+                lastAccepted = now;
+                delay = scheduler.onFrame(now + 5, true, true);
+            } else {
+                delay = scheduler.onTooEarly(now + 1);
+            }
+            now += 5 + delay;
+        }
+        return scheduler;
+    }
+
+    @Test
+    public void probesTowardsPlatformInterval() {
+        ScreenShotScheduler scheduler = simulate(333, 500);
+        // AIMD sawtooth around the platform limit
+        assertTrue(scheduler.getIntervalMs() >= 333 - 20 * ScreenShotScheduler.PROBE_STEP_MS);
+        assertTrue(scheduler.getIntervalMs() <= 333 * ScreenShotScheduler.BACKOFF_FACTOR + ScreenShotScheduler.PROBE_STEP_MS);
+        assertTrue(scheduler.getFps() > 1.5f && scheduler.getFps() <= 3.1f);
+    }
+
+    @Test
+    public void comesBackDownAfterBackoff() {
+        ScreenShotScheduler scheduler = new ScreenShotScheduler();
+        for (int i = 0; i < 20; ++i)
+            scheduler.onTooEarly(0);
+        assertEquals(ScreenShotScheduler.MAX_INTERVAL_MS, scheduler.getIntervalMs());
+
+        // a fast platform lets the interval shrink down to the floor again
+        long now = 0;
+        for (int i = 0; i < 500; ++i) {
+            scheduler.onRequest(now);
+            now += 5 + scheduler.onFrame(now + 5, true, true);
+        }
+        assertEquals(ScreenShotScheduler.MIN_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void backsOffWhileIdle() {
+        ScreenShotScheduler scheduler = new ScreenShotScheduler();
+        long now = 0;
+        long delay = 0;
+
+        // unchanged screen
+        for (int i = 0; i < 20; ++i) {
+            scheduler.onRequest(now);
+            delay = scheduler.onFrame(now, false, true);
+            now += delay;
+        }
+        assertEquals(scheduler.getIntervalMs() + ScreenShotScheduler.IDLE_BACKOFF_MAX_MS, delay);
+
+        // back to full speed with the first changed frame
+        scheduler.onRequest(now);
+        delay = scheduler.onFrame(now, true, true);
+        assertEquals(scheduler.getIntervalMs(), delay);
+
+        // changed, but nobody waiting
+        now += delay;
+        scheduler.onRequest(now);
+        delay = scheduler.onFrame(now, true, false);
+        assertEquals(scheduler.getIntervalMs() + ScreenShotScheduler.IDLE_BACKOFF_MIN_MS, delay);
+    }
+
+    @Test
+    public void delayAccountsForTimeSinceRequest() {
+        ScreenShotScheduler scheduler = new ScreenShotScheduler();
+        scheduler.onRequest(1000);
+        long interval = ScreenShotScheduler.INITIAL_INTERVAL_MS - ScreenShotScheduler.PROBE_STEP_MS;
+        assertEquals(interval - 30, scheduler.onFrame(1030, true, true));
+
+        scheduler.onRequest(2000);
+        assertEquals(0, scheduler.onFrame(2000 + 10 * interval, true, true));
+    }
+
+    @Test
+    public void resetKeepsInterval() {
+        ScreenShotScheduler scheduler = simulate(200, 100);
+        long interval = scheduler.getIntervalMs();
+        assertTrue(scheduler.getFps() > 0);
+
+        scheduler.reset();
+        assertEquals(interval, scheduler.getIntervalMs());
+        assertEquals(0, scheduler.getFps(), 0);
+    }
+}
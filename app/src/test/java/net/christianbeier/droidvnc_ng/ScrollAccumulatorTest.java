@@ -0,0 +1,76 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScrollAccumulatorTest {
+
+    private static final float PIXELS_PER_TICK = 192;
+    private static final int TOUCH_SLOP = 24;
+    private static final int HEIGHT = 2400;
+
+    @Test
+    public void sumsTicksWithinWindow() {
+        ScrollAccumulator accumulator = new ScrollAccumulator();
+        assertFalse(accumulator.hasPending());
+
+        accumulator.onTick(1, 10, 20, 1000);
+        accumulator.onTick(1, 11, 21, 1010);
+        accumulator.onTick(1, 12, 22, 1020);
+        assertTrue(accumulator.hasPending());
+        assertEquals(ScrollAccumulator.WINDOW_MS - 20, accumulator.getDelayMs(1020));
+        assertEquals(0, accumulator.getDelayMs(1000 + ScrollAccumulator.WINDOW_MS));
+
+        assertEquals(12, accumulator.getX());
+        assertEquals(22, accumulator.getY());
+        assertEquals(3, accumulator.take());
+        assertFalse(accumulator.hasPending());
+
+        // the next window starts with the next tick
+        accumulator.onTick(-1, 0, 0, 5000);
+        assertEquals(ScrollAccumulator.WINDOW_MS, accumulator.getDelayMs(5000));
+        assertEquals(-1, accumulator.take());
+    }
+
+    @Test
+    public void keepsTicksWhileSwipeInFlight() {
+        // a fast spin of 40 ticks over 400 ms with swipes taking SWIPE_DURATION_MS
+        ScrollAccumulator accumulator = new ScrollAccumulator();
+        long swipeDoneMs = 0;
+        int scrolled = 0;
+        int swipes = 0;
+        for (long now = 0; now < 2000; ++now) {
+            if (now < 400 && now % 10 == 0)
+                accumulator.onTick(1, 0, 0, now);
+            if (accumulator.hasPending() && accumulator.getDelayMs(now) == 0 && now >= swipeDoneMs) {
+                int ticks = accumulator.take();
+                scrolled += ticks;
+                ++swipes;
+                swipeDoneMs = now + ScrollAccumulator.getSwipeDuration(ticks, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT);
+            }
+        }
+        assertEquals(40, scrolled);
+        assertTrue(swipes < 10);
+    }
+
+    @Test
+    public void sizesSwipes() {
+        // one tick scrolls by the platform's distance
+        assertEquals((int) PIXELS_PER_TICK + TOUCH_SLOP, ScrollAccumulator.getSwipeDistance(1, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+        assertEquals(-(int) PIXELS_PER_TICK - TOUCH_SLOP, ScrollAccumulator.getSwipeDistance(-1, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+        assertEquals(ScrollAccumulator.SWIPE_DURATION_MS, ScrollAccumulator.getSwipeDuration(1, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+
+        // proportionally more, up to what fits
+        assertEquals(3 * (int) PIXELS_PER_TICK + TOUCH_SLOP, ScrollAccumulator.getSwipeDistance(3, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+        int max = (int) (HEIGHT * ScrollAccumulator.MAX_SWIPE_FRACTION);
+        assertEquals(max, ScrollAccumulator.getSwipeDistance(20, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+
+        // beyond, faster swipes for flinging further
+        long duration10 = ScrollAccumulator.getSwipeDuration(10, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT);
+        long duration20 = ScrollAccumulator.getSwipeDuration(20, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT);
+        assertTrue(duration10 < ScrollAccumulator.SWIPE_DURATION_MS);
+        assertTrue(duration20 < duration10);
+        assertEquals(ScrollAccumulator.MIN_SWIPE_DURATION_MS, ScrollAccumulator.getSwipeDuration(1000, PIXELS_PER_TICK, TOUCH_SLOP, HEIGHT));
+    }
+}
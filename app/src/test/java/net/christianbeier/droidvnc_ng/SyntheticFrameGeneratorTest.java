@@ -0,0 +1,68 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SyntheticFrameGeneratorTest {
+
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 640;
+
+    private static int[] render(SyntheticFrameGenerator generator, int index) {
+        IntBuffer frame = IntBuffer.allocate(WIDTH * HEIGHT);
+        generator.render(index, frame, WIDTH);
+        return frame.array();
+    }
+
+    private static boolean rowsEqual(int[] a, int yA, int[] b, int yB) {
+        for (int x = 0; x < WIDTH; ++x)
+            if (a[yA * WIDTH + x] != b[yB * WIDTH + x])
+                return false;
+        return true;
+    }
+
+    @Test
+    public void isDeterministic() {
+        for (SyntheticFrameGenerator.Pattern pattern : SyntheticFrameGenerator.Pattern.values()) {
+            SyntheticFrameGenerator generator = new SyntheticFrameGenerator(pattern, WIDTH, HEIGHT);
+            int[] frame = render(generator, 17);
+            render(generator, 3);
+            assertArrayEquals(frame, render(generator, 17));
+            assertArrayEquals(frame, render(new SyntheticFrameGenerator(pattern, WIDTH, HEIGHT), 17));
+            for (int pixel : frame)
+                assertEquals(0xff, pixel >>> 24);
+        }
+    }
+
+    @Test
+    public void staticDoesNotChange() {
+        SyntheticFrameGenerator generator = new SyntheticFrameGenerator(SyntheticFrameGenerator.Pattern.STATIC, WIDTH, HEIGHT);
+        assertArrayEquals(render(generator, 0), render(generator, 1));
+    }
+
+    @Test
+    public void scrollingTextScrolls() {
+        SyntheticFrameGenerator generator = new SyntheticFrameGenerator(SyntheticFrameGenerator.Pattern.SCROLLING_TEXT, WIDTH, HEIGHT);
+        int[] previous = render(generator, 4);
+        int[] current = render(generator, 5);
+        assertFalse(Arrays.equals(previous, current));
+        // content rows moved up by the scroll step, bars stayed
+        for (int y = 100; y < 500; ++y)
+            assertTrue(rowsEqual(previous, y + SyntheticFrameGenerator.SCROLL_STEP, current, y));
+        assertTrue(rowsEqual(previous, 0, current, 0));
+        assertTrue(rowsEqual(previous, HEIGHT - 1, current, HEIGHT - 1));
+    }
+
+    @Test
+    public void videoChangesEveryFrame() {
+        SyntheticFrameGenerator generator = new SyntheticFrameGenerator(SyntheticFrameGenerator.Pattern.VIDEO, WIDTH, HEIGHT);
+        int[] previous = render(generator, 0);
+        int[] current = render(generator, 1);
+        assertFalse(rowsEqual(previous, HEIGHT / 2, current, HEIGHT / 2));
+        assertTrue(rowsEqual(previous, 0, current, 0));
+    }
+}
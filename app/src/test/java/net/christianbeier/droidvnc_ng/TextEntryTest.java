@@ -0,0 +1,120 @@
+package net.christianbeier.droidvnc_ng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextEntryTest {
+
+    // what type() returns
+    private static final int WRITES = 0;
+    private static final int CHARS_WRITTEN = 1;
+
+    /**
+     * Types the given text into a simulated focus node, a key every keyIntervalMs, flushing like
+     * InputService does.
+     * @return Number of writes to the node at WRITES and characters written in total at CHARS_WRITTEN,
+     *         which is what dominates typing throughput.
+     */
+    private static long[] type(String initial, int initialCursor, String typed, long keyIntervalMs, StringBuilder node) {
+        node.setLength(0);
+        node.append(initial);
+        int[] nodeCursor = { initialCursor };
+        TextEntry entry = new TextEntry();
+        int writes = 0;
+        long charsWritten = 0;
+        long now = 0;
+
+        for (int i = 0; i <= typed.length(); ++i) {
+            if (entry.isDirty() && (i == typed.length() || entry.getFlushDelayMs(now) == 0)) {
+                node.setLength(0);
+                node.append(entry.getText());
+                nodeCursor[0] = entry.getCursor();
+                entry.reset();
+                ++writes;
+                charsWritten += node.length();
+            }
+            if (i == typed.length())
+                break;
+            if (!entry.isSeeded())
+                entry.seed(node, nodeCursor[0]);
+            char c = typed.charAt(i);
+            if (c == '\b')
+                entry.backspace(now);
+            else if (c == 0x7f)
+                entry.delete(now);
+            else
+                entry.insert(c, now);
+            now += keyIntervalMs;
+        }
+        return new long[] { writes, charsWritten };
+    }
+
+    @Test
+    public void appliesEdits() {
+        StringBuilder node = new StringBuilder();
+        type("hello world", 5, ",\b\b\bp", 1, node);
+        assertEquals("help world", node.toString());
+
+        // delete after the cursor, nothing to delete at the end
+        type("abc", 1, "\u007f\u007fX\u007f", 1, node);
+        assertEquals("aX", node.toString());
+
+        // null text and unknown cursor
+        TextEntry entry = new TextEntry();
+        entry.seed(null, -1);
+        entry.backspace(0);
+        assertFalse(entry.isDirty());
+        entry.insert('a', 0);
+        assertEquals("a", entry.getText().toString());
+        entry.seed("xyz", 7);
+        assertEquals(3, entry.getCursor());
+    }
+
+    @Test
+    public void batchesFastTyping() {
+        StringBuilder typed = new StringBuilder();
+        for (int i = 0; i < 20000; ++i)
+            typed.append((char) ('a' + i % 26));
+
+        // a burst within MAX_DELAY_MS is written once, as opposed to the whole text per key
+        StringBuilder node = new StringBuilder();
+        String burst = typed.substring(0, (int) TextEntry.MAX_DELAY_MS - 1);
+        long[] result = type("", 0, burst, 1, node);
+        assertEquals(burst, node.toString());
+        assertEquals(1, result[WRITES]);
+        assertEquals(burst.length(), result[CHARS_WRITTEN]);
+
+        // pasting via fast typing ends up in one write per MAX_DELAY_MS
+        result = type("", 0, typed.toString(), 1, node);
+        assertEquals(typed.toString(), node.toString());
+        assertTrue(result[WRITES] <= typed.length() / TextEntry.MAX_DELAY_MS + 1);
+        assertTrue(result[WRITES] * 100 < typed.length());
+
+        // slow typing still gets written key by key
+        result = type("", 0, "slow", TextEntry.QUIET_MS + 1, node);
+        assertEquals(4, result[WRITES]);
+        assertEquals(1 + 2 + 3 + 4, result[CHARS_WRITTEN]);
+    }
+
+    @Test
+    public void flushDelay() {
+        TextEntry entry = new TextEntry();
+        entry.seed("", 0);
+        entry.insert('a', 100);
+        assertEquals(TextEntry.QUIET_MS, entry.getFlushDelayMs(100));
+        assertEquals(0, entry.getFlushDelayMs(100 + TextEntry.QUIET_MS));
+
+        // continuous typing is written at the latest MAX_DELAY_MS after the first edit
+        long now = 100;
+        while (now < 100 + TextEntry.MAX_DELAY_MS) {
+            now += TextEntry.QUIET_MS / 2;
+            entry.insert('a', now);
+        }
+        assertEquals(0, entry.getFlushDelayMs(now));
+
+        entry.reset();
+        assertFalse(entry.isDirty());
+        assertFalse(entry.isSeeded());
+    }
+}